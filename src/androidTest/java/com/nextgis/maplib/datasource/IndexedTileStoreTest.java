@@ -0,0 +1,272 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.datasource;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.AndroidTestCase;
+
+import com.nextgis.maplib.api.ITileStore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+public class IndexedTileStoreTest
+        extends AndroidTestCase
+{
+    protected static final long TIMESTAMP = 1500000000000L;
+
+
+    /**
+     * The tiles in memory, the index is checked against it
+     */
+    protected static class MemoryTileStore
+            implements ITileStore
+    {
+        protected final Map<String, long[]> mTiles = new HashMap<>();
+
+
+        protected void put(
+                int zoom,
+                int x,
+                int y,
+                long timestamp)
+        {
+            mTiles.put(new TileItem(x, y, zoom, null).getHash(),
+                    new long[] {zoom, x, y, timestamp});
+        }
+
+
+        @Override
+        public long getTimestamp(TileItem tile)
+        {
+            long[] item = mTiles.get(tile.getHash());
+            return null == item ? 0 : item[3];
+        }
+
+
+        @Override
+        public byte[] getTileData(TileItem tile)
+        {
+            return mTiles.containsKey(tile.getHash()) ? new byte[] {1} : null;
+        }
+
+
+        @Override
+        public Bitmap getBitmap(
+                TileItem tile,
+                BitmapFactory.Options options,
+                int minSize)
+        {
+            return null;
+        }
+
+
+        @Override
+        public OutputStream getOutputStream(TileItem tile)
+        {
+            return new ByteArrayOutputStream();
+        }
+
+
+        @Override
+        public String[] getValidators(TileItem tile)
+        {
+            return null;
+        }
+
+
+        @Override
+        public void setValidators(
+                TileItem tile,
+                String[] validators)
+        {
+
+        }
+
+
+        @Override
+        public void touch(
+                TileItem tile,
+                long timestamp)
+        {
+
+        }
+
+
+        @Override
+        public void remove(TileItem tile)
+        {
+            mTiles.remove(tile.getHash());
+        }
+
+
+        @Override
+        public void visitTiles(TileVisitor visitor)
+        {
+            for (long[] item : mTiles.values()) {
+                visitor.onTile((int) item[0], (int) item[1], (int) item[2], 1, item[3]);
+            }
+        }
+
+
+        @Override
+        public void flush()
+        {
+
+        }
+
+
+        @Override
+        public void close()
+        {
+
+        }
+    }
+
+
+    protected static TileItem createTile(
+            int zoom,
+            int x,
+            int y)
+    {
+        return new TileItem(x, y, zoom, null);
+    }
+
+
+    /**
+     * Build the index at once as the background loader does
+     */
+    protected static void build(
+            IndexedTileStore store,
+            MemoryTileStore memoryStore)
+    {
+        final List<long[]> tiles = new ArrayList<>();
+        memoryStore.visitTiles(
+                new ITileStore.TileVisitor()
+                {
+                    @Override
+                    public void onTile(
+                            int zoom,
+                            int x,
+                            int y,
+                            long size,
+                            long timestamp)
+                    {
+                        tiles.add(new long[] {zoom, x, y, timestamp});
+                    }
+                });
+
+        synchronized (store) {
+            store.mState = IndexedTileStore.STATE_LOADING;
+            store.build(tiles);
+        }
+    }
+
+
+    public void testIndexGrowsForNewTile()
+    {
+        MemoryTileStore memoryStore = new MemoryTileStore();
+        memoryStore.put(10, 0, 0, TIMESTAMP);
+        IndexedTileStore store = new IndexedTileStore(memoryStore, false);
+        build(store, memoryStore);
+
+        IndexedTileStore.Level level = store.mLevels[10];
+        int width = level.mWidth;
+        store.set(10, 500, 600, TIMESTAMP);
+        assertTrue(store.mLevels[10].mWidth > width);
+        assertFalse(store.mLevels[10].mOverflow);
+
+        assertEquals(1, store.find(createTile(10, 0, 0)));
+        assertEquals(1, store.find(createTile(10, 500, 600)));
+        assertEquals(0, store.find(createTile(10, 250, 300)));
+        assertEquals(0, store.find(createTile(11, 0, 0)));
+    }
+
+
+    public void testOverflowLevelPassesUnknownTiles()
+    {
+        MemoryTileStore memoryStore = new MemoryTileStore();
+        memoryStore.put(20, 0, 0, TIMESTAMP);
+        memoryStore.put(20, 100000, 100000, TIMESTAMP);
+        IndexedTileStore store = new IndexedTileStore(memoryStore, true);
+        build(store, memoryStore);
+
+        assertTrue(store.mLevels[20].mOverflow);
+        assertEquals(TIMESTAMP, store.find(createTile(20, 0, 0)));
+
+        // out of the indexed part, the wrapped store is asked
+        TileItem farTile = createTile(20, 100000, 100000);
+        assertEquals(-1, store.find(farTile));
+        assertEquals(TIMESTAMP, store.getTimestamp(farTile));
+        assertNotNull(store.getTileData(farTile));
+        assertNull(store.getTileData(createTile(20, 100000, 100001)));
+    }
+
+
+    public void testChangesWhileLoadingAreApplied()
+    {
+        MemoryTileStore memoryStore = new MemoryTileStore();
+        memoryStore.put(3, 1, 1, TIMESTAMP);
+        memoryStore.put(3, 4, 4, TIMESTAMP);
+        IndexedTileStore store = new IndexedTileStore(memoryStore, true);
+
+        final List<long[]> tiles = new ArrayList<>();
+        for (long[] item : memoryStore.mTiles.values()) {
+            tiles.add(item);
+        }
+
+        synchronized (store) {
+            store.mState = IndexedTileStore.STATE_LOADING;
+            // the tiles are changed after the visit and before the index is built
+            store.onChange(3, 1, 1, 0);
+            store.onChange(3, 2, 2, TIMESTAMP + 1000);
+            store.build(tiles);
+        }
+
+        assertEquals(0, store.find(createTile(3, 1, 1)));
+        assertEquals(TIMESTAMP + 1000, store.find(createTile(3, 2, 2)));
+        assertEquals(TIMESTAMP, store.find(createTile(3, 4, 4)));
+        assertTrue(store.mPendingChanges.isEmpty());
+    }
+
+
+    public void testInvalidateDropsIndex()
+    {
+        MemoryTileStore memoryStore = new MemoryTileStore();
+        memoryStore.put(5, 3, 3, TIMESTAMP);
+        IndexedTileStore store = new IndexedTileStore(memoryStore, false);
+        build(store, memoryStore);
+        assertEquals(1, store.find(createTile(5, 3, 3)));
+
+        store.invalidate();
+        assertNull(store.mLevels[5]);
+        assertEquals(TIMESTAMP, store.getTimestamp(createTile(5, 3, 3)));
+    }
+}
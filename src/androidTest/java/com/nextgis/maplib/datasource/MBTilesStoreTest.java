@@ -0,0 +1,139 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.datasource;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+
+public class MBTilesStoreTest
+        extends AndroidTestCase
+{
+    protected File mFile;
+
+
+    @Override
+    protected void setUp()
+            throws Exception
+    {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "test_" + MBTilesStore.FILE_NAME);
+        mFile.delete();
+    }
+
+
+    @Override
+    protected void tearDown()
+            throws Exception
+    {
+        mFile.delete();
+        super.tearDown();
+    }
+
+
+    protected static TileItem createTile(
+            int zoom,
+            int x,
+            int y)
+    {
+        return new TileItem(x, y, zoom, null);
+    }
+
+
+    public void testPendingTileIsReadBeforeFlush()
+    {
+        byte[] data = {1, 2, 3};
+        MBTilesStore store = new MBTilesStore(mFile, false);
+        store.putTile(3, 1, 2, data, 1000);
+
+        TileItem tile = createTile(3, 1, 2);
+        assertTrue(Arrays.equals(data, store.getTileData(tile)));
+        assertEquals(1000, store.getTimestamp(tile));
+        store.close();
+    }
+
+
+    public void testFlushedTileIsReadAfterReopen()
+    {
+        byte[] data = {4, 5, 6, 7};
+        MBTilesStore store = new MBTilesStore(mFile, false);
+        store.putTile(5, 10, 20, data, 2000);
+        store.flush();
+        store.close();
+
+        store = new MBTilesStore(mFile, false);
+        TileItem tile = createTile(5, 10, 20);
+        assertTrue(Arrays.equals(data, store.getTileData(tile)));
+        assertEquals(2000, store.getTimestamp(tile));
+        assertNull(store.getTileData(createTile(5, 10, 21)));
+        store.close();
+    }
+
+
+    public void testCloseWritesPendingTiles()
+    {
+        byte[] data = {8};
+        MBTilesStore store = new MBTilesStore(mFile, false);
+        store.putTile(1, 0, 1, data, 3000);
+        store.close();
+
+        store = new MBTilesStore(mFile, false);
+        assertTrue(Arrays.equals(data, store.getTileData(createTile(1, 0, 1))));
+        store.close();
+    }
+
+
+    public void testOsmRowIsFlipped()
+    {
+        byte[] data = {9, 9};
+        MBTilesStore store = new MBTilesStore(mFile, true);
+        store.putTile(2, 1, 0, data, 4000);
+        store.close();
+
+        // MBTiles keeps rows in TMS scheme, the OSM row 0 of zoom 2 is the row 3
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(
+                mFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+        Cursor cursor = db.rawQuery(
+                "SELECT tile_row FROM tiles WHERE zoom_level = 2 AND tile_column = 1", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(3, cursor.getInt(0));
+        } finally {
+            cursor.close();
+            db.close();
+        }
+
+        store = new MBTilesStore(mFile, true);
+        assertTrue(Arrays.equals(data, store.getTileData(createTile(2, 1, 0))));
+        store.close();
+
+        store = new MBTilesStore(mFile, false);
+        assertTrue(Arrays.equals(data, store.getTileData(createTile(2, 1, 3))));
+        store.close();
+    }
+}
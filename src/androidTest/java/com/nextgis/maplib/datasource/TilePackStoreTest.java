@@ -0,0 +1,146 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.datasource;
+
+import android.test.AndroidTestCase;
+
+import com.nextgis.maplib.api.ITileStore;
+import com.nextgis.maplib.util.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+
+public class TilePackStoreTest
+        extends AndroidTestCase
+{
+    // each tile crosses the boundary of the mapped data parts
+    protected static final int TILE_LENGTH  = 100;
+    protected static final int SEGMENT_SIZE = 64;
+
+    protected static final int[][] TILES = {{2, 1, 3}, {0, 0, 0}, {2, 3, 0}, {1, 1, 1}, {2, 1, 2}};
+
+    protected File mPath;
+    protected File mPackFile;
+
+
+    @Override
+    protected void setUp()
+            throws Exception
+    {
+        super.setUp();
+        mPath = new File(getContext().getCacheDir(), "test_tiles");
+        mPackFile = new File(getContext().getCacheDir(), "test_" + TilePackStore.FILE_NAME);
+        FileUtil.deleteRecursive(mPath);
+        mPackFile.delete();
+
+        ITileStore store = new TileDirectoryStore(mPath);
+        for (int[] tile : TILES) {
+            OutputStream stream = store.getOutputStream(createTile(tile));
+            stream.write(getData(tile));
+            stream.close();
+        }
+    }
+
+
+    @Override
+    protected void tearDown()
+            throws Exception
+    {
+        FileUtil.deleteRecursive(mPath);
+        mPackFile.delete();
+        super.tearDown();
+    }
+
+
+    protected static TileItem createTile(int[] tile)
+    {
+        return new TileItem(tile[1], tile[2], tile[0], null);
+    }
+
+
+    /**
+     * @return The tile data which differs for every tile
+     */
+    protected static byte[] getData(int[] tile)
+    {
+        byte[] data = new byte[TILE_LENGTH];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (tile[0] * 31 + tile[1] * 7 + tile[2] + i);
+        }
+        return data;
+    }
+
+
+    public void testTilesAreReadAcrossSegments()
+            throws IOException
+    {
+        assertEquals(TILES.length, TilePackStore.create(mPath, mPackFile, null));
+
+        TilePackStore store = new TilePackStore(mPackFile, SEGMENT_SIZE);
+        for (int[] tile : TILES) {
+            TileItem tileItem = createTile(tile);
+            assertTrue(Arrays.equals(getData(tile), store.getTileData(tileItem)));
+            assertTrue(store.getTimestamp(tileItem) > 0);
+
+            // the per thread buffer may be longer than the tile
+            int[] length = new int[1];
+            byte[] data = store.readTile(tileItem, true, length);
+            assertEquals(TILE_LENGTH, length[0]);
+            byte[] tileData = new byte[length[0]];
+            System.arraycopy(data, 0, tileData, 0, length[0]);
+            assertTrue(Arrays.equals(getData(tile), tileData));
+        }
+        store.close();
+    }
+
+
+    public void testAbsentTileIsNotFound()
+            throws IOException
+    {
+        TilePackStore.create(mPath, mPackFile, null);
+
+        TilePackStore store = new TilePackStore(mPackFile, SEGMENT_SIZE);
+        TileItem absent = new TileItem(2, 2, 2, null);
+        assertNull(store.getTileData(absent));
+        assertEquals(0, store.getTimestamp(absent));
+        assertNull(store.getTileData(new TileItem(0, 0, 3, null)));
+        store.close();
+    }
+
+
+    public void testDefaultSegmentReadsSameData()
+            throws IOException
+    {
+        TilePackStore.create(mPath, mPackFile, null);
+
+        TilePackStore store = new TilePackStore(mPackFile);
+        for (int[] tile : TILES) {
+            assertTrue(Arrays.equals(getData(tile), store.getTileData(createTile(tile))));
+        }
+        store.close();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.TimeUnit;
+
+
+public class DownloadConcurrencyTest
+        extends AndroidTestCase
+{
+    protected static final long TIMEOUT = 10; // ms
+
+
+    /**
+     * Let the current window be closed by the next request without waiting
+     */
+    protected static void expireWindow(DownloadConcurrency concurrency)
+    {
+        synchronized (concurrency) {
+            concurrency.mWindowStart =
+                    System.currentTimeMillis() - DownloadConcurrency.MIN_WINDOW_TIME - 1;
+        }
+    }
+
+
+    /**
+     * Use all permits and run one window of successful requests
+     */
+    protected static void runSaturatedWindow(
+            DownloadConcurrency concurrency,
+            long latency)
+            throws InterruptedException
+    {
+        int limit = concurrency.getMetrics().getLimit();
+        for (int i = 0; i < limit; i++) {
+            assertTrue(concurrency.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        for (int i = 0; i < limit; i++) {
+            concurrency.release();
+        }
+        runWindow(concurrency, limit, latency);
+    }
+
+
+    protected static void runWindow(
+            DownloadConcurrency concurrency,
+            int count,
+            long latency)
+    {
+        expireWindow(concurrency);
+        for (int i = 0; i < count; i++) {
+            concurrency.onSuccess(latency, 1000);
+        }
+    }
+
+
+    public void testPermitsAreLimited()
+            throws InterruptedException
+    {
+        DownloadConcurrency concurrency = new DownloadConcurrency(1);
+        assertTrue(concurrency.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(concurrency.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(1, concurrency.getMetrics().getActive());
+
+        concurrency.release();
+        assertTrue(concurrency.tryAcquire(TIMEOUT, TimeUnit.MILLISECONDS));
+        concurrency.release();
+    }
+
+
+    public void testLimitGrowsWhileSaturated()
+            throws InterruptedException
+    {
+        DownloadConcurrency concurrency = new DownloadConcurrency(2);
+        runSaturatedWindow(concurrency, 100);
+        assertEquals(3, concurrency.getMetrics().getLimit());
+
+        // the permits are not all used, the limit stays
+        runWindow(concurrency, 3, 100);
+        assertEquals(3, concurrency.getMetrics().getLimit());
+    }
+
+
+    public void testLimitIsBounded()
+            throws InterruptedException
+    {
+        DownloadConcurrency concurrency = new DownloadConcurrency(1);
+        assertEquals(DownloadConcurrency.MAX_LIMIT_FACTOR, concurrency.getMaxLimit());
+        for (int i = 0; i < concurrency.getMaxLimit() * 2; i++) {
+            runSaturatedWindow(concurrency, 100);
+        }
+        assertEquals(concurrency.getMaxLimit(), concurrency.getMetrics().getLimit());
+
+        for (int i = 0; i < concurrency.getMaxLimit() * 2; i++) {
+            expireWindow(concurrency);
+            concurrency.onCongestion();
+        }
+        assertEquals(DownloadConcurrency.MIN_LIMIT, concurrency.getMetrics().getLimit());
+    }
+
+
+    public void testCongestionHalvesLimitOncePerWindow()
+    {
+        DownloadConcurrency concurrency = new DownloadConcurrency(8);
+        concurrency.onCongestion();
+        assertEquals(4, concurrency.getMetrics().getLimit());
+
+        // the requests in flight time out together
+        concurrency.onCongestion();
+        concurrency.onCongestion();
+        assertEquals(4, concurrency.getMetrics().getLimit());
+        assertEquals(3, concurrency.getMetrics().getCongestionCount());
+
+        // the next window is decreased again
+        expireWindow(concurrency);
+        concurrency.onCongestion();
+        concurrency.onCongestion();
+        assertEquals(2, concurrency.getMetrics().getLimit());
+    }
+
+
+    public void testLatencyGrowthDecreasesLimit()
+    {
+        DownloadConcurrency concurrency = new DownloadConcurrency(4);
+        runWindow(concurrency, 4, 100);
+        assertEquals(100, concurrency.getMetrics().getBaseLatency());
+        assertEquals(4, concurrency.getMetrics().getLimit());
+
+        // the requests are queued on the link
+        runWindow(concurrency, 4, 500);
+        assertEquals(500, concurrency.getMetrics().getLatency());
+        assertEquals(2, concurrency.getMetrics().getLimit());
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.util;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class TileCacheTest
+        extends AndroidTestCase
+{
+    protected static final String LAYER_KEY = "test_layer";
+    protected static final int    TILE_SIZE = 256;
+
+
+    @Override
+    protected void setUp()
+            throws Exception
+    {
+        super.setUp();
+        TileCache.setMaxSize(0);
+        TileCache.clear();
+    }
+
+
+    @Override
+    protected void tearDown()
+            throws Exception
+    {
+        TileCache.reserve(LAYER_KEY, 0);
+        TileCache.remove(LAYER_KEY);
+        super.tearDown();
+    }
+
+
+    protected static Bitmap createTile()
+    {
+        return Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+    }
+
+
+    /**
+     * @return The tile hashes which are kept in one cache stripe
+     */
+    protected static List<String> getStripeHashes(int count)
+    {
+        List<String> hashes = new ArrayList<>(count);
+        TileCache.Stripe stripe = null;
+        for (int i = 0; hashes.size() < count; i++) {
+            String hash = "z20." + i + ".0";
+            TileCache.Stripe tileStripe = TileCache.getStripe(TileCache.getKey(LAYER_KEY, hash));
+            if (null == stripe) {
+                stripe = tileStripe;
+            }
+            if (tileStripe == stripe) {
+                hashes.add(hash);
+            }
+        }
+        return hashes;
+    }
+
+
+    public void testLeastRecentlyUsedIsEvicted()
+    {
+        int tileBytes = TILE_SIZE * TILE_SIZE * 4;
+        int perStripe = TileCache.getMaxSize() / TileCache.STRIPE_COUNT / tileBytes;
+        assertTrue(perStripe >= 2);
+
+        List<String> hashes = getStripeHashes(perStripe + 1);
+        for (int i = 0; i < perStripe; i++) {
+            TileCache.put(LAYER_KEY, hashes.get(i), createTile());
+        }
+
+        // the first tile becomes the most recently used
+        assertNotNull(TileCache.get(LAYER_KEY, hashes.get(0)));
+        TileCache.put(LAYER_KEY, hashes.get(perStripe), createTile());
+
+        assertNotNull(TileCache.get(LAYER_KEY, hashes.get(0)));
+        assertNull(TileCache.get(LAYER_KEY, hashes.get(1)));
+        assertNotNull(TileCache.get(LAYER_KEY, hashes.get(perStripe)));
+    }
+
+
+    public void testSizeIsInBudget()
+    {
+        int tileBytes = TILE_SIZE * TILE_SIZE * 4;
+        int count = TileCache.getMaxSize() / tileBytes * 2;
+        for (int i = 0; i < count; i++) {
+            TileCache.put(LAYER_KEY, "z20." + i + ".1", createTile());
+            assertTrue(TileCache.getSize() <= TileCache.getMaxSize());
+        }
+        assertTrue(TileCache.getSize() > 0);
+    }
+
+
+    public void testReserveGrowsAndShrinksBudget()
+    {
+        int baseSize = TileCache.getMaxSize();
+        int reserved = baseSize * 2;
+        if (reserved > Runtime.getRuntime().maxMemory() / 4) {
+            return;
+        }
+
+        TileCache.reserve(LAYER_KEY, reserved);
+        assertEquals(reserved, TileCache.getMaxSize());
+
+        int tileBytes = TILE_SIZE * TILE_SIZE * 4;
+        for (int i = 0; i < reserved / tileBytes; i++) {
+            TileCache.put(LAYER_KEY, "z20." + i + ".2", createTile());
+        }
+        assertTrue(TileCache.getSize() > baseSize);
+
+        // the budget is given back and the tiles over it are evicted
+        TileCache.reserve(LAYER_KEY, 0);
+        assertEquals(baseSize, TileCache.getMaxSize());
+        assertTrue(TileCache.getSize() <= baseSize);
+    }
+
+
+    public void testAcquiredTileIsNotReusedAfterEviction()
+    {
+        BitmapPool.clear();
+        Bitmap tile = createTile();
+        TileCache.put(LAYER_KEY, "z20.0.3", tile, true);
+        TileCache.remove(LAYER_KEY, "z20.0.3");
+        assertNull(TileCache.get(LAYER_KEY, "z20.0.3"));
+
+        // the evicted tile is still held, so the pool has not got it
+        assertNotSame(tile, BitmapPool.get(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888));
+        assertTrue(TileCache.release(tile));
+        assertFalse(TileCache.release(tile));
+        assertFalse(tile.isRecycled());
+        BitmapPool.clear();
+    }
+}
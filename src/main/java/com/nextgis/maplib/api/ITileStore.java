@@ -0,0 +1,120 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.api;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.nextgis.maplib.datasource.TileItem;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+/**
+ * The storage of raster layer tiles on the device
+ */
+public interface ITileStore
+{
+    int VALIDATOR_LAST_MODIFIED = 0;
+    int VALIDATOR_ETAG          = 1;
+
+
+    interface TileVisitor
+    {
+        void onTile(
+                int zoom,
+                int x,
+                int y,
+                long size,
+                long timestamp);
+    }
+
+
+    /**
+     * @return The time the tile was stored in milliseconds or 0 if the tile is absent
+     */
+    long getTimestamp(TileItem tile);
+
+    /**
+     * @return The encoded tile image or null if the tile is absent
+     */
+    byte[] getTileData(TileItem tile);
+
+    /**
+     * Decode the stored tile
+     *
+     * @param tile
+     *         The tile to decode
+     * @param options
+     *         The decode options
+     * @param minSize
+     *         The minimum size of downsampled tile or 0 to decode as is
+     *
+     * @return The bitmap or null if the tile is absent or broken
+     */
+    Bitmap getBitmap(
+            TileItem tile,
+            BitmapFactory.Options options,
+            int minSize);
+
+    /**
+     * Open the stream to write the tile data. The tile is stored when the stream is closed.
+     */
+    OutputStream getOutputStream(TileItem tile)
+            throws IOException;
+
+    /**
+     * @return The HTTP validators of the tile: Last-Modified and ETag values or null if unknown
+     */
+    String[] getValidators(TileItem tile);
+
+    void setValidators(
+            TileItem tile,
+            String[] validators);
+
+    /**
+     * Set the tile timestamp, e.g. when the server reports the tile is not modified
+     */
+    void touch(
+            TileItem tile,
+            long timestamp);
+
+    /**
+     * Remove the tile and its validators
+     */
+    void remove(TileItem tile);
+
+    /**
+     * Enumerate all stored tiles, used to build the tile indexes
+     */
+    void visitTiles(TileVisitor visitor);
+
+    /**
+     * Write pending changes to the storage
+     */
+    void flush();
+
+    void close();
+}
@@ -0,0 +1,541 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.datasource;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+
+import com.nextgis.maplib.api.ITileStore;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * The tile store wrapper which knows the stored tiles from the memory, so the checks of absent
+ * tiles cost no file system or database calls. The index has a bit set per zoom level covering the
+ * bounds of the stored tiles and optionally the tile timestamps in seconds. It is built in
+ * background on the first request, the requests are passed to the wrapped store until then. The
+ * levels which are too wide to index cover a part of the bounds, the requests outside the part are
+ * passed to the wrapped store.
+ */
+public class IndexedTileStore
+        implements ITileStore
+{
+    protected static final int MAX_LEVEL       = 30;
+    protected static final int MAX_LEVEL_CELLS = 1 << 22; // 512 KB of bits
+    protected static final int MAX_TIMED_CELLS = 1 << 18; // 1 MB of timestamps
+    protected static final int MIN_LEVEL_SIZE  = 16;
+
+    protected static final int STATE_NOT_LOADED = 0;
+    protected static final int STATE_LOADING    = 1;
+    protected static final int STATE_LOADED     = 2;
+
+    protected static ExecutorService mLoader;
+
+    protected final ITileStore   mStore;
+    protected final boolean      mTrackTime;
+    protected final Level[]      mLevels;
+    protected       int          mState;
+    protected       int          mGeneration;
+    protected final List<long[]> mPendingChanges;
+
+
+    protected static class Level
+    {
+        protected int     mMinX, mMinY, mWidth, mHeight;
+        protected BitSet  mBits;
+        protected int[]   mTimes;
+        protected boolean mOverflow;
+
+
+        protected int indexOf(
+                int x,
+                int y)
+        {
+            if (x < mMinX || y < mMinY || x >= mMinX + mWidth || y >= mMinY + mHeight) {
+                return -1;
+            }
+            return (y - mMinY) * mWidth + x - mMinX;
+        }
+
+
+        protected void allocate(
+                int minX,
+                int minY,
+                int width,
+                int height,
+                boolean trackTime)
+        {
+            BitSet bits = new BitSet(width * height);
+            int[] times = trackTime ? new int[width * height] : null;
+            if (null != mBits) {
+                for (int i = mBits.nextSetBit(0); i >= 0; i = mBits.nextSetBit(i + 1)) {
+                    int index = (i / mWidth + mMinY - minY) * width + i % mWidth + mMinX - minX;
+                    bits.set(index);
+                    if (null != times) {
+                        times[index] = mTimes[i];
+                    }
+                }
+            }
+            mMinX = minX;
+            mMinY = minY;
+            mWidth = width;
+            mHeight = height;
+            mBits = bits;
+            mTimes = times;
+        }
+    }
+
+
+    public IndexedTileStore(
+            ITileStore store,
+            boolean trackTime)
+    {
+        mStore = store;
+        mTrackTime = trackTime;
+        mLevels = new Level[MAX_LEVEL + 1];
+        mPendingChanges = new ArrayList<>();
+    }
+
+
+    public ITileStore getStore()
+    {
+        return mStore;
+    }
+
+
+    /**
+     * Drop the index after the tiles are changed bypassing this wrapper, it is rebuilt on the next
+     * request
+     */
+    public synchronized void invalidate()
+    {
+        mGeneration++;
+        mState = STATE_NOT_LOADED;
+        mPendingChanges.clear();
+        for (int i = 0; i < mLevels.length; i++) {
+            mLevels[i] = null;
+        }
+    }
+
+
+    /**
+     * @return 1 if the tile is stored, 0 if it is absent, -1 if the index does not know
+     */
+    protected synchronized long find(TileItem tile)
+    {
+        if (STATE_LOADED != mState) {
+            load();
+            return -1;
+        }
+
+        int zoom = tile.getZoomLevel();
+        if (zoom < 0 || zoom > MAX_LEVEL) {
+            return -1;
+        }
+        Level level = mLevels[zoom];
+        if (null == level) {
+            return 0;
+        }
+        int index = level.indexOf(tile.getX(), tile.getY());
+        if (index < 0) {
+            return level.mOverflow ? -1 : 0;
+        }
+        if (!level.mBits.get(index)) {
+            return 0;
+        }
+        return null == level.mTimes ? 1 : level.mTimes[index] * 1000L;
+    }
+
+
+    protected synchronized void onChange(
+            int zoom,
+            int x,
+            int y,
+            long timestamp)
+    {
+        if (STATE_LOADING == mState) {
+            mPendingChanges.add(new long[] {zoom, x, y, timestamp});
+        } else if (STATE_LOADED == mState) {
+            set(zoom, x, y, timestamp);
+        }
+    }
+
+
+    /**
+     * @param timestamp
+     *         The tile timestamp or 0 if the tile is removed
+     */
+    protected void set(
+            int zoom,
+            int x,
+            int y,
+            long timestamp)
+    {
+        if (zoom < 0 || zoom > MAX_LEVEL) {
+            return;
+        }
+
+        Level level = mLevels[zoom];
+        if (null == level) {
+            if (0 == timestamp) {
+                return;
+            }
+            level = new Level();
+            mLevels[zoom] = level;
+        }
+
+        int index = level.indexOf(x, y);
+        if (index < 0 && timestamp != 0 && !level.mOverflow) {
+            grow(level, zoom, x, y);
+            index = level.indexOf(x, y);
+        }
+        if (index < 0) {
+            return;
+        }
+
+        level.mBits.set(index, timestamp != 0);
+        if (null != level.mTimes) {
+            level.mTimes[index] = getSeconds(timestamp);
+        }
+    }
+
+
+    protected void grow(
+            Level level,
+            int zoom,
+            int x,
+            int y)
+    {
+        int minX = x, minY = y, maxX = x, maxY = y;
+        int margin = MIN_LEVEL_SIZE / 2;
+        if (null != level.mBits) {
+            minX = Math.min(minX, level.mMinX);
+            minY = Math.min(minY, level.mMinY);
+            maxX = Math.max(maxX, level.mMinX + level.mWidth - 1);
+            maxY = Math.max(maxY, level.mMinY + level.mHeight - 1);
+            margin = Math.max(margin, Math.max(level.mWidth, level.mHeight) / 2);
+        }
+
+        // leave some space to grow
+        long tileCount = 1L << zoom;
+        minX = (int) Math.max(0, (long) minX - margin);
+        minY = (int) Math.max(0, (long) minY - margin);
+        maxX = (int) Math.min(tileCount - 1, (long) maxX + margin);
+        maxY = (int) Math.min(tileCount - 1, (long) maxY + margin);
+
+        if (!allocate(level, minX, minY, maxX, maxY)) {
+            // try without the margin
+            minX = Math.min(x, null == level.mBits ? x : level.mMinX);
+            minY = Math.min(y, null == level.mBits ? y : level.mMinY);
+            maxX = Math.max(x, null == level.mBits ? x : level.mMinX + level.mWidth - 1);
+            maxY = Math.max(y, null == level.mBits ? y : level.mMinY + level.mHeight - 1);
+            if (!allocate(level, minX, minY, maxX, maxY)) {
+                level.mOverflow = true;
+                if (null == level.mBits) {
+                    level.allocate(x, y, 1, 1, mTrackTime);
+                }
+            }
+        }
+    }
+
+
+    protected boolean allocate(
+            Level level,
+            int minX,
+            int minY,
+            int maxX,
+            int maxY)
+    {
+        long cells = ((long) maxX - minX + 1) * ((long) maxY - minY + 1);
+        if (cells > (mTrackTime ? MAX_TIMED_CELLS : MAX_LEVEL_CELLS)) {
+            return false;
+        }
+        level.allocate(minX, minY, maxX - minX + 1, maxY - minY + 1, mTrackTime);
+        return true;
+    }
+
+
+    protected void load()
+    {
+        if (STATE_NOT_LOADED != mState) {
+            return;
+        }
+        mState = STATE_LOADING;
+        final int generation = mGeneration;
+
+        getLoader().execute(
+                new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+                        final List<long[]> tiles = new ArrayList<>();
+                        mStore.visitTiles(
+                                new TileVisitor()
+                                {
+                                    @Override
+                                    public void onTile(
+                                            int zoom,
+                                            int x,
+                                            int y,
+                                            long size,
+                                            long timestamp)
+                                    {
+                                        tiles.add(new long[] {zoom, x, y, timestamp});
+                                    }
+                                });
+
+                        synchronized (IndexedTileStore.this) {
+                            if (generation == mGeneration) {
+                                build(tiles);
+                            }
+                        }
+                    }
+                });
+    }
+
+
+    protected void build(List<long[]> tiles)
+    {
+        // the bounds of the stored tiles per level
+        int[][] bounds = new int[MAX_LEVEL + 1][];
+        for (long[] tile : tiles) {
+            int zoom = (int) tile[0];
+            if (zoom < 0 || zoom > MAX_LEVEL) {
+                continue;
+            }
+            int x = (int) tile[1], y = (int) tile[2];
+            int[] bound = bounds[zoom];
+            if (null == bound) {
+                bounds[zoom] = new int[] {x, y, x, y};
+            } else {
+                bound[0] = Math.min(bound[0], x);
+                bound[1] = Math.min(bound[1], y);
+                bound[2] = Math.max(bound[2], x);
+                bound[3] = Math.max(bound[3], y);
+            }
+        }
+
+        for (int zoom = 0; zoom <= MAX_LEVEL; zoom++) {
+            mLevels[zoom] = null;
+            int[] bound = bounds[zoom];
+            if (null == bound) {
+                continue;
+            }
+            Level level = new Level();
+            if (!allocate(level, bound[0], bound[1], bound[2], bound[3])) {
+                // too wide, the level part is filled by the new tiles
+                level.mOverflow = true;
+                level.allocate(bound[0], bound[1], 1, 1, mTrackTime);
+            }
+            mLevels[zoom] = level;
+        }
+
+        for (long[] tile : tiles) {
+            setLoaded((int) tile[0], (int) tile[1], (int) tile[2], Math.max(tile[3], 1));
+        }
+        for (long[] change : mPendingChanges) {
+            set((int) change[0], (int) change[1], (int) change[2], change[3]);
+        }
+        mPendingChanges.clear();
+        mState = STATE_LOADED;
+    }
+
+
+    protected void setLoaded(
+            int zoom,
+            int x,
+            int y,
+            long timestamp)
+    {
+        if (zoom < 0 || zoom > MAX_LEVEL) {
+            return;
+        }
+        Level level = mLevels[zoom];
+        int index = level.indexOf(x, y);
+        if (index >= 0) {
+            level.mBits.set(index);
+            if (null != level.mTimes) {
+                level.mTimes[index] = getSeconds(timestamp);
+            }
+        }
+    }
+
+
+    protected static int getSeconds(long timestamp)
+    {
+        // 0 means the tile is absent
+        return (int) Math.max(timestamp / 1000, 1);
+    }
+
+
+    protected static synchronized ExecutorService getLoader()
+    {
+        if (null == mLoader) {
+            mLoader = Executors.newSingleThreadExecutor(
+                    new ThreadFactory()
+                    {
+                        @Override
+                        public Thread newThread(Runnable runnable)
+                        {
+                            Thread thread = new Thread(runnable, "IndexedTileStore");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return mLoader;
+    }
+
+
+    @Override
+    public long getTimestamp(TileItem tile)
+    {
+        long found = find(tile);
+        if (found < 0 || (found == 1 && !mTrackTime)) {
+            return mStore.getTimestamp(tile);
+        }
+        return found;
+    }
+
+
+    @Override
+    public byte[] getTileData(TileItem tile)
+    {
+        if (find(tile) == 0) {
+            return null;
+        }
+        return mStore.getTileData(tile);
+    }
+
+
+    @Override
+    public Bitmap getBitmap(
+            TileItem tile,
+            BitmapFactory.Options options,
+            int minSize)
+    {
+        if (find(tile) == 0) {
+            return null;
+        }
+        return mStore.getBitmap(tile, options, minSize);
+    }
+
+
+    @Override
+    public OutputStream getOutputStream(final TileItem tile)
+            throws IOException
+    {
+        return new FilterOutputStream(mStore.getOutputStream(tile))
+        {
+            @Override
+            public void write(
+                    byte[] buffer,
+                    int offset,
+                    int length)
+                    throws IOException
+            {
+                out.write(buffer, offset, length);
+            }
+
+
+            @Override
+            public void close()
+                    throws IOException
+            {
+                super.close();
+                onChange(tile.getZoomLevel(), tile.getX(), tile.getY(),
+                        System.currentTimeMillis());
+            }
+        };
+    }
+
+
+    @Override
+    public String[] getValidators(TileItem tile)
+    {
+        return mStore.getValidators(tile);
+    }
+
+
+    @Override
+    public void setValidators(
+            TileItem tile,
+            String[] validators)
+    {
+        mStore.setValidators(tile, validators);
+    }
+
+
+    @Override
+    public void touch(
+            TileItem tile,
+            long timestamp)
+    {
+        mStore.touch(tile, timestamp);
+        onChange(tile.getZoomLevel(), tile.getX(), tile.getY(), Math.max(timestamp, 1));
+    }
+
+
+    @Override
+    public void remove(TileItem tile)
+    {
+        mStore.remove(tile);
+        onChange(tile.getZoomLevel(), tile.getX(), tile.getY(), 0);
+    }
+
+
+    @Override
+    public void visitTiles(TileVisitor visitor)
+    {
+        mStore.visitTiles(visitor);
+    }
+
+
+    @Override
+    public void flush()
+    {
+        mStore.flush();
+    }
+
+
+    @Override
+    public void close()
+    {
+        invalidate();
+        mStore.close();
+    }
+}
@@ -0,0 +1,787 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.datasource;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.nextgis.maplib.api.IProgressor;
+import com.nextgis.maplib.api.ITileStore;
+import com.nextgis.maplib.util.BitmapPool;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The tiles stored in one MBTiles (SQLite) file. The tiles table has additional columns with the
+ * tile fetch time and HTTP validators. New tiles are kept in memory and written by batches in one
+ * transaction, the batch is written not later than FLUSH_INTERVAL after the first tile is queued.
+ * The tiles failed to write are kept in the queue and written with the next batch.
+ */
+public class MBTilesStore
+        implements ITileStore
+{
+    public static final String FILE_NAME = "tiles.mbtiles";
+
+    protected static final String TABLE_TILES      = "tiles";
+    protected static final String TABLE_METADATA   = "metadata";
+    protected static final String COLUMN_ZOOM      = "zoom_level";
+    protected static final String COLUMN_COLUMN    = "tile_column";
+    protected static final String COLUMN_ROW       = "tile_row";
+    protected static final String COLUMN_DATA      = "tile_data";
+    protected static final String COLUMN_TIMESTAMP = "timestamp";
+    protected static final String COLUMN_LAST_MODIFIED = "last_modified";
+    protected static final String COLUMN_ETAG          = "etag";
+    protected static final String TILE_WHERE       =
+            COLUMN_ZOOM + " = ? AND " + COLUMN_COLUMN + " = ? AND " + COLUMN_ROW + " = ?";
+
+    protected static final int  BATCH_SIZE     = 32;
+    protected static final int  IMPORT_BATCH   = 256;
+    protected static final long FLUSH_INTERVAL = 2000; // ms
+    // the tiles kept while the writes fail, the oldest ones are dropped
+    protected static final int  MAX_PENDING    = BATCH_SIZE * 8;
+
+    protected static ScheduledExecutorService mFlushExecutor;
+
+    protected final File           mFile;
+    protected       SQLiteDatabase mDatabase;
+    protected       boolean        mFlipY;
+    protected       boolean        mHasExtraColumns;
+
+    protected final Map<String, PendingTile> mPending = new LinkedHashMap<>();
+    protected       long                     mFirstPendingTime;
+    protected final Object                   mFlushLock = new Object();
+    protected       ScheduledFuture<?>       mScheduledFlush;
+    protected       boolean                  mClosed;
+
+    protected final Runnable mFlushRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            synchronized (mPending) {
+                mScheduledFlush = null;
+            }
+            flush();
+        }
+    };
+
+
+    protected static class PendingTile
+    {
+        protected final int    mZoom, mX, mY;
+        protected final byte[] mData;
+        protected       long   mTimestamp;
+        protected       String mLastModified, mETag;
+
+
+        protected PendingTile(
+                int zoom,
+                int x,
+                int y,
+                byte[] data,
+                long timestamp)
+        {
+            mZoom = zoom;
+            mX = x;
+            mY = y;
+            mData = data;
+            mTimestamp = timestamp;
+        }
+    }
+
+
+    /**
+     * @param file
+     *         The MBTiles file, created if absent
+     * @param flipY
+     *         true if the tiles are in OSM (XYZ) scheme, MBTiles keeps rows in TMS scheme
+     */
+    public MBTilesStore(
+            File file,
+            boolean flipY)
+            throws SQLException
+    {
+        mFile = file;
+        mFlipY = flipY;
+        mDatabase = SQLiteDatabase.openOrCreateDatabase(file, null);
+        mDatabase.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_METADATA +
+                          " (name TEXT, value TEXT)");
+        mDatabase.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_TILES + " (" + COLUMN_ZOOM +
+                          " INTEGER, " + COLUMN_COLUMN + " INTEGER, " + COLUMN_ROW +
+                          " INTEGER, " + COLUMN_DATA + " BLOB, " + COLUMN_TIMESTAMP +
+                          " INTEGER, " + COLUMN_LAST_MODIFIED + " TEXT, " + COLUMN_ETAG +
+                          " TEXT)");
+        mDatabase.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON " + TABLE_TILES +
+                          " (" + COLUMN_ZOOM + ", " + COLUMN_COLUMN + ", " + COLUMN_ROW + ")");
+        mHasExtraColumns = checkColumn(COLUMN_TIMESTAMP, "INTEGER") &&
+                           checkColumn(COLUMN_LAST_MODIFIED, "TEXT") &&
+                           checkColumn(COLUMN_ETAG, "TEXT");
+    }
+
+
+    /**
+     * The MBTiles files from other tools and older versions have no extra columns, add them if
+     * possible
+     */
+    protected boolean checkColumn(
+            String column,
+            String type)
+    {
+        Cursor cursor = mDatabase.rawQuery("PRAGMA table_info(" + TABLE_TILES + ")", null);
+        try {
+            int nameColumn = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameColumn))) {
+                    return true;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        try {
+            mDatabase.execSQL("ALTER TABLE " + TABLE_TILES + " ADD COLUMN " + column + " " + type);
+            return true;
+        } catch (SQLException e) {
+            // tiles may be a view
+            Log.d(TAG, "MBTiles " + mFile.getName() + " has no " + column + " column: " +
+                    e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+
+    public void setFlipY(boolean flipY)
+    {
+        mFlipY = flipY;
+    }
+
+
+    public File getFile()
+    {
+        return mFile;
+    }
+
+
+    protected int getRow(
+            int zoom,
+            int y)
+    {
+        return mFlipY ? (1 << zoom) - 1 - y : y;
+    }
+
+
+    protected String[] getTileArgs(TileItem tile)
+    {
+        return new String[] {
+                Integer.toString(tile.getZoomLevel()),
+                Integer.toString(tile.getX()),
+                Integer.toString(getRow(tile.getZoomLevel(), tile.getY()))};
+    }
+
+
+    protected PendingTile getPending(TileItem tile)
+    {
+        synchronized (mPending) {
+            return mPending.get(tile.getHash());
+        }
+    }
+
+
+    @Override
+    public long getTimestamp(TileItem tile)
+    {
+        PendingTile pending = getPending(tile);
+        if (null != pending) {
+            return pending.mTimestamp;
+        }
+
+        String column = mHasExtraColumns ? COLUMN_TIMESTAMP : COLUMN_ZOOM;
+        Cursor cursor = mDatabase.query(
+                TABLE_TILES, new String[] {column}, TILE_WHERE, getTileArgs(tile), null, null,
+                null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return 0;
+            }
+            if (!mHasExtraColumns || cursor.isNull(0)) {
+                return mFile.lastModified();
+            }
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    @Override
+    public byte[] getTileData(TileItem tile)
+    {
+        PendingTile pending = getPending(tile);
+        if (null != pending) {
+            return pending.mData;
+        }
+
+        Cursor cursor = mDatabase.query(
+                TABLE_TILES, new String[] {COLUMN_DATA}, TILE_WHERE, getTileArgs(tile), null,
+                null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return cursor.getBlob(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    @Override
+    public Bitmap getBitmap(
+            TileItem tile,
+            BitmapFactory.Options options,
+            int minSize)
+    {
+        byte[] data = getTileData(tile);
+        if (null == data) {
+            return null;
+        }
+        return BitmapPool.decodeByteArray(data, 0, data.length, options, minSize);
+    }
+
+
+    @Override
+    public String[] getValidators(TileItem tile)
+    {
+        String[] validators = new String[2];
+        PendingTile pending = getPending(tile);
+        if (null != pending) {
+            synchronized (mPending) {
+                validators[VALIDATOR_LAST_MODIFIED] = pending.mLastModified;
+                validators[VALIDATOR_ETAG] = pending.mETag;
+            }
+            return validators;
+        }
+
+        if (!mHasExtraColumns) {
+            return null;
+        }
+
+        Cursor cursor = mDatabase.query(
+                TABLE_TILES, new String[] {COLUMN_LAST_MODIFIED, COLUMN_ETAG}, TILE_WHERE,
+                getTileArgs(tile), null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            validators[VALIDATOR_LAST_MODIFIED] = cursor.getString(0);
+            validators[VALIDATOR_ETAG] = cursor.getString(1);
+            return validators;
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    @Override
+    public void setValidators(
+            TileItem tile,
+            String[] validators)
+    {
+        String lastModified = null == validators ? null : validators[VALIDATOR_LAST_MODIFIED];
+        String eTag = null == validators ? null : validators[VALIDATOR_ETAG];
+
+        synchronized (mPending) {
+            PendingTile pending = mPending.get(tile.getHash());
+            if (null != pending) {
+                pending.mLastModified = lastModified;
+                pending.mETag = eTag;
+                return;
+            }
+        }
+
+        if (!mHasExtraColumns) {
+            return;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_LAST_MODIFIED, lastModified);
+        values.put(COLUMN_ETAG, eTag);
+        mDatabase.update(TABLE_TILES, values, TILE_WHERE, getTileArgs(tile));
+    }
+
+
+    @Override
+    public void touch(
+            TileItem tile,
+            long timestamp)
+    {
+        synchronized (mPending) {
+            PendingTile pending = mPending.get(tile.getHash());
+            if (null != pending) {
+                pending.mTimestamp = timestamp;
+                return;
+            }
+        }
+
+        if (!mHasExtraColumns) {
+            return;
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_TIMESTAMP, timestamp);
+        mDatabase.update(TABLE_TILES, values, TILE_WHERE, getTileArgs(tile));
+    }
+
+
+    @Override
+    public void remove(TileItem tile)
+    {
+        synchronized (mPending) {
+            mPending.remove(tile.getHash());
+        }
+        mDatabase.delete(TABLE_TILES, TILE_WHERE, getTileArgs(tile));
+    }
+
+
+    @Override
+    public void visitTiles(TileVisitor visitor)
+    {
+        String timestamp = mHasExtraColumns ? COLUMN_TIMESTAMP : "0";
+        Cursor cursor = mDatabase.rawQuery(
+                "SELECT " + COLUMN_ZOOM + ", " + COLUMN_COLUMN + ", " + COLUMN_ROW + ", length(" +
+                COLUMN_DATA + "), " + timestamp + " FROM " + TABLE_TILES, null);
+        try {
+            while (cursor.moveToNext()) {
+                int zoom = cursor.getInt(0);
+                // the row conversion is symmetric
+                visitor.onTile(zoom, cursor.getInt(1), getRow(zoom, cursor.getInt(2)),
+                               cursor.getLong(3), cursor.getLong(4));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    @Override
+    public OutputStream getOutputStream(final TileItem tile)
+    {
+        return new ByteArrayOutputStream()
+        {
+            protected boolean mClosed;
+
+
+            @Override
+            public void close()
+                    throws IOException
+            {
+                super.close();
+                if (!mClosed) {
+                    mClosed = true;
+                    putTile(tile.getZoomLevel(), tile.getX(), tile.getY(), toByteArray(),
+                            System.currentTimeMillis());
+                }
+            }
+        };
+    }
+
+
+    /**
+     * Queue the tile to write, the queue is flushed by batches
+     */
+    public void putTile(
+            int zoom,
+            int x,
+            int y,
+            byte[] data,
+            long timestamp)
+    {
+        if (null == data || data.length == 0) {
+            return;
+        }
+
+        boolean flush;
+        synchronized (mPending) {
+            if (mPending.isEmpty()) {
+                mFirstPendingTime = System.currentTimeMillis();
+            }
+            mPending.put(
+                    "z" + zoom + "." + x + "." + y, new PendingTile(zoom, x, y, data, timestamp));
+            flush = mPending.size() >= BATCH_SIZE ||
+                    System.currentTimeMillis() - mFirstPendingTime > FLUSH_INTERVAL;
+            if (!flush) {
+                scheduleFlush();
+            }
+        }
+
+        if (flush) {
+            flush();
+        }
+    }
+
+
+    @Override
+    public void flush()
+    {
+        synchronized (mFlushLock) {
+            List<Map.Entry<String, PendingTile>> tiles;
+            synchronized (mPending) {
+                if (mClosed || mPending.isEmpty()) {
+                    return;
+                }
+                tiles = new ArrayList<>(mPending.entrySet());
+            }
+
+            boolean written;
+            try {
+                writeTiles(tiles);
+                written = true;
+            } catch (SQLException e) {
+                Log.w(TAG, "MBTiles write failed, the tiles are kept to retry: " +
+                           e.getLocalizedMessage());
+                written = false;
+            }
+
+            synchronized (mPending) {
+                if (written) {
+                    for (Map.Entry<String, PendingTile> entry : tiles) {
+                        // keep the tile if it was replaced while writing
+                        if (mPending.get(entry.getKey()) == entry.getValue()) {
+                            mPending.remove(entry.getKey());
+                        }
+                    }
+                } else {
+                    dropOldestPending();
+                }
+                mFirstPendingTime = System.currentTimeMillis();
+                if (!mPending.isEmpty()) {
+                    scheduleFlush();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Drop the oldest tiles beyond MAX_PENDING, called while the writes fail
+     */
+    protected void dropOldestPending()
+    {
+        int count = mPending.size() - MAX_PENDING;
+        if (count <= 0) {
+            return;
+        }
+        Iterator<String> iterator = mPending.keySet().iterator();
+        for (int i = 0; i < count; i++) {
+            iterator.next();
+            iterator.remove();
+        }
+        Log.w(TAG, "MBTiles write failed, " + count + " tiles are dropped");
+    }
+
+
+    /**
+     * Flush the queue after FLUSH_INTERVAL if it is not flushed before, called with mPending
+     * locked
+     */
+    protected void scheduleFlush()
+    {
+        if (null != mScheduledFlush || mClosed) {
+            return;
+        }
+        mScheduledFlush = getFlushExecutor().schedule(
+                mFlushRunnable, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+
+    protected static synchronized ScheduledExecutorService getFlushExecutor()
+    {
+        if (null == mFlushExecutor) {
+            mFlushExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory()
+                    {
+                        @Override
+                        public Thread newThread(Runnable runnable)
+                        {
+                            Thread thread = new Thread(runnable, "MBTilesStore");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return mFlushExecutor;
+    }
+
+
+    protected void writeTiles(List<Map.Entry<String, PendingTile>> tiles)
+            throws SQLException
+    {
+        SQLiteStatement statement = mDatabase.compileStatement(getInsertSQL());
+        mDatabase.beginTransaction();
+        try {
+            for (Map.Entry<String, PendingTile> entry : tiles) {
+                PendingTile tile = entry.getValue();
+                synchronized (mPending) {
+                    bindTile(statement, tile.mZoom, tile.mX, tile.mY, tile.mData,
+                             tile.mTimestamp, tile.mLastModified, tile.mETag);
+                }
+                statement.executeInsert();
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+            statement.close();
+        }
+    }
+
+
+    protected String getInsertSQL()
+    {
+        if (mHasExtraColumns) {
+            return "INSERT OR REPLACE INTO " + TABLE_TILES + " (" + COLUMN_ZOOM + ", " +
+                   COLUMN_COLUMN + ", " + COLUMN_ROW + ", " + COLUMN_DATA + ", " +
+                   COLUMN_TIMESTAMP + ", " + COLUMN_LAST_MODIFIED + ", " + COLUMN_ETAG +
+                   ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+        }
+        return "INSERT OR REPLACE INTO " + TABLE_TILES + " (" + COLUMN_ZOOM + ", " +
+               COLUMN_COLUMN + ", " + COLUMN_ROW + ", " + COLUMN_DATA + ") VALUES (?, ?, ?, ?)";
+    }
+
+
+    protected void bindTile(
+            SQLiteStatement statement,
+            int zoom,
+            int x,
+            int y,
+            byte[] data,
+            long timestamp,
+            String lastModified,
+            String eTag)
+    {
+        statement.clearBindings();
+        statement.bindLong(1, zoom);
+        statement.bindLong(2, x);
+        statement.bindLong(3, getRow(zoom, y));
+        statement.bindBlob(4, data);
+        if (mHasExtraColumns) {
+            statement.bindLong(5, timestamp);
+            if (null != lastModified) {
+                statement.bindString(6, lastModified);
+            }
+            if (null != eTag) {
+                statement.bindString(7, eTag);
+            }
+        }
+    }
+
+
+    public void setMetadata(
+            String name,
+            String value)
+    {
+        mDatabase.delete(TABLE_METADATA, "name = ?", new String[] {name});
+        mDatabase.execSQL("INSERT INTO " + TABLE_METADATA + " (name, value) VALUES (?, ?)",
+                          new Object[] {name, value});
+    }
+
+
+    /**
+     * Move the tiles from {z}/{x}/{y}.tile directories to this file. The file modification time is
+     * used as the tile timestamp.
+     *
+     * @param path
+     *         The directory with zoom level subdirectories
+     * @param deleteFiles
+     *         Delete the tile files after import
+     * @param progressor
+     *         The progress by zoom levels, may be null
+     *
+     * @return The count of imported tiles
+     */
+    public int importDirectory(
+            File path,
+            boolean deleteFiles,
+            IProgressor progressor)
+            throws IOException
+    {
+        File[] zoomLevels = path.listFiles();
+        if (null == zoomLevels) {
+            return 0;
+        }
+
+        if (null != progressor) {
+            progressor.setMax(zoomLevels.length);
+            progressor.setValue(0);
+        }
+
+        int count = 0;
+        byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+        SQLiteStatement statement = mDatabase.compileStatement(getInsertSQL());
+
+        try {
+            for (int i = 0; i < zoomLevels.length; i++) {
+                if (null != progressor) {
+                    if (progressor.isCanceled()) {
+                        break;
+                    }
+                    progressor.setValue(i);
+                }
+
+                File zoomLevel = zoomLevels[i];
+                if (!zoomLevel.isDirectory() ||
+                        !FileUtil.isIntegerParseInt(zoomLevel.getName())) {
+                    continue;
+                }
+                int zoom = Integer.parseInt(zoomLevel.getName());
+                File[] levelsX = zoomLevel.listFiles();
+                if (null == levelsX) {
+                    continue;
+                }
+
+                List<File> batch = new ArrayList<>(IMPORT_BATCH);
+                mDatabase.beginTransaction();
+                try {
+                    for (File levelX : levelsX) {
+                        if (!FileUtil.isIntegerParseInt(levelX.getName())) {
+                            continue;
+                        }
+                        int x = Integer.parseInt(levelX.getName());
+                        File[] tiles = levelX.listFiles();
+                        if (null == tiles) {
+                            continue;
+                        }
+
+                        for (File tile : tiles) {
+                            String name = tile.getName();
+                            if (!name.endsWith(TileDirectoryStore.TILE_EXT)) {
+                                continue;
+                            }
+                            name = name.substring(
+                                    0, name.length() - TileDirectoryStore.TILE_EXT.length());
+                            if (!FileUtil.isIntegerParseInt(name)) {
+                                continue;
+                            }
+
+                            bindTile(statement, zoom, x, Integer.parseInt(name),
+                                     readFile(tile, buffer), tile.lastModified(), null, null);
+                            statement.executeInsert();
+                            batch.add(tile);
+                            count++;
+
+                            if (batch.size() >= IMPORT_BATCH) {
+                                mDatabase.setTransactionSuccessful();
+                                mDatabase.endTransaction();
+                                if (deleteFiles) {
+                                    deleteFiles(batch);
+                                }
+                                batch.clear();
+                                mDatabase.beginTransaction();
+                            }
+                        }
+                    }
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+
+                if (deleteFiles) {
+                    deleteFiles(batch);
+                    FileUtil.deleteRecursive(zoomLevel);
+                }
+            }
+        } finally {
+            statement.close();
+        }
+
+        return count;
+    }
+
+
+    protected static byte[] readFile(
+            File file,
+            byte[] buffer)
+            throws IOException
+    {
+        InputStream input = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream((int) file.length());
+            FileUtil.copyStream(input, output, buffer, buffer.length);
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+
+    protected static void deleteFiles(List<File> files)
+    {
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+
+    @Override
+    public void close()
+    {
+        flush();
+        synchronized (mFlushLock) {
+            synchronized (mPending) {
+                mClosed = true;
+                if (null != mScheduledFlush) {
+                    mScheduledFlush.cancel(false);
+                    mScheduledFlush = null;
+                }
+            }
+            mDatabase.close();
+        }
+    }
+}
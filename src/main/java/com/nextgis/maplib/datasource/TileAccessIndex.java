@@ -0,0 +1,541 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.datasource;
+
+import android.util.Log;
+
+import com.nextgis.maplib.api.ITileStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The sizes and last access times of the stored tiles of a layer. The index is kept in memory in
+ * a primitive hash table (16 bytes per slot) and saved to a compact binary file (24 bytes per
+ * tile), so the least recently used tiles are found without file system calls. The tiles are
+ * sorted by the access time only to evict. The index is built from the tile store on the first
+ * load.
+ */
+public class TileAccessIndex
+{
+    public static final String FILE_NAME = "tiles.idx";
+
+    protected static final int FILE_VERSION = 1;
+
+    // the tile key packs zoom, x and y, the levels up to MAX_ZOOM are indexed
+    protected static final int  MAX_ZOOM = 29;
+    protected static final int  XY_BITS  = 29;
+    protected static final long XY_MASK  = (1L << XY_BITS) - 1;
+
+    protected final File       mFile;
+    protected final ITileStore mStore;
+
+    protected TileTable mTable;
+    protected long      mTotalSize;
+    protected boolean   mLoaded, mDirty;
+
+
+    /**
+     * The tile selected to evict
+     */
+    public static class Entry
+    {
+        protected final long mKey;
+        protected final long mSize;
+        protected final long mAccessTime;
+
+
+        protected Entry(
+                long key,
+                long size,
+                long accessTime)
+        {
+            mKey = key;
+            mSize = size;
+            mAccessTime = accessTime;
+        }
+
+
+        public long getSize()
+        {
+            return mSize;
+        }
+
+
+        public long getAccessTime()
+        {
+            return mAccessTime;
+        }
+
+
+        public TileItem getTile()
+        {
+            // the stores do not need the tile envelope
+            return new TileItem(getX(mKey), getY(mKey), getZoom(mKey), null);
+        }
+    }
+
+
+    public static final Comparator<Entry> ACCESS_COMPARATOR = new Comparator<Entry>()
+    {
+        @Override
+        public int compare(
+                Entry lhs,
+                Entry rhs)
+        {
+            return lhs.mAccessTime < rhs.mAccessTime
+                   ? -1
+                   : (lhs.mAccessTime == rhs.mAccessTime ? 0 : 1);
+        }
+    };
+
+
+    /**
+     * The open addressing hash table of the tile keys with the parallel arrays of the tile sizes
+     * and the access times in seconds. The removed keys are shifted back, so no tombstones are
+     * left.
+     */
+    protected static class TileTable
+    {
+        protected static final long FREE_KEY         = -1;
+        protected static final int  INITIAL_CAPACITY = 64;
+
+        protected long[] mKeys;
+        protected int[]  mSizes;
+        protected int[]  mTimes;
+        protected int    mCount;
+
+
+        protected TileTable()
+        {
+            allocate(INITIAL_CAPACITY);
+        }
+
+
+        protected void allocate(int capacity)
+        {
+            mKeys = new long[capacity];
+            Arrays.fill(mKeys, FREE_KEY);
+            mSizes = new int[capacity];
+            mTimes = new int[capacity];
+            mCount = 0;
+        }
+
+
+        protected static int hash(long key)
+        {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32);
+        }
+
+
+        /**
+         * @return The slot of the key or -1 if the key is absent
+         */
+        protected int indexOf(long key)
+        {
+            int mask = mKeys.length - 1;
+            int index = hash(key) & mask;
+            while (mKeys[index] != FREE_KEY) {
+                if (mKeys[index] == key) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+
+        /**
+         * @return The slot of the key, the absent key is added with zero size and time
+         */
+        protected int add(long key)
+        {
+            // the load factor is not more than 3/4
+            if ((mCount + 1) * 4 > mKeys.length * 3) {
+                grow();
+            }
+
+            int mask = mKeys.length - 1;
+            int index = hash(key) & mask;
+            while (mKeys[index] != FREE_KEY) {
+                if (mKeys[index] == key) {
+                    return index;
+                }
+                index = (index + 1) & mask;
+            }
+            mKeys[index] = key;
+            mSizes[index] = 0;
+            mTimes[index] = 0;
+            mCount++;
+            return index;
+        }
+
+
+        protected void removeAt(int index)
+        {
+            int mask = mKeys.length - 1;
+            int hole = index;
+            int next = (index + 1) & mask;
+            while (mKeys[next] != FREE_KEY) {
+                // move the key to the hole if the hole is between its home slot and the key
+                int home = hash(mKeys[next]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    mKeys[hole] = mKeys[next];
+                    mSizes[hole] = mSizes[next];
+                    mTimes[hole] = mTimes[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            mKeys[hole] = FREE_KEY;
+            mCount--;
+        }
+
+
+        protected void grow()
+        {
+            long[] keys = mKeys;
+            int[] sizes = mSizes;
+            int[] times = mTimes;
+            allocate(keys.length * 2);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != FREE_KEY) {
+                    int index = add(keys[i]);
+                    mSizes[index] = sizes[i];
+                    mTimes[index] = times[i];
+                }
+            }
+        }
+    }
+
+
+    public TileAccessIndex(
+            File path,
+            ITileStore store)
+    {
+        mFile = new File(path, FILE_NAME);
+        mStore = store;
+        mTable = new TileTable();
+    }
+
+
+    /**
+     * @return The packed tile key or -1 if the zoom level is not indexed
+     */
+    protected static long getKey(
+            int zoom,
+            int x,
+            int y)
+    {
+        if (zoom < 0 || zoom > MAX_ZOOM || x < 0 || x > XY_MASK || y < 0 || y > XY_MASK) {
+            return TileTable.FREE_KEY;
+        }
+        return ((long) zoom << (XY_BITS * 2)) | ((long) x << XY_BITS) | y;
+    }
+
+
+    protected static int getZoom(long key)
+    {
+        return (int) (key >>> (XY_BITS * 2));
+    }
+
+
+    protected static int getX(long key)
+    {
+        return (int) ((key >>> XY_BITS) & XY_MASK);
+    }
+
+
+    protected static int getY(long key)
+    {
+        return (int) (key & XY_MASK);
+    }
+
+
+    protected static int getSeconds(long time)
+    {
+        return (int) (time / 1000);
+    }
+
+
+    /**
+     * Add the tile to the table, called when the index is loaded
+     */
+    protected static void put(
+            TileTable table,
+            int zoom,
+            int x,
+            int y,
+            long size,
+            long accessTime)
+    {
+        long key = getKey(zoom, x, y);
+        if (key == TileTable.FREE_KEY) {
+            return;
+        }
+        int index = table.add(key);
+        table.mSizes[index] = (int) size;
+        table.mTimes[index] = getSeconds(accessTime);
+    }
+
+
+    public ITileStore getStore()
+    {
+        return mStore;
+    }
+
+
+    public synchronized void onAccess(TileItem tile)
+    {
+        long key = getKey(tile.getZoomLevel(), tile.getX(), tile.getY());
+        int index = mTable.indexOf(key);
+        if (index >= 0) {
+            mTable.mTimes[index] = getSeconds(System.currentTimeMillis());
+            mDirty = true;
+        }
+    }
+
+
+    public synchronized void onWrite(
+            TileItem tile,
+            long size)
+    {
+        long key = getKey(tile.getZoomLevel(), tile.getX(), tile.getY());
+        if (key == TileTable.FREE_KEY) {
+            return;
+        }
+        int index = mTable.add(key);
+        mTotalSize += size - mTable.mSizes[index];
+        mTable.mSizes[index] = (int) size;
+        mTable.mTimes[index] = getSeconds(System.currentTimeMillis());
+        mDirty = true;
+    }
+
+
+    public synchronized long getTotalSize()
+    {
+        return mTotalSize;
+    }
+
+
+    /**
+     * @return The least recently used tiles, the oldest first
+     */
+    public synchronized List<Entry> getOldest(int count)
+    {
+        // keep the newest of the selected on top to replace it
+        PriorityQueue<Entry> queue =
+                new PriorityQueue<>(count + 1, Collections.reverseOrder(ACCESS_COMPARATOR));
+        long[] keys = mTable.mKeys;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == TileTable.FREE_KEY) {
+                continue;
+            }
+            long accessTime = mTable.mTimes[i] * 1000L;
+            if (queue.size() < count) {
+                queue.add(new Entry(keys[i], mTable.mSizes[i], accessTime));
+            } else if (accessTime < queue.peek().mAccessTime) {
+                queue.poll();
+                queue.add(new Entry(keys[i], mTable.mSizes[i], accessTime));
+            }
+        }
+
+        List<Entry> result = new ArrayList<>(queue);
+        Collections.sort(result, ACCESS_COMPARATOR);
+        return result;
+    }
+
+
+    /**
+     * Remove the tile from the store and the index, the tile accessed after it was selected is
+     * kept
+     */
+    public void evict(Entry entry)
+    {
+        synchronized (this) {
+            int index = mTable.indexOf(entry.mKey);
+            if (index < 0 || mTable.mTimes[index] * 1000L != entry.mAccessTime) {
+                return;
+            }
+            mTotalSize -= mTable.mSizes[index];
+            mTable.removeAt(index);
+            mDirty = true;
+        }
+        mStore.remove(entry.getTile());
+    }
+
+
+    /**
+     * Load the index file or build the index from the store. Called in background.
+     */
+    public void load()
+    {
+        synchronized (this) {
+            if (mLoaded) {
+                return;
+            }
+        }
+
+        TileTable loaded = readFile();
+        if (null == loaded) {
+            final TileTable table = new TileTable();
+            mStore.visitTiles(
+                    new ITileStore.TileVisitor()
+                    {
+                        @Override
+                        public void onTile(
+                                int zoom,
+                                int x,
+                                int y,
+                                long size,
+                                long timestamp)
+                        {
+                            put(table, zoom, x, y, size, timestamp);
+                        }
+                    });
+            loaded = table;
+        }
+
+        synchronized (this) {
+            // keep the tiles written while loading
+            long[] keys = loaded.mKeys;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == TileTable.FREE_KEY || mTable.indexOf(keys[i]) >= 0) {
+                    continue;
+                }
+                int index = mTable.add(keys[i]);
+                mTable.mSizes[index] = loaded.mSizes[i];
+                mTable.mTimes[index] = loaded.mTimes[i];
+                mTotalSize += loaded.mSizes[i];
+            }
+            mLoaded = true;
+            mDirty = true;
+        }
+    }
+
+
+    /**
+     * @return The table read from the index file or null if the file is absent or broken
+     */
+    protected TileTable readFile()
+    {
+        if (!mFile.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream input =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (input.readInt() != FILE_VERSION) {
+                    return null;
+                }
+                int count = input.readInt();
+                TileTable table = new TileTable();
+                for (int i = 0; i < count; i++) {
+                    put(table, input.readInt(), input.readInt(), input.readInt(), input.readInt(),
+                            input.readLong());
+                }
+                return table;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Tile index " + mFile + " is broken: " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+
+    public void save()
+    {
+        long[] keys;
+        int[] sizes, times;
+        int count;
+        synchronized (this) {
+            if (!mLoaded || !mDirty) {
+                return;
+            }
+            mDirty = false;
+            keys = mTable.mKeys.clone();
+            sizes = mTable.mSizes.clone();
+            times = mTable.mTimes.clone();
+            count = mTable.mCount;
+        }
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream output =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try {
+                output.writeInt(FILE_VERSION);
+                output.writeInt(count);
+                for (int i = 0; i < keys.length; i++) {
+                    if (keys[i] == TileTable.FREE_KEY) {
+                        continue;
+                    }
+                    output.writeInt(getZoom(keys[i]));
+                    output.writeInt(getX(keys[i]));
+                    output.writeInt(getY(keys[i]));
+                    output.writeInt(sizes[i]);
+                    output.writeLong(times[i] * 1000L);
+                }
+            } finally {
+                output.close();
+            }
+            if (!tmpFile.renameTo(mFile)) {
+                Log.d(TAG, "Tile index " + mFile + " is not saved");
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Tile index " + mFile + " is not saved: " + e.getLocalizedMessage());
+        }
+    }
+
+
+    public void delete()
+    {
+        synchronized (this) {
+            mTable = new TileTable();
+            mTotalSize = 0;
+            mDirty = false;
+        }
+        mFile.delete();
+    }
+}
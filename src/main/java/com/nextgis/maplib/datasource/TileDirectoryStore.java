@@ -0,0 +1,314 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.datasource;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.nextgis.maplib.api.ITileStore;
+import com.nextgis.maplib.util.BitmapPool;
+import com.nextgis.maplib.util.FileUtil;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The tiles stored as separate files in {z}/{x}/{y}.tile directories. The file modification time
+ * is the tile timestamp. Some file systems (FUSE, sdcardfs) do not change it, then the revalidation
+ * time is kept in the {z}/{x}/{y}.val validators file.
+ */
+public class TileDirectoryStore
+        implements ITileStore
+{
+    public static final String TILE_EXT       = ".tile";
+    public static final String VALIDATORS_EXT = ".val";
+
+    protected static final String JSON_LAST_MODIFIED_KEY = "last_modified";
+    protected static final String JSON_ETAG_KEY          = "etag";
+    protected static final String JSON_REVALIDATED_KEY   = "revalidated";
+
+    protected          File    mPath;
+    // null until known, the probe needs the store folder
+    protected volatile Boolean mTouchSupported;
+
+
+    public TileDirectoryStore(File path)
+    {
+        mPath = path;
+    }
+
+
+    public File getTileFile(TileItem tile)
+    {
+        return new File(mPath, tile.toString("{z}/{x}/{y}" + TILE_EXT));
+    }
+
+
+    @Override
+    public long getTimestamp(TileItem tile)
+    {
+        // lastModified returns 0 for absent files, so one call replaces exists()
+        long timestamp = getTileFile(tile).lastModified();
+        if (timestamp == 0 || isTouchSupported()) {
+            return timestamp;
+        }
+        return Math.max(timestamp, getRevalidated(tile));
+    }
+
+
+    /**
+     * @return true if the file modification time can be changed, the store folder is probed once
+     */
+    protected boolean isTouchSupported()
+    {
+        Boolean supported = mTouchSupported;
+        if (null == supported) {
+            if (!mPath.exists()) {
+                return true;
+            }
+            supported = mPath.setLastModified(mPath.lastModified());
+            mTouchSupported = supported;
+        }
+        return supported;
+    }
+
+
+    /**
+     * @return The revalidation time from the validators file or 0
+     */
+    protected long getRevalidated(TileItem tile)
+    {
+        File file = getValidatorsFile(tile);
+        if (!file.exists()) {
+            return 0;
+        }
+
+        try {
+            return new JSONObject(FileUtil.readFromFile(file)).optLong(JSON_REVALIDATED_KEY);
+        } catch (IOException | JSONException e) {
+            return 0;
+        }
+    }
+
+
+    @Override
+    public byte[] getTileData(TileItem tile)
+    {
+        File tileFile = getTileFile(tile);
+        try {
+            FileInputStream input = new FileInputStream(tileFile);
+            try {
+                byte[] data = new byte[(int) tileFile.length()];
+                int read = 0;
+                while (read < data.length) {
+                    int count = input.read(data, read, data.length - read);
+                    if (count < 0) {
+                        return null;
+                    }
+                    read += count;
+                }
+                return data;
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            // the tile is absent
+            return null;
+        }
+    }
+
+
+    @Override
+    public Bitmap getBitmap(
+            TileItem tile,
+            BitmapFactory.Options options,
+            int minSize)
+    {
+        File tileFile = getTileFile(tile);
+        if (!tileFile.exists()) {
+            return null;
+        }
+        return BitmapPool.decodeFile(tileFile.getAbsolutePath(), options, minSize);
+    }
+
+
+    @Override
+    public OutputStream getOutputStream(TileItem tile)
+            throws IOException
+    {
+        File tileFile = getTileFile(tile);
+        FileUtil.createDir(tileFile.getParentFile());
+        return new FileOutputStream(tileFile);
+    }
+
+
+    protected File getValidatorsFile(TileItem tile)
+    {
+        return new File(mPath, tile.toString("{z}/{x}/{y}" + VALIDATORS_EXT));
+    }
+
+
+    @Override
+    public String[] getValidators(TileItem tile)
+    {
+        File file = getValidatorsFile(tile);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject(FileUtil.readFromFile(file));
+            String[] validators = new String[2];
+            validators[VALIDATOR_LAST_MODIFIED] = jsonObject.optString(JSON_LAST_MODIFIED_KEY, null);
+            validators[VALIDATOR_ETAG] = jsonObject.optString(JSON_ETAG_KEY, null);
+            return validators;
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+
+
+    @Override
+    public void setValidators(
+            TileItem tile,
+            String[] validators)
+    {
+        File file = getValidatorsFile(tile);
+        if (null == validators || null == validators[VALIDATOR_LAST_MODIFIED] &&
+                null == validators[VALIDATOR_ETAG]) {
+            file.delete();
+            return;
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(JSON_LAST_MODIFIED_KEY, validators[VALIDATOR_LAST_MODIFIED]);
+            jsonObject.put(JSON_ETAG_KEY, validators[VALIDATOR_ETAG]);
+            FileUtil.writeToFile(file, jsonObject.toString());
+        } catch (IOException | JSONException e) {
+            file.delete();
+        }
+    }
+
+
+    @Override
+    public void touch(
+            TileItem tile,
+            long timestamp)
+    {
+        if (getTileFile(tile).setLastModified(timestamp)) {
+            return;
+        }
+        mTouchSupported = false;
+
+        // keep the revalidation time with the validators
+        File file = getValidatorsFile(tile);
+        try {
+            JSONObject jsonObject = file.exists()
+                                    ? new JSONObject(FileUtil.readFromFile(file))
+                                    : new JSONObject();
+            jsonObject.put(JSON_REVALIDATED_KEY, timestamp);
+            FileUtil.writeToFile(file, jsonObject.toString());
+        } catch (IOException | JSONException e) {
+            Log.d(TAG, "Tile " + tile.getHash() + " revalidation time is not saved: " +
+                       e.getLocalizedMessage());
+        }
+    }
+
+
+    @Override
+    public void remove(TileItem tile)
+    {
+        getTileFile(tile).delete();
+        getValidatorsFile(tile).delete();
+    }
+
+
+    @Override
+    public void visitTiles(TileVisitor visitor)
+    {
+        File[] zoomLevels = mPath.listFiles();
+        if (null == zoomLevels) {
+            return;
+        }
+
+        for (File zoomLevel : zoomLevels) {
+            if (!zoomLevel.isDirectory() || !FileUtil.isIntegerParseInt(zoomLevel.getName())) {
+                continue;
+            }
+            int zoom = Integer.parseInt(zoomLevel.getName());
+            File[] levelsX = zoomLevel.listFiles();
+            if (null == levelsX) {
+                continue;
+            }
+
+            for (File levelX : levelsX) {
+                if (!FileUtil.isIntegerParseInt(levelX.getName())) {
+                    continue;
+                }
+                int x = Integer.parseInt(levelX.getName());
+                File[] tiles = levelX.listFiles();
+                if (null == tiles) {
+                    continue;
+                }
+
+                for (File tile : tiles) {
+                    String name = tile.getName();
+                    if (!name.endsWith(TILE_EXT)) {
+                        continue;
+                    }
+                    name = name.substring(0, name.length() - TILE_EXT.length());
+                    if (FileUtil.isIntegerParseInt(name)) {
+                        visitor.onTile(zoom, x, Integer.parseInt(name), tile.length(),
+                                       tile.lastModified());
+                    }
+                }
+            }
+        }
+    }
+
+
+    @Override
+    public void flush()
+    {
+
+    }
+
+
+    @Override
+    public void close()
+    {
+
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.datasource;
+
+import android.util.Log;
+
+import com.nextgis.maplib.util.FileUtil;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The remote tiles the server has not returned. The tiles are not requested again until the entry
+ * expires, the not found tiles are kept longer than the tiles failed by a server or a network
+ * error. The entries are saved to the layer folder, not more often than SAVE_INTERVAL.
+ */
+public class TileNegativeCache
+{
+    public static final String FILE_NAME = "missing_tiles.json";
+
+    public static final long DEFAULT_NOT_FOUND_TTL = 24 * 60 * 60 * 1000; // ms
+    public static final long DEFAULT_ERROR_TTL     = 5 * 60 * 1000; // ms
+
+    protected static final long SAVE_INTERVAL = 30 * 1000; // ms
+
+    protected final File              mFile;
+    protected final Map<String, Long> mExpires;
+    protected       long              mNotFoundTTL, mErrorTTL;
+    protected       boolean           mLoaded, mDirty;
+    protected       long              mLastSave;
+
+
+    public TileNegativeCache(File path)
+    {
+        mFile = new File(path, FILE_NAME);
+        mExpires = new HashMap<>();
+        mNotFoundTTL = DEFAULT_NOT_FOUND_TTL;
+        mErrorTTL = DEFAULT_ERROR_TTL;
+    }
+
+
+    public synchronized void setTTL(
+            long notFoundTTL,
+            long errorTTL)
+    {
+        mNotFoundTTL = notFoundTTL;
+        mErrorTTL = errorTTL;
+    }
+
+
+    /**
+     * @return true if the tile is known to be absent on the server or has failed recently
+     */
+    public synchronized boolean contains(TileItem tile)
+    {
+        load();
+        Long expires = mExpires.get(tile.getHash());
+        if (null == expires) {
+            return false;
+        }
+        if (expires > System.currentTimeMillis()) {
+            return true;
+        }
+        mExpires.remove(tile.getHash());
+        mDirty = true;
+        return false;
+    }
+
+
+    public void onNotFound(TileItem tile)
+    {
+        put(tile, mNotFoundTTL);
+    }
+
+
+    public void onError(TileItem tile)
+    {
+        put(tile, mErrorTTL);
+    }
+
+
+    public synchronized void remove(TileItem tile)
+    {
+        load();
+        if (null != mExpires.remove(tile.getHash())) {
+            mDirty = true;
+        }
+    }
+
+
+    public synchronized void clear()
+    {
+        mExpires.clear();
+        mLoaded = true;
+        mDirty = false;
+        mFile.delete();
+    }
+
+
+    protected synchronized void put(
+            TileItem tile,
+            long ttl)
+    {
+        load();
+        mExpires.put(tile.getHash(), System.currentTimeMillis() + ttl);
+        mDirty = true;
+        if (System.currentTimeMillis() - mLastSave >= SAVE_INTERVAL) {
+            save();
+        }
+    }
+
+
+    protected void load()
+    {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject(FileUtil.readFromFile(mFile));
+            long now = System.currentTimeMillis();
+            Iterator<String> keys = jsonObject.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                long expires = jsonObject.getLong(key);
+                if (expires > now) {
+                    mExpires.put(key, expires);
+                }
+            }
+        } catch (IOException | JSONException e) {
+            Log.d(TAG, "Missing tiles list " + mFile + " is broken: " + e.getLocalizedMessage());
+        }
+    }
+
+
+    public synchronized void save()
+    {
+        if (!mDirty) {
+            return;
+        }
+        mDirty = false;
+        mLastSave = System.currentTimeMillis();
+
+        try {
+            JSONObject jsonObject = new JSONObject();
+            Iterator<Map.Entry<String, Long>> iterator = mExpires.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Long> entry = iterator.next();
+                if (entry.getValue() > mLastSave) {
+                    jsonObject.put(entry.getKey(), entry.getValue());
+                } else {
+                    iterator.remove();
+                }
+            }
+            FileUtil.writeToFile(mFile, jsonObject.toString());
+        } catch (IOException | JSONException e) {
+            Log.d(TAG, "Missing tiles list " + mFile + " is not saved: " + e.getLocalizedMessage());
+        }
+    }
+}
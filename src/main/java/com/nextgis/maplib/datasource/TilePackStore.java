@@ -0,0 +1,516 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.datasource;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.nextgis.maplib.api.IProgressor;
+import com.nextgis.maplib.api.ITileStore;
+import com.nextgis.maplib.util.BitmapPool;
+import com.nextgis.maplib.util.Constants;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The read-only tile pack in one file: the header, the (z, x, y) sorted index of the tile offsets
+ * and lengths and the tile data. The file is memory mapped, so it opens without reading and the
+ * tiles are found by the binary search in the mapped index.
+ * <p/>
+ * Header: int magic, int version, int tile count, int reserved.<br/>
+ * Index entry: int zoom, int x, int y, int length, long offset from the data start.
+ */
+public class TilePackStore
+        implements ITileStore
+{
+    public static final String FILE_NAME = "tiles.ngtp";
+
+    protected static final int  MAGIC        = 0x4E475450; // NGTP
+    protected static final int  VERSION      = 1;
+    protected static final int  HEADER_SIZE  = 16;
+    protected static final int  ENTRY_SIZE   = 24;
+    protected static final long SEGMENT_SIZE = 1 << 30; // the data is mapped by 1 GB parts
+
+    protected static final ThreadLocal<byte[]> mBuffers = new ThreadLocal<>();
+
+    protected final File               mFile;
+    protected final long               mSegmentSize;
+    protected       boolean            mOpened;
+    protected       MappedByteBuffer   mIndex;
+    protected       MappedByteBuffer[] mSegments;
+    protected       int                mCount;
+    protected       long               mTimestamp;
+
+
+    public TilePackStore(File file)
+    {
+        this(file, SEGMENT_SIZE);
+    }
+
+
+    /**
+     * @param segmentSize
+     *         The size of the data parts mapped apart, less than SEGMENT_SIZE to test the tiles
+     *         crossing the part boundary
+     */
+    protected TilePackStore(
+            File file,
+            long segmentSize)
+    {
+        mFile = file;
+        mSegmentSize = segmentSize;
+    }
+
+
+    /**
+     * Map the file on the first request, called under the lock
+     */
+    protected boolean open()
+    {
+        if (mOpened) {
+            return null != mIndex;
+        }
+        mOpened = true;
+        if (!mFile.exists()) {
+            return false;
+        }
+
+        try {
+            RandomAccessFile file = new RandomAccessFile(mFile, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    Log.d(TAG, "Tile pack " + mFile + " has unsupported format");
+                    return false;
+                }
+                int count = header.getInt(8);
+                long dataStart = HEADER_SIZE + (long) count * ENTRY_SIZE;
+                long dataSize = channel.size() - dataStart;
+                if (count < 0 || dataSize < 0) {
+                    Log.d(TAG, "Tile pack " + mFile + " is truncated");
+                    return false;
+                }
+
+                MappedByteBuffer index = channel.map(
+                        FileChannel.MapMode.READ_ONLY, HEADER_SIZE, dataStart - HEADER_SIZE);
+                int segmentCount = (int) ((dataSize + mSegmentSize - 1) / mSegmentSize);
+                MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+                for (int i = 0; i < segmentCount; i++) {
+                    long start = i * mSegmentSize;
+                    segments[i] = channel.map(
+                            FileChannel.MapMode.READ_ONLY, dataStart + start,
+                            Math.min(mSegmentSize, dataSize - start));
+                }
+
+                // the mapping stays valid after the channel is closed
+                mIndex = index;
+                mSegments = segments;
+                mCount = count;
+                mTimestamp = mFile.lastModified();
+                return true;
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Tile pack " + mFile + " is not opened: " + e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+
+    /**
+     * @return The position of the tile in the index or -1 if the tile is absent
+     */
+    protected static int find(
+            ByteBuffer index,
+            int count,
+            int zoom,
+            int x,
+            int y)
+    {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int position = middle * ENTRY_SIZE;
+            int result = compare(
+                    index.getInt(position), index.getInt(position + 4),
+                    index.getInt(position + 8), zoom, x, y);
+            if (result < 0) {
+                low = middle + 1;
+            } else if (result > 0) {
+                high = middle - 1;
+            } else {
+                return position;
+            }
+        }
+        return Constants.NOT_FOUND;
+    }
+
+
+    protected static int compare(
+            int zoom1,
+            int x1,
+            int y1,
+            int zoom2,
+            int x2,
+            int y2)
+    {
+        if (zoom1 != zoom2) {
+            return zoom1 < zoom2 ? -1 : 1;
+        }
+        if (x1 != x2) {
+            return x1 < x2 ? -1 : 1;
+        }
+        if (y1 != y2) {
+            return y1 < y2 ? -1 : 1;
+        }
+        return 0;
+    }
+
+
+    @Override
+    public long getTimestamp(TileItem tile)
+    {
+        ByteBuffer index;
+        int count;
+        long timestamp;
+        synchronized (this) {
+            if (!open()) {
+                return 0;
+            }
+            index = mIndex;
+            count = mCount;
+            timestamp = mTimestamp;
+        }
+        return find(index, count, tile.getZoomLevel(), tile.getX(), tile.getY()) < 0
+               ? 0
+               : timestamp;
+    }
+
+
+    /**
+     * Copy the tile data from the mapped file
+     *
+     * @param reuseBuffer
+     *         Copy to the per thread buffer, the buffer may be longer than the data
+     * @param length
+     *         Receives the data length
+     *
+     * @return The data or null if the tile is absent
+     */
+    protected byte[] readTile(
+            TileItem tile,
+            boolean reuseBuffer,
+            int[] length)
+    {
+        ByteBuffer index;
+        ByteBuffer[] segments;
+        int count;
+        synchronized (this) {
+            if (!open()) {
+                return null;
+            }
+            index = mIndex;
+            segments = mSegments;
+            count = mCount;
+        }
+
+        int position = find(index, count, tile.getZoomLevel(), tile.getX(), tile.getY());
+        if (position < 0) {
+            return null;
+        }
+
+        int size = index.getInt(position + 12);
+        long offset = index.getLong(position + 16);
+
+        byte[] data;
+        if (reuseBuffer) {
+            data = mBuffers.get();
+            if (null == data || data.length < size) {
+                data = new byte[Math.max(size, Constants.IO_BUFFER_SIZE)];
+                mBuffers.set(data);
+            }
+        } else {
+            data = new byte[size];
+        }
+
+        int copied = 0;
+        while (copied < size) {
+            int segment = (int) ((offset + copied) / mSegmentSize);
+            int segmentOffset = (int) ((offset + copied) % mSegmentSize);
+            if (segment >= segments.length) {
+                return null;
+            }
+            ByteBuffer buffer = segments[segment].duplicate();
+            int part = Math.min(size - copied, buffer.capacity() - segmentOffset);
+            buffer.position(segmentOffset);
+            buffer.get(data, copied, part);
+            copied += part;
+        }
+
+        length[0] = size;
+        return data;
+    }
+
+
+    @Override
+    public byte[] getTileData(TileItem tile)
+    {
+        return readTile(tile, false, new int[1]);
+    }
+
+
+    @Override
+    public Bitmap getBitmap(
+            TileItem tile,
+            BitmapFactory.Options options,
+            int minSize)
+    {
+        // the mapped data is copied to the per thread buffer to decode
+        int[] length = new int[1];
+        byte[] data = readTile(tile, true, length);
+        if (null == data) {
+            return null;
+        }
+        return BitmapPool.decodeByteArray(data, 0, length[0], options, minSize);
+    }
+
+
+    @Override
+    public OutputStream getOutputStream(TileItem tile)
+            throws IOException
+    {
+        throw new IOException("The tile pack " + mFile + " is read-only");
+    }
+
+
+    @Override
+    public String[] getValidators(TileItem tile)
+    {
+        return null;
+    }
+
+
+    @Override
+    public void setValidators(
+            TileItem tile,
+            String[] validators)
+    {
+
+    }
+
+
+    @Override
+    public void touch(
+            TileItem tile,
+            long timestamp)
+    {
+
+    }
+
+
+    @Override
+    public void remove(TileItem tile)
+    {
+
+    }
+
+
+    @Override
+    public void visitTiles(TileVisitor visitor)
+    {
+        ByteBuffer index;
+        int count;
+        long timestamp;
+        synchronized (this) {
+            if (!open()) {
+                return;
+            }
+            index = mIndex;
+            count = mCount;
+            timestamp = mTimestamp;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int position = i * ENTRY_SIZE;
+            visitor.onTile(
+                    index.getInt(position), index.getInt(position + 4),
+                    index.getInt(position + 8), index.getInt(position + 12), timestamp);
+        }
+    }
+
+
+    @Override
+    public void flush()
+    {
+
+    }
+
+
+    @Override
+    public synchronized void close()
+    {
+        // the mapping is released by the garbage collector
+        mIndex = null;
+        mSegments = null;
+        mCount = 0;
+        mOpened = false;
+    }
+
+
+    /**
+     * Pack the {z}/{x}/{y}.tile directories to the tile pack file
+     *
+     * @param path
+     *         The folder with the tile directories
+     * @param output
+     *         The tile pack file to create
+     *
+     * @return The packed tile count, the file is not created if there are no tiles
+     */
+    public static int create(
+            File path,
+            File output,
+            IProgressor progressor)
+            throws IOException
+    {
+        final TileDirectoryStore store = new TileDirectoryStore(path);
+        final List<long[]> tiles = new ArrayList<>();
+        store.visitTiles(
+                new TileVisitor()
+                {
+                    @Override
+                    public void onTile(
+                            int zoom,
+                            int x,
+                            int y,
+                            long size,
+                            long timestamp)
+                    {
+                        tiles.add(new long[] {zoom, x, y, size});
+                    }
+                });
+
+        if (tiles.isEmpty()) {
+            return 0;
+        }
+
+        Collections.sort(tiles, new Comparator<long[]>()
+        {
+            @Override
+            public int compare(
+                    long[] lhs,
+                    long[] rhs)
+            {
+                return TilePackStore.compare(
+                        (int) lhs[0], (int) lhs[1], (int) lhs[2], (int) rhs[0], (int) rhs[1],
+                        (int) rhs[2]);
+            }
+        });
+
+        if (null != progressor) {
+            progressor.setMax(tiles.size());
+            progressor.setValue(0);
+        }
+
+        File tmpFile = new File(output.getPath() + ".tmp");
+        DataOutputStream stream = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile), Constants.IO_BUFFER_SIZE));
+        try {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            stream.writeInt(tiles.size());
+            stream.writeInt(0);
+
+            long offset = 0;
+            for (long[] tile : tiles) {
+                stream.writeInt((int) tile[0]);
+                stream.writeInt((int) tile[1]);
+                stream.writeInt((int) tile[2]);
+                stream.writeInt((int) tile[3]);
+                stream.writeLong(offset);
+                offset += tile[3];
+            }
+
+            byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+            for (int i = 0; i < tiles.size(); i++) {
+                if (null != progressor) {
+                    if (progressor.isCanceled()) {
+                        stream.close();
+                        tmpFile.delete();
+                        return 0;
+                    }
+                    progressor.setValue(i);
+                }
+
+                long[] tile = tiles.get(i);
+                File tileFile = store.getTileFile(
+                        new TileItem((int) tile[1], (int) tile[2], (int) tile[0], null));
+                FileInputStream input = new FileInputStream(tileFile);
+                try {
+                    // exactly the indexed length is copied
+                    long left = tile[3];
+                    while (left > 0) {
+                        int read = input.read(buffer, 0, (int) Math.min(buffer.length, left));
+                        if (read < 0) {
+                            throw new IOException("The tile " + tileFile + " is changed");
+                        }
+                        stream.write(buffer, 0, read);
+                        left -= read;
+                    }
+                } finally {
+                    input.close();
+                }
+            }
+        } finally {
+            stream.close();
+        }
+
+        if (!tmpFile.renameTo(output)) {
+            tmpFile.delete();
+            throw new IOException("The tile pack " + output + " is not created");
+        }
+        return tiles.size();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.display;
+
+import android.graphics.Path;
+
+
+/**
+ * Geometries of several features collected to draw them with one call
+ */
+public class DrawBatch
+{
+    protected final Path    mPath;
+    protected       float[] mPoints;
+    protected       int     mPointsLength;
+    protected       int     mCount;
+
+
+    public DrawBatch()
+    {
+        mPath = new Path();
+        mPoints = new float[64];
+        mPointsLength = 0;
+        mCount = 0;
+    }
+
+
+    public Path getPath()
+    {
+        return mPath;
+    }
+
+
+    public void addPoint(
+            float x,
+            float y)
+    {
+        if (mPointsLength + 2 > mPoints.length) {
+            float[] points = new float[mPoints.length * 2];
+            System.arraycopy(mPoints, 0, points, 0, mPointsLength);
+            mPoints = points;
+        }
+        mPoints[mPointsLength++] = x;
+        mPoints[mPointsLength++] = y;
+    }
+
+
+    public float[] getPoints()
+    {
+        return mPoints;
+    }
+
+
+    /**
+     * @return The count of used values in array returned by getPoints()
+     */
+    public int getPointsLength()
+    {
+        return mPointsLength;
+    }
+
+
+    /**
+     * Mark that one more feature is appended to the batch
+     */
+    public void increment()
+    {
+        mCount++;
+    }
+
+
+    public int getCount()
+    {
+        return mCount;
+    }
+
+
+    public boolean isEmpty()
+    {
+        return mCount == 0;
+    }
+
+
+    public void reset()
+    {
+        mPath.reset();
+        mPointsLength = 0;
+        mCount = 0;
+    }
+}
@@ -24,13 +24,16 @@
 package com.nextgis.maplib.display;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PathMeasure;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.Shader;
 import android.util.Log;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoPoint;
@@ -43,6 +46,11 @@ import static com.nextgis.maplib.util.GeoConstants.MERCATOR_MAX;
 
 public class GISDisplay
 {
+    // added to draw priority of envelopes in the offscreen margin
+    protected static final double OFFSCREEN_DRAW_PRIORITY = 1e15;
+    // the snapshot size ratio in single surface mode
+    protected static final int    SNAPSHOT_SCALE          = 2;
+
     protected       Bitmap mBkBitmap;
     protected final int mTileSize = DEFAULT_TILE_SIZE;
     protected final Paint       mRasterPaint;
@@ -50,9 +58,17 @@ public class GISDisplay
     protected       Bitmap      mMainBitmap;
     protected       Canvas      mDoubleBufferCanvas;
     protected       Bitmap      mDoubleBufferBitmap;
+    protected       Matrix      mMainMatrix;
+    // the published surface shown by draw() and its transform to screen
+    protected       Bitmap      mFrontBitmap;
+    protected       Matrix      mFrontMatrix;
+    protected       boolean     mSingleSurface;
+    protected       Bitmap      mSnapshotBitmap;
+    protected       Canvas      mSnapshotCanvas;
     protected       GeoEnvelope mFullBounds;
     protected       GeoEnvelope mGeoLimits;
     protected       GeoEnvelope mCurrentBounds;
+    protected       GeoEnvelope mVisibleBounds;
     protected       GeoPoint    mCenter;
     protected       GeoPoint    mMapTileSize;
     protected       Matrix      mTransformMatrix;
@@ -69,6 +85,8 @@ public class GISDisplay
     protected       GeoEnvelope mOffScreenBounds;
     protected       int         mLimitType;
     protected       int         mWidth, mHeight;
+    protected       LabelEngine mLabelEngine;
+    protected       RenderMetrics mRenderMetrics;
 
 
     public GISDisplay(Bitmap backgroundTile)
@@ -88,6 +106,8 @@ public class GISDisplay
         //default transform matrix
         mTransformMatrix = new Matrix();
         mInvertTransformMatrix = new Matrix();
+        mMainMatrix = new Matrix();
+        mFrontMatrix = new Matrix();
         mMapTileSize = new GeoPoint();
 
         setSize(300, 300);
@@ -106,10 +126,16 @@ public class GISDisplay
         if ((mWidth == w && mHeight == h) || w < 1 || h < 1) {
             return;
         }
-        mMainBitmap = null;
-        mMainCanvas = null;
-        mDoubleBufferBitmap = null;
-        mDoubleBufferCanvas = null;
+
+        synchronized (this) {
+            mMainBitmap = null;
+            mMainCanvas = null;
+            mDoubleBufferBitmap = null;
+            mDoubleBufferCanvas = null;
+            mFrontBitmap = null;
+            mSnapshotBitmap = null;
+            mSnapshotCanvas = null;
+        }
 
         mWidth = w;
         mHeight = h;
@@ -144,18 +170,69 @@ public class GISDisplay
             mZoomLevel = mMinZoomLevel;
         }
 
-        // create double buffer
-        mDoubleBufferBitmap = Bitmap.createBitmap(
-                (int) (w * OFFSCREEN_EXTRASIZE_RATIO), (int) (h * OFFSCREEN_EXTRASIZE_RATIO),
-                Bitmap.Config.ARGB_8888);
-        if(null != mDoubleBufferBitmap)
-            mDoubleBufferCanvas = new Canvas(mDoubleBufferBitmap);
+        createSecondSurface();
 
         //default zoom and center
         setZoomAndCenter(mZoomLevel, mCenter);
     }
 
 
+    /**
+     * Create the back surface to swap with the main one or the snapshot in single surface mode
+     */
+    protected synchronized void createSecondSurface()
+    {
+        mDoubleBufferBitmap = null;
+        mDoubleBufferCanvas = null;
+        mSnapshotBitmap = null;
+        mSnapshotCanvas = null;
+        mFrontBitmap = null;
+
+        if (null == mMainBitmap) {
+            return;
+        }
+
+        if (mSingleSurface) {
+            mSnapshotBitmap = Bitmap.createBitmap(
+                    mMainBitmap.getWidth() / SNAPSHOT_SCALE,
+                    mMainBitmap.getHeight() / SNAPSHOT_SCALE, Bitmap.Config.ARGB_8888);
+            if (null != mSnapshotBitmap) {
+                mSnapshotCanvas = new Canvas(mSnapshotBitmap);
+            }
+        } else {
+            mDoubleBufferBitmap = Bitmap.createBitmap(
+                    mMainBitmap.getWidth(), mMainBitmap.getHeight(), Bitmap.Config.ARGB_8888);
+            if (null != mDoubleBufferBitmap) {
+                mDoubleBufferCanvas = new Canvas(mDoubleBufferBitmap);
+                mDoubleBufferCanvas.setMatrix(mMainMatrix);
+            }
+        }
+    }
+
+
+    public boolean isSingleSurface()
+    {
+        return mSingleSurface;
+    }
+
+
+    /**
+     * Set single surface mode. In this mode only one full size bitmap is kept. While the map is
+     * redrawn the last published frame is shown from a downscaled snapshot.
+     *
+     * @param singleSurface
+     *         true to use one surface and a snapshot, false to swap two surfaces
+     */
+    public void setSingleSurface(boolean singleSurface)
+    {
+        if (mSingleSurface == singleSurface) {
+            return;
+        }
+        mSingleSurface = singleSurface;
+        createSecondSurface();
+    }
+
+
     public void setZoomAndCenter(
             float zoom,
             GeoPoint center)
@@ -215,7 +292,13 @@ public class GISDisplay
         matrix.postScale((float) mScale, (float) -mScale);
         matrix.postTranslate(
                 (float) (mMainBitmap.getWidth() * .5), (float) (mMainBitmap.getHeight() * .5));
-        mMainCanvas.setMatrix(matrix);
+        synchronized (this) {
+            mMainMatrix = matrix;
+            mMainCanvas.setMatrix(matrix);
+            if (null != mDoubleBufferCanvas) {
+                mDoubleBufferCanvas.setMatrix(matrix);
+            }
+        }
 
         RectF rect = new RectF(
                 -mMainBitmapOffsetX, mHeight + mMainBitmapOffsetY, mWidth + mMainBitmapOffsetX,
@@ -227,6 +310,12 @@ public class GISDisplay
                 Math.min(rect.bottom, rect.top), Math.max(rect.bottom, rect.top));
         //Log.d(TAG, "current: " + mCurrentBounds.toString());
 
+        rect.set(0, mHeight, mWidth, 0);
+        mInvertTransformMatrix.mapRect(rect);
+        mVisibleBounds = new GeoEnvelope(
+                Math.min(rect.left, rect.right), Math.max(rect.left, rect.right),
+                Math.min(rect.bottom, rect.top), Math.max(rect.bottom, rect.top));
+
         mLimits = mapToScreen(mGeoLimits);
         mLimits.fix();
         if (mLimitType == MAP_LIMITS_X || mLimitType == MAP_LIMITS_NO) {
@@ -259,7 +348,60 @@ public class GISDisplay
 
     public void clearLayer()
     {
+        synchronized (this) {
+            if (mFrontBitmap == mMainBitmap) {
+                retireFront();
+            }
+        }
+
         mMainBitmap.eraseColor(Color.TRANSPARENT);
+        if (null != mLabelEngine) {
+            mLabelEngine.reset(mOffScreenBounds);
+        }
+    }
+
+
+    /**
+     * @return The label engine or null if labels are drawn immediately by styles
+     */
+    public LabelEngine getLabelEngine()
+    {
+        return mLabelEngine;
+    }
+
+
+    public void setLabelEngine(LabelEngine labelEngine)
+    {
+        mLabelEngine = labelEngine;
+        if (null != mLabelEngine) {
+            mLabelEngine.reset(mOffScreenBounds);
+        }
+    }
+
+
+    /**
+     * @return The render metrics or null if metrics are not recorded
+     */
+    public RenderMetrics getRenderMetrics()
+    {
+        return mRenderMetrics;
+    }
+
+
+    public void setRenderMetrics(RenderMetrics renderMetrics)
+    {
+        mRenderMetrics = renderMetrics;
+    }
+
+
+    /**
+     * Draw collected labels which do not overlap already drawn labels
+     */
+    public void flushLabels()
+    {
+        if (null != mLabelEngine) {
+            mLabelEngine.flush(this);
+        }
     }
 
 
@@ -299,12 +441,13 @@ public class GISDisplay
             clearBackground(canvas);
         }
 
-        if (null == canvas) {
+        if (null == canvas || null == mFrontBitmap) {
             return;
         }
 
-        canvas.drawBitmap(
-                mDoubleBufferBitmap, x - mMainBitmapOffsetX, y - mMainBitmapOffsetY, null);
+        Matrix matrix = new Matrix(mFrontMatrix);
+        matrix.postTranslate(x - mMainBitmapOffsetX, y - mMainBitmapOffsetY);
+        canvas.drawBitmap(mFrontBitmap, matrix, mRasterPaint);
     }
 
 
@@ -341,12 +484,16 @@ public class GISDisplay
         float mainBitmapOffsetX = (float) pt.getX();
         float mainBitmapOffsetY = (float) pt.getY();
 
-        Matrix matrix = new Matrix();
+        if (null == mFrontBitmap) {
+            return;
+        }
+
+        Matrix matrix = new Matrix(mFrontMatrix);
         matrix.postScale(scale, scale);
         matrix.postTranslate(-mainBitmapOffsetX, -mainBitmapOffsetY);
         //Log.d(TAG, "matix: " + matrix.toShortString());
 
-        canvas.drawBitmap(mDoubleBufferBitmap, matrix, mRasterPaint);
+        canvas.drawBitmap(mFrontBitmap, matrix, mRasterPaint);
     }
 
 
@@ -400,6 +547,44 @@ public class GISDisplay
     }
 
 
+    /**
+     * Draw the part of the ancestor tile bitmap scaled to the tile size. The bitmap is drawn by the
+     * shader to leave the canvas state intact for the other drawing threads.
+     */
+    public void drawTilePart(
+            final Bitmap bitmap,
+            final Rect src,
+            final GeoPoint pt,
+            Paint paint)
+    {
+        if (null == mMainCanvas || null == pt || null == bitmap || src.isEmpty()) {
+            return;
+        }
+
+        Matrix matrix = new Matrix();
+
+        matrix.postScale((float) mInvertScale, (float) -mInvertScale);
+        matrix.postTranslate((float) pt.getX(), (float) pt.getY());
+
+        float scale = (float) (1.0036 + mZoomLevel - Math.floor(mZoomLevel));
+        scale = (float) mTileSize / src.width() * scale;
+        Matrix matrix1 = new Matrix();
+        matrix1.postTranslate(-src.left, -src.top);
+        matrix1.postScale(scale, scale);
+        matrix.preConcat(matrix1);
+
+        RectF dst = new RectF(src);
+        matrix.mapRect(dst);
+
+        BitmapShader shader =
+                new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        shader.setLocalMatrix(matrix);
+        Paint shaderPaint = new Paint(null == paint ? mRasterPaint : paint);
+        shaderPaint.setShader(shader);
+        mMainCanvas.drawRect(dst, shaderPaint);
+    }
+
+
     public void drawBitmap(
             Bitmap bitmap,
             GeoPoint point,
@@ -488,6 +673,18 @@ public class GISDisplay
     }
 
 
+    public void drawPoints(
+            float[] pts,
+            int count,
+            Paint paint)
+    {
+        if (null == mMainCanvas) {
+            return;
+        }
+        mMainCanvas.drawPoints(pts, 0, count, paint);
+    }
+
+
     public void drawLine(
             float x0,
             float y0,
@@ -606,6 +803,37 @@ public class GISDisplay
     }
 
 
+    /**
+     * @return The map bounds visible on screen, without the offscreen margin
+     */
+    public final GeoEnvelope getVisibleBounds()
+    {
+        return new GeoEnvelope(mVisibleBounds);
+    }
+
+
+    /**
+     * Return the draw priority of the envelope: the squared distance from the map center in pixels.
+     * Envelopes outside of the visible area (in the offscreen margin) always have lower priority
+     * than visible ones.
+     *
+     * @param env
+     *         The envelope in map coordinates
+     *
+     * @return The priority, less value is drawn first
+     */
+    public double getDrawPriority(GeoEnvelope env)
+    {
+        double dx = ((env.getMinX() + env.getMaxX()) * .5 - mCenter.getX()) * mScale;
+        double dy = ((env.getMinY() + env.getMaxY()) * .5 - mCenter.getY()) * mScale;
+        double priority = dx * dx + dy * dy;
+        if (null != mVisibleBounds && !mVisibleBounds.intersects(env)) {
+            priority += OFFSCREEN_DRAW_PRIORITY;
+        }
+        return priority;
+    }
+
+
     public final GeoEnvelope getFullBounds()
     {
         return new GeoEnvelope(mFullBounds);
@@ -742,26 +970,57 @@ public class GISDisplay
     }
 
 
-    public void buffer(
+    /**
+     * Publish the main surface to draw() with the offset and scale. The surface is not copied, the
+     * reference is published and the main surface is swapped with the second one (or saved to the
+     * snapshot in single surface mode) on the next clearLayer().
+     */
+    public synchronized void buffer(
             float x,
             float y,
             float scale)
     {
-        mDoubleBufferBitmap.eraseColor(Color.TRANSPARENT);
-
+        Matrix matrix = new Matrix();
         if (scale == 1) {
-            mDoubleBufferCanvas.drawBitmap(mMainBitmap, x, y, null);
+            matrix.postTranslate(x, y);
         } else {
             GeoPoint pt = getScaledOffset(x, y, scale);
 
             float mainBitmapOffsetX = (float) pt.getX();
             float mainBitmapOffsetY = (float) pt.getY();
 
-            Matrix matrix = new Matrix();
             matrix.postScale(scale, scale);
             matrix.postTranslate(-mainBitmapOffsetX, -mainBitmapOffsetY);
+        }
 
-            mDoubleBufferCanvas.drawBitmap(mMainBitmap, matrix, mRasterPaint);
+        mFrontBitmap = mMainBitmap;
+        mFrontMatrix = matrix;
+    }
+
+
+    /**
+     * Move the published frame out of the main surface before the main surface is redrawn
+     */
+    protected void retireFront()
+    {
+        if (null != mDoubleBufferBitmap) {
+            Bitmap bitmap = mMainBitmap;
+            Canvas canvas = mMainCanvas;
+            mMainBitmap = mDoubleBufferBitmap;
+            mMainCanvas = mDoubleBufferCanvas;
+            mDoubleBufferBitmap = bitmap;
+            mDoubleBufferCanvas = canvas;
+            mMainCanvas.setMatrix(mMainMatrix);
+        } else if (null != mSnapshotCanvas) {
+            mSnapshotBitmap.eraseColor(Color.TRANSPARENT);
+            Matrix matrix = new Matrix();
+            matrix.setScale(1f / SNAPSHOT_SCALE, 1f / SNAPSHOT_SCALE);
+            mSnapshotCanvas.drawBitmap(mMainBitmap, matrix, mRasterPaint);
+
+            mFrontBitmap = mSnapshotBitmap;
+            mFrontMatrix.preScale(SNAPSHOT_SCALE, SNAPSHOT_SCALE);
+        } else {
+            mFrontBitmap = null;
         }
     }
 
@@ -0,0 +1,420 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.display;
+
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RectF;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+
+/**
+ * Collects labels from text styles during the draw, places them by priority against a screen grid
+ * collision index and draws only the labels which do not overlap already placed ones
+ */
+public class LabelEngine
+{
+    // labels kept for one flush, the lowest priority labels are dropped
+    public static final    int MAX_PENDING_LABELS = 4096;
+    // labels drawn for one map draw
+    public static final    int MAX_PLACED_LABELS  = 512;
+    protected static final int GRID_CELL_SIZE     = 64;
+    protected static final int GLYPH_CACHE_SIZE   = 256;
+
+    protected final PriorityQueue<Label>   mPending;
+    protected final Map<String, GlyphPath> mGlyphCache;
+    protected final List<List<RectF>>      mGrid;
+    protected       GeoEnvelope            mGridBounds;
+    protected       int                    mGridColumns, mGridRows;
+    protected       int                    mPlacedCount;
+    protected       long                   mOrder;
+
+
+    public LabelEngine()
+    {
+        mPending = new PriorityQueue<>(64, new Comparator<Label>()
+        {
+            @Override
+            public int compare(
+                    Label lhs,
+                    Label rhs)
+            {
+                // head of queue is the label to drop first
+                return compareLabels(rhs, lhs);
+            }
+        });
+        mGlyphCache = new LinkedHashMap<String, GlyphPath>(GLYPH_CACHE_SIZE * 4 / 3, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, GlyphPath> eldest)
+            {
+                return size() > GLYPH_CACHE_SIZE;
+            }
+        };
+        mGrid = new ArrayList<>();
+    }
+
+
+    /**
+     * @return negative if the first label is more important than the second one
+     */
+    protected static int compareLabels(
+            Label lhs,
+            Label rhs)
+    {
+        if (lhs.mPriority != rhs.mPriority) {
+            return lhs.mPriority > rhs.mPriority ? -1 : 1;
+        }
+        return lhs.mOrder < rhs.mOrder ? -1 : (lhs.mOrder == rhs.mOrder ? 0 : 1);
+    }
+
+
+    /**
+     * Clear the collision index and drop not drawn labels. Called on start of map draw.
+     *
+     * @param screenBounds
+     *         The bounds of drawing area in screen coordinates
+     */
+    public synchronized void reset(GeoEnvelope screenBounds)
+    {
+        mPending.clear();
+        mPlacedCount = 0;
+        mOrder = 0;
+        mGridBounds = screenBounds;
+        mGridColumns = (int) Math.ceil(screenBounds.width() / GRID_CELL_SIZE);
+        mGridRows = (int) Math.ceil(screenBounds.height() / GRID_CELL_SIZE);
+
+        int size = mGridColumns * mGridRows;
+        for (int i = 0; i < mGrid.size() && i < size; i++) {
+            mGrid.get(i).clear();
+        }
+        while (mGrid.size() < size) {
+            mGrid.add(new ArrayList<RectF>());
+        }
+        while (mGrid.size() > size) {
+            mGrid.remove(mGrid.size() - 1);
+        }
+    }
+
+
+    public synchronized void addLabel(Label label)
+    {
+        label.mOrder = mOrder++;
+        if (mPending.size() < MAX_PENDING_LABELS) {
+            mPending.add(label);
+        } else if (compareLabels(label, mPending.peek()) < 0) {
+            mPending.poll();
+            mPending.add(label);
+        }
+    }
+
+
+    /**
+     * Place the collected labels and draw the winners. Called at the end of a layer draw.
+     *
+     * @param display
+     *         The display to draw
+     */
+    public synchronized void flush(GISDisplay display)
+    {
+        if (mPending.isEmpty()) {
+            return;
+        }
+
+        Label[] labels = mPending.toArray(new Label[mPending.size()]);
+        mPending.clear();
+        Arrays.sort(labels, new Comparator<Label>()
+        {
+            @Override
+            public int compare(
+                    Label lhs,
+                    Label rhs)
+            {
+                return compareLabels(lhs, rhs);
+            }
+        });
+
+        Paint paint = new Paint();
+        paint.setAntiAlias(true);
+        paint.setStyle(Paint.Style.FILL);
+        paint.setStrokeCap(Paint.Cap.ROUND);
+
+        for (Label label : labels) {
+            if (mPlacedCount >= MAX_PLACED_LABELS || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+
+            paint.setColor(label.mColor);
+            paint.setAlpha(label.mAlpha);
+            paint.setTextSize(label.mTextSize);
+
+            if (null == label.mLinePath) {
+                placePointLabel(label, paint, display);
+            } else {
+                placeLineLabel(label, paint, display);
+            }
+        }
+    }
+
+
+    protected void placePointLabel(
+            Label label,
+            Paint paint,
+            GISDisplay display)
+    {
+        GlyphPath glyph = getGlyphPath(label.mText, paint);
+
+        float scale = 1;
+        if (label.mFitRadius > 0) {
+            float halfW = glyph.mBounds.width() / 2;
+            float halfH = glyph.mBounds.height() / 2;
+            float outerTextRadius = (float) Math.sqrt(halfH * halfH + halfW * halfW);
+            if (outerTextRadius > 0) {
+                scale = label.mFitRadius / outerTextRadius;
+            }
+        }
+
+        GeoPoint pt = display.mapToScreen(label.mAnchor);
+        RectF rect = new RectF(
+                (float) pt.getX() + glyph.mBounds.left * scale,
+                (float) pt.getY() + glyph.mBounds.top * scale,
+                (float) pt.getX() + glyph.mBounds.right * scale,
+                (float) pt.getY() + glyph.mBounds.bottom * scale);
+
+        if (!place(rect)) {
+            return;
+        }
+
+        float mapScale = (float) (scale / display.getScale());
+        Matrix matrix = new Matrix();
+        matrix.setScale(mapScale, -mapScale);
+        matrix.postTranslate((float) label.mAnchor.getX(), (float) label.mAnchor.getY());
+
+        Path textPath = new Path();
+        glyph.mPath.transform(matrix, textPath);
+        display.drawPath(textPath, paint);
+    }
+
+
+    protected void placeLineLabel(
+            Label label,
+            Paint paint,
+            GISDisplay display)
+    {
+        RectF bounds = new RectF();
+        label.mLinePath.computeBounds(bounds, true);
+
+        GeoEnvelope env = display.mapToScreen(
+                new GeoEnvelope(bounds.left, bounds.right, bounds.top, bounds.bottom));
+        env.fix();
+        float gap = label.mTextSize / 2;
+        RectF rect = new RectF(
+                (float) env.getMinX() - gap, (float) env.getMinY() - gap,
+                (float) env.getMaxX() + gap, (float) env.getMaxY() + gap);
+
+        if (!place(rect)) {
+            return;
+        }
+
+        // text size of line labels is in map units
+        paint.setTextSize((float) (label.mTextSize / display.getScale()));
+        display.drawTextOnPath(label.mText, label.mLinePath, 0, label.mVOffset, paint);
+    }
+
+
+    /**
+     * Check the rectangle against the collision index and add it if there is no overlaps
+     *
+     * @return true if the rectangle is placed
+     */
+    protected boolean place(RectF rect)
+    {
+        if (null == mGridBounds) {
+            return false;
+        }
+
+        int minCol = (int) ((rect.left - mGridBounds.getMinX()) / GRID_CELL_SIZE);
+        int maxCol = (int) ((rect.right - mGridBounds.getMinX()) / GRID_CELL_SIZE);
+        int minRow = (int) ((rect.top - mGridBounds.getMinY()) / GRID_CELL_SIZE);
+        int maxRow = (int) ((rect.bottom - mGridBounds.getMinY()) / GRID_CELL_SIZE);
+
+        if (rect.right < mGridBounds.getMinX() || rect.bottom < mGridBounds.getMinY() ||
+                minCol >= mGridColumns || minRow >= mGridRows) {
+            return false;
+        }
+
+        minCol = Math.max(minCol, 0);
+        minRow = Math.max(minRow, 0);
+        maxCol = Math.min(maxCol, mGridColumns - 1);
+        maxRow = Math.min(maxRow, mGridRows - 1);
+
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                for (RectF placed : mGrid.get(row * mGridColumns + col)) {
+                    if (RectF.intersects(placed, rect)) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                mGrid.get(row * mGridColumns + col).add(rect);
+            }
+        }
+
+        mPlacedCount++;
+        return true;
+    }
+
+
+    /**
+     * Return the text path centered on the origin in screen pixels
+     */
+    protected GlyphPath getGlyphPath(
+            String text,
+            Paint paint)
+    {
+        String key = text + "|" + paint.getTextSize() + "|" + paint.getTypeface();
+        GlyphPath glyph = mGlyphCache.get(key);
+        if (null == glyph) {
+            RectF bounds = new RectF();
+            Path path = new Path();
+            paint.getTextPath(text, 0, text.length(), 0, 0, path);
+            path.computeBounds(bounds, true);
+            path.offset(-bounds.centerX(), -bounds.centerY());
+            path.close();
+            bounds.offset(-bounds.centerX(), -bounds.centerY());
+
+            glyph = new GlyphPath(path, bounds);
+            mGlyphCache.put(key, glyph);
+        }
+        return glyph;
+    }
+
+
+    protected static class GlyphPath
+    {
+        protected final Path  mPath;
+        protected final RectF mBounds;
+
+
+        public GlyphPath(
+                Path path,
+                RectF bounds)
+        {
+            mPath = path;
+            mBounds = bounds;
+        }
+    }
+
+
+    public static class Label
+    {
+        protected final String   mText;
+        protected final float    mTextSize;
+        protected final int      mColor;
+        protected final int      mAlpha;
+        protected final float    mPriority;
+        protected       GeoPoint mAnchor;
+        protected       float    mFitRadius;
+        protected       Path     mLinePath;
+        protected       float    mVOffset;
+        protected       long     mOrder;
+
+
+        /**
+         * @param text
+         *         The label text
+         * @param textSize
+         *         The text size in screen pixels
+         * @param color
+         *         The text color
+         * @param alpha
+         *         The text alpha
+         * @param priority
+         *         The labels with higher priority are placed first
+         */
+        public Label(
+                String text,
+                float textSize,
+                int color,
+                int alpha,
+                float priority)
+        {
+            mText = text;
+            mTextSize = textSize;
+            mColor = color;
+            mAlpha = alpha;
+            mPriority = priority;
+        }
+
+
+        /**
+         * Place the label centered on the point
+         *
+         * @param anchor
+         *         The label center in map coordinates
+         * @param fitRadius
+         *         If more than 0 the text is scaled to fit the circle of this radius in pixels
+         */
+        public Label setAnchor(
+                GeoPoint anchor,
+                float fitRadius)
+        {
+            mAnchor = anchor;
+            mFitRadius = fitRadius;
+            return this;
+        }
+
+
+        /**
+         * Place the label along the path
+         *
+         * @param linePath
+         *         The path in map coordinates
+         * @param vOffset
+         *         The vertical text offset in map units
+         */
+        public Label setLinePath(
+                Path linePath,
+                float vOffset)
+        {
+            mLinePath = linePath;
+            mVOffset = vOffset;
+            return this;
+        }
+    }
+}
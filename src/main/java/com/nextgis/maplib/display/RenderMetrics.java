@@ -0,0 +1,327 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.display;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Render timings per layer and per draw stage. The times are accumulated to the frame object of
+ * the layer draw (the sum over all draw threads) and put to histograms when the layer draw is
+ * finished. Each draw has its own frame, so the threads of a cancelled draw do not change the next
+ * one. The cost of recording is a few atomic operations, so the metrics may be enabled in
+ * production builds.
+ */
+public class RenderMetrics
+{
+    public static final int STAGE_INDEX_QUERY = 0;
+    public static final int STAGE_FETCH       = 1;
+    public static final int STAGE_DECODE      = 2;
+    public static final int STAGE_STYLE       = 3;
+    public static final int STAGE_DRAW        = 4;
+    public static final int STAGE_COMPOSITION = 5;
+    public static final int STAGE_TOTAL       = 6;
+    public static final int STAGE_COUNT       = 7;
+
+    protected final Map<Integer, LayerMetrics> mLayers;
+
+
+    public RenderMetrics()
+    {
+        mLayers = new ConcurrentHashMap<>();
+    }
+
+
+    public LayerMetrics getLayerMetrics(int layerId)
+    {
+        LayerMetrics metrics = mLayers.get(layerId);
+        if (null == metrics) {
+            synchronized (mLayers) {
+                metrics = mLayers.get(layerId);
+                if (null == metrics) {
+                    metrics = new LayerMetrics(layerId);
+                    mLayers.put(layerId, metrics);
+                }
+            }
+        }
+        return metrics;
+    }
+
+
+    public List<LayerMetrics> getAllLayerMetrics()
+    {
+        return new ArrayList<>(mLayers.values());
+    }
+
+
+    /**
+     * @return The frame to record the layer draw times
+     */
+    public Frame beginFrame(int layerId)
+    {
+        return new Frame(getLayerMetrics(layerId));
+    }
+
+
+    public void endFrame(Frame frame)
+    {
+        frame.mLayerMetrics.endFrame(frame);
+    }
+
+
+    public void reset()
+    {
+        mLayers.clear();
+    }
+
+
+    /**
+     * The counters of one layer draw
+     */
+    public static class Frame
+    {
+        protected final LayerMetrics mLayerMetrics;
+        protected final AtomicLong[] mTimes;
+        protected final AtomicLong   mFeatures;
+        protected final AtomicLong   mTiles;
+        protected final long         mStart;
+
+
+        protected Frame(LayerMetrics layerMetrics)
+        {
+            mLayerMetrics = layerMetrics;
+            mTimes = new AtomicLong[STAGE_COUNT];
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                mTimes[i] = new AtomicLong();
+            }
+            mFeatures = new AtomicLong();
+            mTiles = new AtomicLong();
+            mStart = System.nanoTime();
+        }
+
+
+        /**
+         * @param startTime
+         *         The stage start time from System.nanoTime()
+         *
+         * @return The current System.nanoTime() to use as the start of next stage
+         */
+        public long addTime(
+                int stage,
+                long startTime)
+        {
+            long now = System.nanoTime();
+            mTimes[stage].addAndGet(now - startTime);
+            return now;
+        }
+
+
+        public void addFeatures(int count)
+        {
+            mFeatures.addAndGet(count);
+        }
+
+
+        public void addTiles(int count)
+        {
+            mTiles.addAndGet(count);
+        }
+    }
+
+
+    public static class LayerMetrics
+    {
+        protected final int          mLayerId;
+        protected final Histogram[]  mHistograms;
+        protected final long[]       mLastFrameTimes;
+        protected       long         mLastFeatures, mLastTiles;
+
+
+        public LayerMetrics(int layerId)
+        {
+            mLayerId = layerId;
+            mHistograms = new Histogram[STAGE_COUNT];
+            mLastFrameTimes = new long[STAGE_COUNT];
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                mHistograms[i] = new Histogram();
+            }
+        }
+
+
+        protected synchronized void endFrame(Frame frame)
+        {
+            frame.mTimes[STAGE_TOTAL].set(System.nanoTime() - frame.mStart);
+
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                long time = frame.mTimes[i].get();
+                mLastFrameTimes[i] = time;
+                if (time > 0) {
+                    mHistograms[i].add(time / 1000000);
+                }
+            }
+            mLastFeatures = frame.mFeatures.get();
+            mLastTiles = frame.mTiles.get();
+        }
+
+
+        public int getLayerId()
+        {
+            return mLayerId;
+        }
+
+
+        /**
+         * @return The stage time of the last finished frame in nanoseconds
+         */
+        public synchronized long getLastFrameTime(int stage)
+        {
+            return mLastFrameTimes[stage];
+        }
+
+
+        public synchronized long getLastFeatureCount()
+        {
+            return mLastFeatures;
+        }
+
+
+        public synchronized long getLastTileCount()
+        {
+            return mLastTiles;
+        }
+
+
+        /**
+         * @return The histogram of stage times per frame in milliseconds
+         */
+        public Histogram getHistogram(int stage)
+        {
+            return mHistograms[stage];
+        }
+    }
+
+
+    /**
+     * Histogram with power of two buckets: [0, 1), [1, 2), [2, 4), ... [2^(n-2), inf)
+     */
+    public static class Histogram
+    {
+        public static final int BUCKET_COUNT = 16;
+
+        protected final long[] mBuckets;
+        protected       long   mCount, mSum, mMax;
+
+
+        public Histogram()
+        {
+            mBuckets = new long[BUCKET_COUNT];
+        }
+
+
+        public synchronized void add(long value)
+        {
+            int bucket = 0;
+            while (bucket < BUCKET_COUNT - 1 && value >= (1L << bucket)) {
+                bucket++;
+            }
+            mBuckets[bucket]++;
+            mCount++;
+            mSum += value;
+            if (value > mMax) {
+                mMax = value;
+            }
+        }
+
+
+        /**
+         * @return The lower bound of the bucket
+         */
+        public static long getBucketLowerBound(int bucket)
+        {
+            return bucket == 0 ? 0 : 1L << (bucket - 1);
+        }
+
+
+        public synchronized long[] getBuckets()
+        {
+            return mBuckets.clone();
+        }
+
+
+        public synchronized long getCount()
+        {
+            return mCount;
+        }
+
+
+        public synchronized double getMean()
+        {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+
+        public synchronized long getMax()
+        {
+            return mMax;
+        }
+
+
+        /**
+         * @param percent
+         *         The percentile 0..100
+         *
+         * @return The upper bound of the bucket contained the percentile
+         */
+        public synchronized long getPercentile(float percent)
+        {
+            if (mCount == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(mCount * percent / 100);
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+                count += mBuckets[i];
+                if (count >= threshold) {
+                    return 1L << i;
+                }
+            }
+            return mMax;
+        }
+
+
+        public synchronized void clear()
+        {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets[i] = 0;
+            }
+            mCount = 0;
+            mSum = 0;
+            mMax = 0;
+        }
+    }
+}
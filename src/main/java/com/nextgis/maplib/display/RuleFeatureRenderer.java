@@ -28,6 +28,9 @@ import com.nextgis.maplib.map.Layer;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import static com.nextgis.maplib.util.Constants.JSON_NAME_KEY;
 
 
@@ -35,6 +38,12 @@ public class RuleFeatureRenderer
         extends SimpleFeatureRenderer
 {
     protected IStyleRule mStyleRule;
+    // resolved styles shared between features, keyed by Style.getStyleKey()
+    protected final Map<String, Style> mStyleVariants = new ConcurrentHashMap<>();
+    // resolved style per feature, valid until the feature is changed
+    protected final Map<Long, Style>   mFeatureStyles = new ConcurrentHashMap<>();
+    // key of the base style the cached styles are cloned from
+    protected String mBaseStyleKey;
 
 
     public RuleFeatureRenderer(Layer layer)
@@ -63,6 +72,28 @@ public class RuleFeatureRenderer
     }
 
 
+    /**
+     * The resolved styles are forgotten if the base style is changed since the last draw
+     */
+    @Override
+    public void runDraw(GISDisplay display)
+    {
+        String key = null;
+        if (null != mStyle) {
+            try {
+                key = mStyle.toJSON().toString();
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+        }
+        if (null == key || !key.equals(mBaseStyleKey)) {
+            clearStyleCache();
+            mBaseStyleKey = key;
+        }
+        super.runDraw(display);
+    }
+
+
     @Override
     protected Style getStyle(long featureId)
     {
@@ -70,10 +101,28 @@ public class RuleFeatureRenderer
             return mStyle;
         }
 
+        Style style = mFeatureStyles.get(featureId);
+        if (null != style) {
+            return style;
+        }
+
         try {
             Style styleClone = mStyle.clone();
             mStyleRule.setStyleParams(styleClone, featureId);
-            return styleClone;
+
+            style = styleClone;
+            String key = styleClone.getStyleKey();
+            if (null != key) {
+                Style variant = mStyleVariants.get(key);
+                if (null == variant) {
+                    mStyleVariants.put(key, styleClone);
+                } else {
+                    style = variant;
+                }
+            }
+
+            mFeatureStyles.put(featureId, style);
+            return style;
 
         } catch (CloneNotSupportedException e) {
             e.printStackTrace();
@@ -82,6 +131,41 @@ public class RuleFeatureRenderer
     }
 
 
+    /**
+     * @return The color of the feature style, the style is resolved once and cached, so the dots
+     * keep the rule colors
+     */
+    @Override
+    protected int getDotColor(long featureId)
+    {
+        Style style = getStyle(featureId);
+        return null == style ? mStyle.getColor() : style.getColor();
+    }
+
+
+    /**
+     * Forget the resolved style of the feature, so the style rule is applied again on next draw
+     *
+     * @param featureId
+     *         The feature identificator
+     */
+    public void onFeatureChanged(long featureId)
+    {
+        mFeatureStyles.remove(featureId);
+    }
+
+
+    /**
+     * Forget all resolved styles. Must be called if the rule parameters are changed, the base style
+     * changes are found on draw
+     */
+    public void clearStyleCache()
+    {
+        mFeatureStyles.clear();
+        mStyleVariants.clear();
+    }
+
+
     public IStyleRule getStyleRule()
     {
         return mStyleRule;
@@ -91,6 +175,16 @@ public class RuleFeatureRenderer
     public void setStyleRule(IStyleRule styleRule)
     {
         mStyleRule = styleRule;
+        clearStyleCache();
+    }
+
+
+    @Override
+    public void fromJSON(JSONObject jsonObject)
+            throws JSONException
+    {
+        super.fromJSON(jsonObject);
+        clearStyleCache();
     }
 
 
@@ -24,10 +24,14 @@
 package com.nextgis.maplib.display;
 
 import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Paint;
 import android.os.Build;
 import android.util.Log;
+import com.nextgis.maplib.api.IGeometryCacheItem;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoGeometryFactory;
+import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.Layer;
 import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.MapContentProviderHelper;
@@ -36,8 +40,14 @@ import com.nextgis.maplib.util.Constants;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
@@ -46,6 +56,8 @@ import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import static com.nextgis.maplib.util.Constants.*;
+import static com.nextgis.maplib.util.GeoConstants.GTMultiPoint;
+import static com.nextgis.maplib.util.GeoConstants.GTPoint;
 
 
 public class SimpleFeatureRenderer
@@ -54,16 +66,30 @@ public class SimpleFeatureRenderer
 
     protected Style              mStyle;
     protected ThreadPoolExecutor mDrawThreadPool;
+    protected boolean            mBatchDraw;
+    protected float              mCullSize;
+    protected float              mDotSize;
     //protected final Object lock = new Object();
 
     public static final String JSON_STYLE_KEY = "style";
+    public static final String JSON_BATCH_DRAW_KEY = "batch_draw";
+    public static final String JSON_CULL_SIZE_KEY = "cull_size";
+    public static final String JSON_DOT_SIZE_KEY = "dot_size";
     protected static final int GEOMETRY_PER_TASK = 15;
+    protected static final int GEOMETRY_PER_BATCH_TASK = 200;
+    // recommended screen size in pixels of feature envelope to skip the feature
+    public static final float DEFAULT_CULL_SIZE = 0.5f;
+    // recommended screen size in pixels of feature envelope to draw the feature as one pixel
+    public static final float DEFAULT_DOT_SIZE = 1.5f;
 
 
     public SimpleFeatureRenderer(Layer layer)
     {
         super(layer);
         mStyle = null;
+        mBatchDraw = false;
+        mCullSize = 0;
+        mDotSize = 0;
     }
 
 
@@ -73,6 +99,9 @@ public class SimpleFeatureRenderer
     {
         super(layer);
         mStyle = style;
+        mBatchDraw = false;
+        mCullSize = 0;
+        mDotSize = 0;
     }
 
     @Override
@@ -102,10 +131,28 @@ public class SimpleFeatureRenderer
         if(decimalZoom % 2 != 0)
             decimalZoom++;
 
-        List<Long> featureIds = vectorLayer.query(env);
-
         cancelDraw();
 
+        final RenderMetrics metrics = display.getRenderMetrics();
+        final RenderMetrics.Frame metricsFrame =
+                null == metrics ? null : metrics.beginFrame(vectorLayer.getId());
+        long stageTime = 0;
+        if (null != metricsFrame) {
+            stageTime = System.nanoTime();
+        }
+
+        final Map<Integer, DrawBatch> dots = new LinkedHashMap<>();
+        List<Long> featureIds = cullFeatures(vectorLayer, env, display, dots);
+
+        if (null != metricsFrame) {
+            metricsFrame.addTime(RenderMetrics.STAGE_INDEX_QUERY, stageTime);
+            int dotCount = 0;
+            for (DrawBatch batch : dots.values()) {
+                dotCount += batch.getCount();
+            }
+            metricsFrame.addFeatures(featureIds.size() + dotCount);
+        }
+
         int threadCount = DRAWING_SEPARATE_THREADS;
         int coreCount = Runtime.getRuntime().availableProcessors();
 
@@ -138,16 +185,17 @@ public class SimpleFeatureRenderer
         }
 
         // http://developer.android.com/reference/java/util/concurrent/ExecutorCompletionService.html
-        int tilesSize = featureIds.size() / GEOMETRY_PER_TASK + 1;
+        int geometryPerTask = mBatchDraw ? GEOMETRY_PER_BATCH_TASK : GEOMETRY_PER_TASK;
+        int tilesSize = featureIds.size() / geometryPerTask + 1;
         List<Future> futures = new ArrayList<>(tilesSize);
 
         final int finalDecimalZoom = decimalZoom;
         int counter = 0;
-        for (int i = 0; i < featureIds.size(); i += GEOMETRY_PER_TASK) {
+        for (int i = 0; i < featureIds.size(); i += geometryPerTask) {
 
-            DrawTask task = new DrawTask(finalDecimalZoom, vectorLayer, display);
+            DrawTask task = new DrawTask(finalDecimalZoom, vectorLayer, display, metricsFrame);
 
-            for(int j = 0; j < GEOMETRY_PER_TASK; j++) {
+            for(int j = 0; j < geometryPerTask; j++) {
                 if (Thread.currentThread().isInterrupted()) {
                     break;
                 }
@@ -164,6 +212,21 @@ public class SimpleFeatureRenderer
             vectorLayer.onDrawFinished(vectorLayer.getId(), 0.01f);
         }
 
+        if (!dots.isEmpty()) {
+            futures.add(mDrawThreadPool.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    long startTime = System.nanoTime();
+                    drawDots(dots, display);
+                    if (null != metricsFrame) {
+                        metricsFrame.addTime(RenderMetrics.STAGE_DRAW, startTime);
+                    }
+                }
+            }));
+        }
+
         // wait for draw ending
         int nStep = futures.size() / Constants.DRAW_NOTIFY_STEP_PERCENT;
         if(nStep == 0)
@@ -191,6 +254,12 @@ public class SimpleFeatureRenderer
             }
         }
 
+        display.flushLabels();
+
+        if (null != metricsFrame) {
+            metrics.endFrame(metricsFrame);
+        }
+
         vectorLayer.onDrawFinished(vectorLayer.getId(), 1.0f);
 
         if(Constants.DEBUG_MODE) {
@@ -202,6 +271,103 @@ public class SimpleFeatureRenderer
     }
 
 
+    /**
+     * Select features to draw from the geometry cache. Features with screen envelope less than
+     * cull size are skipped, features less than dot size are collected to dots by color, so their
+     * geometry and style are never read.
+     */
+    protected List<Long> cullFeatures(
+            VectorLayer vectorLayer,
+            GeoEnvelope env,
+            GISDisplay display,
+            Map<Integer, DrawBatch> dots)
+    {
+        List<IGeometryCacheItem> items = vectorLayer.queryItems(env);
+        List<FeaturePriority> features = new ArrayList<>(items.size());
+        Set<Long> ids = new HashSet<>(items.size());
+
+        double scale = display.getScale();
+        int geometryType = vectorLayer.getGeometryType();
+        boolean cull = mDotSize > 0 && geometryType != GTPoint && geometryType != GTMultiPoint;
+
+        for (IGeometryCacheItem item : items) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+
+            long featureId = item.getFeatureId();
+            if (!ids.add(featureId)) {
+                continue;
+            }
+
+            GeoEnvelope featureEnv = item.getEnvelope();
+            if (cull) {
+                double size = Math.max(featureEnv.width(), featureEnv.height()) * scale;
+                if (size < mCullSize) {
+                    continue;
+                }
+                if (size < mDotSize) {
+                    if (!vectorLayer.isFeatureHidden(featureId)) {
+                        int color = getDotColor(featureId);
+                        DrawBatch batch = dots.get(color);
+                        if (null == batch) {
+                            batch = new DrawBatch();
+                            dots.put(color, batch);
+                        }
+                        GeoPoint center = featureEnv.getCenter();
+                        batch.addPoint((float) center.getX(), (float) center.getY());
+                        batch.increment();
+                    }
+                    continue;
+                }
+            }
+
+            features.add(
+                    new FeaturePriority(featureId, display.getDrawPriority(featureEnv)));
+        }
+
+        // draw from the screen center to edges
+        Collections.sort(features);
+
+        List<Long> result = new ArrayList<>(features.size());
+        for (FeaturePriority feature : features) {
+            result.add(feature.mFeatureId);
+        }
+        return result;
+    }
+
+
+    /**
+     * @return The color of the feature drawn as one pixel, the base style color by default, so the
+     * style is not resolved for the feature
+     */
+    protected int getDotColor(long featureId)
+    {
+        return mStyle.getColor();
+    }
+
+
+    protected void drawDots(
+            Map<Integer, DrawBatch> dots,
+            GISDisplay display)
+    {
+        android.os.Process.setThreadPriority(Constants.DEFAULT_DRAW_THREAD_PRIORITY);
+
+        Paint paint = new Paint();
+        paint.setStyle(Paint.Style.STROKE);
+        paint.setStrokeWidth(0); // hairline, one pixel at any scale
+
+        for (Map.Entry<Integer, DrawBatch> entry : dots.entrySet()) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            DrawBatch batch = entry.getValue();
+            paint.setColor(entry.getKey());
+            display.drawPoints(batch.getPoints(), batch.getPointsLength(), paint);
+        }
+    }
+
+
     /**
      * If subclass's getStyle(long featureId) changes style params then must be so in the method
      * body:
@@ -252,6 +418,59 @@ public class SimpleFeatureRenderer
     }
 
 
+    public float getCullSize()
+    {
+        return mCullSize;
+    }
+
+
+    public float getDotSize()
+    {
+        return mDotSize;
+    }
+
+
+    /**
+     * Set sizes in pixels for culling of small line and polygon features
+     *
+     * @param cullSize
+     *         Features with screen envelope less than this size are not drawn
+     * @param dotSize
+     *         Features with screen envelope less than this size are drawn as one pixel. Set 0 to
+     *         disable culling, it is disabled by default. DEFAULT_CULL_SIZE and DEFAULT_DOT_SIZE
+     *         are the recommended values.
+     */
+    public void setCullSize(
+            float cullSize,
+            float dotSize)
+    {
+        mCullSize = cullSize;
+        mDotSize = dotSize;
+    }
+
+
+    public boolean isBatchDraw()
+    {
+        return mBatchDraw;
+    }
+
+
+    /**
+     * Set batched draw mode. In this mode the geometries of one draw task which have the same
+     * style are collected to one path and drawn with one call. This is much faster for layers with
+     * few style classes, but the overlapped area of the features of the same class is filled once
+     * and not darkened by the semi-transparent fill. The batches are drawn before the next feature
+     * which can not be batched, so it stays above the features before it.
+     *
+     * @param batchDraw
+     *         true to draw geometries by batches
+     */
+    public void setBatchDraw(boolean batchDraw)
+    {
+        mBatchDraw = batchDraw;
+    }
+
+
     @Override
     public JSONObject toJSON()
             throws JSONException
@@ -263,6 +482,15 @@ public class SimpleFeatureRenderer
             rootJsonObject.put(JSON_STYLE_KEY, mStyle.toJSON());
         }
 
+        if (mBatchDraw) {
+            rootJsonObject.put(JSON_BATCH_DRAW_KEY, mBatchDraw);
+        }
+
+        if (mDotSize > 0) {
+            rootJsonObject.put(JSON_CULL_SIZE_KEY, mCullSize);
+            rootJsonObject.put(JSON_DOT_SIZE_KEY, mDotSize);
+        }
+
         return rootJsonObject;
     }
 
@@ -299,18 +527,63 @@ public class SimpleFeatureRenderer
                 throw new JSONException("Unknown style type: " + styleName);
         }
         mStyle.fromJSON(styleJsonObject);
+
+        if (jsonObject.has(JSON_BATCH_DRAW_KEY)) {
+            mBatchDraw = jsonObject.getBoolean(JSON_BATCH_DRAW_KEY);
+        }
+
+        mCullSize = (float) jsonObject.optDouble(JSON_CULL_SIZE_KEY, 0);
+        mDotSize = (float) jsonObject.optDouble(JSON_DOT_SIZE_KEY, 0);
+    }
+
+    protected static class FeaturePriority
+            implements Comparable<FeaturePriority>
+    {
+        protected final long   mFeatureId;
+        protected final double mPriority;
+
+
+        public FeaturePriority(
+                long featureId,
+                double priority)
+        {
+            mFeatureId = featureId;
+            mPriority = priority;
+        }
+
+
+        @Override
+        public int compareTo(FeaturePriority another)
+        {
+            return Double.compare(mPriority, another.mPriority);
+        }
     }
 
+
     protected class DrawTask implements Runnable {
         protected final GISDisplay mDisplay;
         protected final int mZoom;
         protected final VectorLayer mLayer;
         protected final List<Long> mFeatureIds = new ArrayList<>(GEOMETRY_PER_TASK);
+        protected final Map<Style, DrawBatch> mBatches;
+        protected final RenderMetrics.Frame mMetrics;
 
         public DrawTask(final int zoom, final VectorLayer layer, final GISDisplay display) {
+            this(zoom, layer, display, null);
+        }
+
+        public DrawTask(
+                final int zoom,
+                final VectorLayer layer,
+                final GISDisplay display,
+                final RenderMetrics.Frame metrics)
+        {
             mDisplay = display;
             mZoom = zoom;
             mLayer = layer;
+            mMetrics = metrics;
+            // keep first appearance order of style classes
+            mBatches = mBatchDraw ? new LinkedHashMap<Style, DrawBatch>() : null;
         }
 
         public void addTaskData(final Long featureId){
@@ -325,15 +598,84 @@ public class SimpleFeatureRenderer
             MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
             SQLiteDatabase db = map.getDatabase(true);
 
+            // the stage times are taken only if the metrics are recorded
+            final RenderMetrics.Frame metrics = mMetrics;
+            long time = null == metrics ? 0 : System.nanoTime();
+
             for(Long id : mFeatureIds) {
                 if(mLayer.isFeatureHidden(id))
                     continue;
-                final GeoGeometry geometry = mLayer.getGeometryForId(id, mZoom, db);
+
+                byte[] blob = mLayer.getGeometryBlobForId(id, mZoom, db);
+                if (null != metrics) {
+                    time = metrics.addTime(RenderMetrics.STAGE_FETCH, time);
+                }
+                if (null == blob) {
+                    continue;
+                }
+
+                GeoGeometry geometry;
+                try {
+                    geometry = GeoGeometryFactory.fromBlob(blob);
+                } catch (IOException | ClassNotFoundException e) {
+                    geometry = null;
+                }
+                if (null != metrics) {
+                    time = metrics.addTime(RenderMetrics.STAGE_DECODE, time);
+                }
+
                 if (geometry != null) {
                     final Style style = getStyle(id);
-                    style.onDraw(geometry, mDisplay);
+                    if (null != metrics) {
+                        time = metrics.addTime(RenderMetrics.STAGE_STYLE, time);
+                    }
+                    if (null == mBatches || !appendToBatch(style, geometry)) {
+                        drawBatches();
+                        style.onDraw(geometry, mDisplay);
+                    }
+                    if (null != metrics) {
+                        time = metrics.addTime(RenderMetrics.STAGE_DRAW, time);
+                    }
+                }
+            }
+
+            drawBatches();
+            if (null != metrics) {
+                metrics.addTime(RenderMetrics.STAGE_DRAW, time);
+            }
+        }
+
+
+        protected void drawBatches()
+        {
+            if (null == mBatches) {
+                return;
+            }
+
+            for (Map.Entry<Style, DrawBatch> entry : mBatches.entrySet()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+                entry.getKey().drawBatch(entry.getValue(), mDisplay);
+            }
+            mBatches.clear();
+        }
+
+
+        protected boolean appendToBatch(
+                Style style,
+                GeoGeometry geometry)
+        {
+            DrawBatch batch = mBatches.get(style);
+            if (null == batch) {
+                batch = new DrawBatch();
+                if (!style.appendToBatch(geometry, batch, mDisplay)) {
+                    return false;
                 }
+                mBatches.put(style, batch);
+                return true;
             }
+            return style.appendToBatch(geometry, batch, mDisplay);
         }
     }
 }
@@ -141,6 +141,20 @@ public class SimpleLineStyle
     protected void drawSolidLine(
             GeoLineString lineString,
             GISDisplay display)
+    {
+        List<GeoPoint> points = lineString.getPoints();
+
+        Path path = new Path();
+        path.incReserve(points.size());
+        appendLine(path, points);
+
+        drawSolidPath(path, display);
+    }
+
+
+    protected void drawSolidPath(
+            Path path,
+            GISDisplay display)
     {
         Paint paint = new Paint();
         paint.setColor(mColor);
@@ -149,18 +163,19 @@ public class SimpleLineStyle
         paint.setStrokeCap(mStrokeCap);
         paint.setStrokeWidth((float) (mWidth / display.getScale()));
 
-        List<GeoPoint> points = lineString.getPoints();
+        display.drawPath(path, paint);
+    }
 
-        Path path = new Path();
-        path.incReserve(points.size());
 
+    protected void appendLine(
+            Path path,
+            List<GeoPoint> points)
+    {
         path.moveTo((float) points.get(0).getX(), (float) points.get(0).getY());
 
         for (int i = 1; i < points.size(); ++i) {
             path.lineTo((float) points.get(i).getX(), (float) points.get(i).getY());
         }
-
-        display.drawPath(path, paint);
     }
 
 
@@ -238,6 +253,20 @@ public class SimpleLineStyle
     protected void drawSolidEdgingLine(
             GeoLineString lineString,
             GISDisplay display)
+    {
+        List<GeoPoint> points = lineString.getPoints();
+
+        Path path = new Path();
+        path.incReserve(points.size());
+        appendLine(path, points);
+
+        drawSolidEdgingPath(path, display);
+    }
+
+
+    protected void drawSolidEdgingPath(
+            Path path,
+            GISDisplay display)
     {
         double scaledWidth = mWidth / display.getScale();
 
@@ -253,19 +282,56 @@ public class SimpleLineStyle
         edgingPaint.setStrokeCap(Paint.Cap.BUTT);
         edgingPaint.setStrokeWidth((float) (scaledWidth * 3));
 
-        List<GeoPoint> points = lineString.getPoints();
+        display.drawPath(path, edgingPaint);
+        display.drawPath(path, mainPaint);
+    }
 
-        Path path = new Path();
-        path.incReserve(points.size());
 
-        path.moveTo((float) points.get(0).getX(), (float) points.get(0).getY());
+    @Override
+    public boolean appendToBatch(
+            GeoGeometry geoGeometry,
+            DrawBatch batch,
+            GISDisplay display)
+    {
+        if (mType != LineStyleSolid && mType != LineStyleEdgingSolid) {
+            return false;
+        }
 
-        for (int i = 1; i < points.size(); ++i) {
-            path.lineTo((float) points.get(i).getX(), (float) points.get(i).getY());
+        switch (geoGeometry.getType()) {
+            case GTLineString:
+                appendLine(batch.getPath(), ((GeoLineString) geoGeometry).getPoints());
+                break;
+
+            case GTMultiLineString:
+                GeoMultiLineString multiLineString = (GeoMultiLineString) geoGeometry;
+                for (int i = 0; i < multiLineString.size(); i++) {
+                    appendLine(batch.getPath(), multiLineString.get(i).getPoints());
+                }
+                break;
+
+            default:
+                return false;
         }
 
-        display.drawPath(path, edgingPaint);
-        display.drawPath(path, mainPaint);
+        batch.increment();
+        return true;
+    }
+
+
+    @Override
+    public void drawBatch(
+            DrawBatch batch,
+            GISDisplay display)
+    {
+        switch (mType) {
+            case LineStyleSolid:
+                drawSolidPath(batch.getPath(), display);
+                break;
+
+            case LineStyleEdgingSolid:
+                drawSolidEdgingPath(batch.getPath(), display);
+                break;
+        }
     }
 
 
@@ -209,13 +209,22 @@ public class SimpleMarkerStyle
             GISDisplay display)
     {
         Path path = new Path();
+        appendDiamond(path, scaledSize, pt);
+
+        drawPath(path, display);
+    }
+
+
+    protected void appendDiamond(
+            Path path,
+            float scaledSize,
+            GeoPoint pt)
+    {
         path.moveTo((float) pt.getX() + scaledSize, (float) pt.getY());
         path.lineTo((float) pt.getX(), (float) pt.getY() + scaledSize);
         path.lineTo((float) pt.getX() - scaledSize, (float) pt.getY());
         path.lineTo((float) pt.getX(), (float) pt.getY() - scaledSize);
         path.close();
-
-        drawPath(path, display);
     }
 
 
@@ -224,12 +233,21 @@ public class SimpleMarkerStyle
             GISDisplay display)
     {
         Path path = new Path();
+        appendTriangle(path, scaledSize, pt);
+
+        drawPath(path, display);
+    }
+
+
+    protected void appendTriangle(
+            Path path,
+            float scaledSize,
+            GeoPoint pt)
+    {
         path.moveTo((float) pt.getX() + scaledSize, (float) pt.getY() - scaledSize);
         path.lineTo((float) pt.getX(), (float) pt.getY() + scaledSize);
         path.lineTo((float) pt.getX() - scaledSize, (float) pt.getY() - scaledSize);
         path.close();
-
-        drawPath(path, display);
     }
 
 
@@ -262,6 +280,83 @@ public class SimpleMarkerStyle
     }
 
 
+    @Override
+    public boolean appendToBatch(
+            GeoGeometry geoGeometry,
+            DrawBatch batch,
+            GISDisplay display)
+    {
+        switch (mType) {
+            case MarkerStylePoint:
+            case MarkerStyleDiamond:
+            case MarkerStyleTriangle:
+            case MarkerStyleBox:
+                break;
+            default:
+                return false;
+        }
+
+        float scaledSize = (float) (mSize / display.getScale());
+        switch (geoGeometry.getType()) {
+            case GTPoint:
+                appendMarker(batch, scaledSize, (GeoPoint) geoGeometry);
+                break;
+            case GTMultiPoint:
+                GeoMultiPoint multiPoint = (GeoMultiPoint) geoGeometry;
+                for (int i = 0; i < multiPoint.size(); i++) {
+                    appendMarker(batch, scaledSize, multiPoint.get(i));
+                }
+                break;
+            default:
+                return false;
+        }
+
+        batch.increment();
+        return true;
+    }
+
+
+    protected void appendMarker(
+            DrawBatch batch,
+            float scaledSize,
+            GeoPoint pt)
+    {
+        switch (mType) {
+            case MarkerStylePoint:
+                batch.addPoint((float) pt.getX(), (float) pt.getY());
+                break;
+            case MarkerStyleDiamond:
+                appendDiamond(batch.getPath(), scaledSize, pt);
+                break;
+            case MarkerStyleTriangle:
+                appendTriangle(batch.getPath(), scaledSize, pt);
+                break;
+            case MarkerStyleBox:
+                batch.getPath().addRect(
+                        (float) pt.getX() - scaledSize, (float) pt.getY() - scaledSize,
+                        (float) pt.getX() + scaledSize, (float) pt.getY() + scaledSize,
+                        Path.Direction.CW);
+                break;
+        }
+    }
+
+
+    @Override
+    public void drawBatch(
+            DrawBatch batch,
+            GISDisplay display)
+    {
+        if (mType == MarkerStylePoint) {
+            Paint paint = new Paint(mOutPaint);
+            paint.setColor(mColor);
+            paint.setStrokeWidth((float) (mSize / display.getScale()));
+            display.drawPoints(batch.getPoints(), batch.getPointsLength(), paint);
+        } else {
+            drawPath(batch.getPath(), display);
+        }
+    }
+
+
     public int getType()
     {
         return mType;
@@ -124,6 +124,14 @@ public class SimplePolygonStyle
     public void drawPolygon(
             GeoPolygon polygon,
             GISDisplay display)
+    {
+        drawPolygonPath(getPath(polygon), display);
+    }
+
+
+    protected void drawPolygonPath(
+            Path polygonPath,
+            GISDisplay display)
     {
         float scaledWidth = (float) (mWidth / display.getScale());
 
@@ -133,8 +141,6 @@ public class SimplePolygonStyle
         lnPaint.setStrokeCap(Paint.Cap.ROUND);
         lnPaint.setAntiAlias(true);
 
-        Path polygonPath = getPath(polygon);
-
         lnPaint.setStyle(Paint.Style.STROKE);
         lnPaint.setAlpha(128);
         display.drawPath(polygonPath, lnPaint);
@@ -147,6 +153,45 @@ public class SimplePolygonStyle
     }
 
 
+    @Override
+    public boolean appendToBatch(
+            GeoGeometry geoGeometry,
+            DrawBatch batch,
+            GISDisplay display)
+    {
+        switch (geoGeometry.getType()) {
+            case GTPolygon:
+                appendPolygon(batch.getPath(), (GeoPolygon) geoGeometry);
+                break;
+            case GTMultiPolygon:
+                GeoMultiPolygon multiPolygon = (GeoMultiPolygon) geoGeometry;
+
+                for (int i = 0; i < multiPolygon.size(); i++) {
+                    appendPolygon(batch.getPath(), multiPolygon.get(i));
+                }
+                break;
+            default:
+                return false;
+        }
+
+        batch.increment();
+        return true;
+    }
+
+
+    @Override
+    public void drawBatch(
+            DrawBatch batch,
+            GISDisplay display)
+    {
+        // the outer rings and the holes have opposite directions, so the holes are kept and the
+        // overlapped features are filled once
+        Path polygonPath = batch.getPath();
+        polygonPath.setFillType(Path.FillType.WINDING);
+        drawPolygonPath(polygonPath, display);
+    }
+
+
     @Override
     public JSONObject toJSON()
             throws JSONException
@@ -173,40 +218,69 @@ public class SimplePolygonStyle
 
     protected Path getPath(GeoPolygon polygon)
     {
-        List<GeoPoint> points = polygon.getOuterRing().getPoints();
         Path polygonPath = new Path();
-        appendPath(polygonPath, points);
-
-        for (int i = 0; i < polygon.getInnerRingCount(); i++) {
-            points = polygon.getInnerRing(i).getPoints();
-            appendPath(polygonPath, points);
-        }
-
+        appendPolygon(polygonPath, polygon);
         polygonPath.setFillType(Path.FillType.EVEN_ODD);
 
         return polygonPath;
     }
 
 
-    protected void appendPath(
+    /**
+     * Append the polygon rings, the outer ring is counterclockwise and the inner rings are
+     * clockwise whatever the source order is, so the path can be filled by the winding rule
+     */
+    protected void appendPolygon(
             Path polygonPath,
-            List<GeoPoint> points)
+            GeoPolygon polygon)
     {
-        float x0, y0;
+        appendPath(polygonPath, polygon.getOuterRing().getPoints(), true);
 
-        if (points.size() > 0) {
-            x0 = (float) points.get(0).getX();
-            y0 = (float) points.get(0).getY();
-            polygonPath.moveTo(x0, y0);
+        for (int i = 0; i < polygon.getInnerRingCount(); i++) {
+            appendPath(polygonPath, polygon.getInnerRing(i).getPoints(), false);
+        }
+    }
+
+
+    protected void appendPath(
+            Path polygonPath,
+            List<GeoPoint> points,
+            boolean counterClockwise)
+    {
+        int size = points.size();
+        if (size == 0) {
+            return;
+        }
 
-            for (int i = 1; i < points.size(); i++) {
-                x0 = (float) points.get(i).getX();
-                y0 = (float) points.get(i).getY();
+        boolean reverse = (getSignedArea(points) > 0) != counterClockwise;
+        for (int i = 0; i < size; i++) {
+            GeoPoint point = points.get(reverse ? size - 1 - i : i);
+            float x0 = (float) point.getX();
+            float y0 = (float) point.getY();
 
+            if (i == 0) {
+                polygonPath.moveTo(x0, y0);
+            } else {
                 polygonPath.lineTo(x0, y0);
             }
+        }
+
+        polygonPath.close();
+    }
+
 
-            polygonPath.close();
+    /**
+     * @return The ring area, positive if the ring is counterclockwise
+     */
+    protected static double getSignedArea(List<GeoPoint> points)
+    {
+        double area = 0;
+        int size = points.size();
+        for (int i = 0; i < size; i++) {
+            GeoPoint current = points.get(i);
+            GeoPoint next = points.get((i + 1) % size);
+            area += current.getX() * next.getY() - next.getX() * current.getY();
         }
+        return area / 2;
     }
 }
@@ -23,6 +23,7 @@
 
 package com.nextgis.maplib.display;
 
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PathMeasure;
@@ -134,14 +135,10 @@ public class SimpleTextLineStyle
         float startD = gap;
         float stopD = startD + period;
 
-        Path textPath = new Path();
+        LabelEngine labelEngine = display.getLabelEngine();
 
         while (stopD < length) {
-            textPath.reset();
-            pm.getSegment(startD, stopD, textPath, true);
-            textPath.rLineTo(0, 0); // workaround for API <= 19
-
-            display.drawTextOnPath(mLineText, textPath, 0, vOffset, textPaint);
+            drawTextSegment(pm, startD, stopD, vOffset, textPaint, labelEngine, display);
 
             startD += period;
             stopD += period;
@@ -153,12 +150,33 @@ public class SimpleTextLineStyle
         if (rest > gap * 2) {
             stopD = length - gap;
 
-            textPath.reset();
-            pm.getSegment(startD, stopD, textPath, true);
-            textPath.rLineTo(0, 0); // workaround for API <= 19
+            drawTextSegment(pm, startD, stopD, vOffset, textPaint, labelEngine, display);
+        }
+    }
+
 
-            display.drawTextOnPath(mLineText, textPath, 0, vOffset, textPaint);
+    protected void drawTextSegment(
+            PathMeasure pm,
+            float startD,
+            float stopD,
+            float vOffset,
+            Paint textPaint,
+            LabelEngine labelEngine,
+            GISDisplay display)
+    {
+        Path textPath = new Path();
+        pm.getSegment(startD, stopD, textPath, true);
+        textPath.rLineTo(0, 0); // workaround for API <= 19
+
+        if (null != labelEngine) {
+            float textSize = 12 * mWidth; // in pixels
+            labelEngine.addLabel(
+                    new LabelEngine.Label(mLineText, textSize, mOutColor, Color.alpha(mOutColor),
+                            textSize).setLinePath(textPath, vOffset));
+            return;
         }
+
+        display.drawTextOnPath(mLineText, textPath, 0, vOffset, textPaint);
     }
 
 
@@ -174,6 +192,16 @@ public class SimpleTextLineStyle
     }
 
 
+    /**
+     * The style with the feature text is not shared, the variants would be as many as the texts
+     */
+    @Override
+    public String getStyleKey()
+    {
+        return null;
+    }
+
+
     @Override
     public JSONObject toJSON()
             throws JSONException
@@ -28,6 +28,7 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
+import com.nextgis.maplib.datasource.GeoGeometry;
 import com.nextgis.maplib.datasource.GeoPoint;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -111,6 +112,18 @@ public class SimpleTextMarkerStyle
         if (radius >= 2)
             display.drawCircle((float) pt.getX(), (float) pt.getY(), radius, outPaint);
 
+        LabelEngine labelEngine = display.getLabelEngine();
+        if (null != labelEngine) {
+            // inner radius in pixels
+            float fitRadius = mSize - mWidth - 1;
+            if (fitRadius > 0) {
+                labelEngine.addLabel(
+                        new LabelEngine.Label(mText, 2 * fitRadius, Color.BLACK, 255, mSize)
+                                .setAnchor(pt, fitRadius));
+            }
+            return;
+        }
+
         Paint textPaint = new Paint();
         textPaint.setColor(Color.BLACK);
         textPaint.setAntiAlias(true);
@@ -146,6 +159,17 @@ public class SimpleTextMarkerStyle
     }
 
 
+    @Override
+    public boolean appendToBatch(
+            GeoGeometry geoGeometry,
+            DrawBatch batch,
+            GISDisplay display)
+    {
+        // labels are drawn per marker
+        return false;
+    }
+
+
     public String getText()
     {
         return mText;
@@ -158,6 +182,16 @@ public class SimpleTextMarkerStyle
     }
 
 
+    /**
+     * The style with the feature text is not shared, the variants would be as many as the texts
+     */
+    @Override
+    public String getStyleKey()
+    {
+        return null;
+    }
+
+
     @Override
     public JSONObject toJSON()
             throws JSONException
@@ -28,6 +28,7 @@ import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Rect;
+import com.nextgis.maplib.datasource.GeoGeometry;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.datasource.GeoPolygon;
 import org.json.JSONException;
@@ -93,6 +94,14 @@ public class SimpleTextPolygonStyle
 
         GeoPoint center = polygon.getEnvelope().getCenter();
 
+        LabelEngine labelEngine = display.getLabelEngine();
+        if (null != labelEngine) {
+            labelEngine.addLabel(
+                    new LabelEngine.Label(mText, mTextSize, Color.BLACK, 128, mTextSize).setAnchor(
+                            center, 0));
+            return;
+        }
+
         Paint textPaint = new Paint();
         textPaint.setColor(Color.BLACK);
         textPaint.setAntiAlias(true);
@@ -125,6 +134,17 @@ public class SimpleTextPolygonStyle
     }
 
 
+    @Override
+    public boolean appendToBatch(
+            GeoGeometry geoGeometry,
+            DrawBatch batch,
+            GISDisplay display)
+    {
+        // labels are drawn per polygon
+        return false;
+    }
+
+
     public String getText()
     {
         return mText;
@@ -149,6 +169,16 @@ public class SimpleTextPolygonStyle
     }
 
 
+    /**
+     * The style with the feature text is not shared, the variants would be as many as the texts
+     */
+    @Override
+    public String getStyleKey()
+    {
+        return null;
+    }
+
+
     @Override
     public JSONObject toJSON()
             throws JSONException
@@ -75,6 +75,60 @@ public abstract class Style
             GISDisplay display);
 
 
+    /**
+     * Append the geometry to the batch shared by all features drawn with this style. The batch is
+     * drawn later by {@link #drawBatch(DrawBatch, GISDisplay)}.
+     *
+     * @param geoGeometry
+     *         The geometry to append
+     * @param batch
+     *         The batch of this style
+     * @param display
+     *         The display to draw
+     *
+     * @return false if the geometry can not be batched and must be drawn by onDraw()
+     */
+    public boolean appendToBatch(
+            GeoGeometry geoGeometry,
+            DrawBatch batch,
+            GISDisplay display)
+    {
+        return false;
+    }
+
+
+    /**
+     * Draw the geometries collected by {@link #appendToBatch(GeoGeometry, DrawBatch, GISDisplay)}
+     *
+     * @param batch
+     *         The batch of this style
+     * @param display
+     *         The display to draw
+     */
+    public void drawBatch(
+            DrawBatch batch,
+            GISDisplay display)
+    {
+
+    }
+
+
+    /**
+     * Return a key which is equal for styles drawing features in the same way. Used to share one
+     * style object between features which the style rule resolves to the same parameters.
+     *
+     * @return The style key or null if the style can not be shared
+     */
+    public String getStyleKey()
+    {
+        try {
+            return toJSON().toString();
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+
     @Override
     public JSONObject toJSON()
             throws JSONException
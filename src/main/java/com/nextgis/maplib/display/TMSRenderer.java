@@ -28,10 +28,14 @@ import android.graphics.Bitmap;
 import android.graphics.ColorMatrix;
 import android.graphics.ColorMatrixColorFilter;
 import android.graphics.Paint;
-import android.os.Build;
+import android.graphics.Rect;
 import android.util.Log;
 import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.api.ILayerView;
+import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.map.LayerGroup;
+import com.nextgis.maplib.map.MapDrawable;
 import com.nextgis.maplib.map.RemoteTMSLayer;
 import com.nextgis.maplib.map.TMSLayer;
 import com.nextgis.maplib.util.Constants;
@@ -40,11 +44,17 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -62,8 +72,17 @@ public class TMSRenderer
     protected static final String JSON_TMSRENDERER_BRIGHTNESS = "brightness";
     protected static final String JSON_TMSRENDERER_GRAYSCALE  = "greyscale";
     protected static final String JSON_TMSRENDERER_ALPHA      = "alpha";
-    protected ThreadPoolExecutor mDrawThreadPool;
+    protected static final String JSON_TMSRENDERER_PREAPPLY   = "preapply_filter";
+    protected static final int DECODE_QUEUE_FACTOR = 2;
+    protected static final int DRAW_QUEUE_SIZE     = 16;
+
+    protected ThreadPoolExecutor mIOThreadPool;
+    protected ThreadPoolExecutor mDecodeThreadPool;
     protected Paint              mRasterPaint;
+    protected Paint              mBlitPaint;
+    protected ColorMatrixColorFilter mColorFilter;
+    protected TileColorFilter    mTileFilter;
+    protected boolean            mPreApplyFilter;
     protected boolean            mAntiAlias;
     protected boolean            mFilterBitmap;
     protected boolean            mDither;
@@ -71,6 +90,7 @@ public class TMSRenderer
     protected float              mBrightness;
     protected boolean            mForceToGrayScale;
     protected int                mAlpha;
+    protected volatile DrawnFrame mDrawnFrame;
     //protected final Object lock = new Object();
 
 
@@ -78,6 +98,7 @@ public class TMSRenderer
     {
         super(layer);
         mRasterPaint = new Paint();
+        mBlitPaint = new Paint();
 
         mAntiAlias = true;
         mFilterBitmap = true;
@@ -86,11 +107,23 @@ public class TMSRenderer
         mBrightness = 0;
         mForceToGrayScale = false;
         mAlpha = 255;
+        mPreApplyFilter = false;
+
+        updatePaints();
+    }
 
+
+    protected void updatePaints()
+    {
         mRasterPaint.setAntiAlias(mAntiAlias);
         mRasterPaint.setFilterBitmap(mFilterBitmap);
         mRasterPaint.setDither(mDither);
         mRasterPaint.setAlpha(mAlpha);
+        mRasterPaint.setColorFilter(mColorFilter);
+
+        // the same paint without the color filter for the tiles with the filter applied
+        mBlitPaint.set(mRasterPaint);
+        mBlitPaint.setColorFilter(null);
     }
 
 
@@ -107,6 +140,7 @@ public class TMSRenderer
         renderer.put(JSON_TMSRENDERER_BRIGHTNESS, mBrightness);
         renderer.put(JSON_TMSRENDERER_GRAYSCALE, mForceToGrayScale);
         renderer.put(JSON_TMSRENDERER_ALPHA, mAlpha);
+        renderer.put(JSON_TMSRENDERER_PREAPPLY, mPreApplyFilter);
         return renderer;
     }
 
@@ -126,10 +160,7 @@ public class TMSRenderer
             mAlpha = jsonObject.getInt(JSON_TMSRENDERER_ALPHA);
         else
             mAlpha = 255;
-        mRasterPaint.setAntiAlias(mAntiAlias);
-        mRasterPaint.setFilterBitmap(mFilterBitmap);
-        mRasterPaint.setDither(mDither);
-        mRasterPaint.setAlpha(mAlpha);
+        mPreApplyFilter = jsonObject.optBoolean(JSON_TMSRENDERER_PREAPPLY, false);
 
         setContrastBrightness(mContrast, mBrightness, mForceToGrayScale);
     }
@@ -199,12 +230,61 @@ public class TMSRenderer
                             1,
                             0});
         }
-        if (mRasterPaint != null) {
-            mRasterPaint.setColorFilter(new ColorMatrixColorFilter(cm));
+
+        // the default values give the identity matrix, nothing to apply
+        if (contrast == 1 && brightness == 0 && !bToGreyScale) {
+            mColorFilter = null;
+            mTileFilter = null;
+        } else {
+            mColorFilter = new ColorMatrixColorFilter(cm);
+            mTileFilter = new TileColorFilter(
+                    "c" + contrast + "b" + brightness + (bToGreyScale ? "g" : ""), mColorFilter,
+                    mDither);
         }
+        updatePaints();
+        updateLayerFilter();
     }
 
 
+    /**
+     * Let the layer apply the color filter to the tiles before caching, the cached tiles of the
+     * previous filter are dropped
+     */
+    protected void updateLayerFilter()
+    {
+        ILayer layer = mLayerRef.get();
+        if (layer instanceof TMSLayer) {
+            ((TMSLayer) layer).setColorFilter(mPreApplyFilter ? mTileFilter : null);
+        }
+    }
+
+
+    public boolean isPreApplyFilter()
+    {
+        return mPreApplyFilter;
+    }
+
+
+    /**
+     * @param preApplyFilter
+     *         If true, the contrast, brightness and grayscale filter is applied once per tile and
+     *         the filtered tile is kept in the memory cache, so the repeated frames draw the tiles
+     *         without the filter. The layer memory cache must be on, see
+     *         TMSLayer.setCacheSizeMultiply.
+     */
+    public void setPreApplyFilter(boolean preApplyFilter)
+    {
+        mPreApplyFilter = preApplyFilter;
+        updateLayerFilter();
+    }
+
+
+    /**
+     * The tiles are drawn by stages: the tiles from the memory cache are drawn at once, the others
+     * are read from the tile store by the I/O threads, decoded by the threads per CPU core and drawn
+     * by this thread. The stages are connected by bounded queues, so the faster stage waits for the
+     * slower one. If the color filter is pre-applied, the filtered tiles are cached and drawn as is.
+     */
     @Override
     public void runDraw(final GISDisplay display)
             throws NullPointerException
@@ -225,96 +305,181 @@ public class TMSRenderer
             remoteTMSLayer.onPrepare();
         }
 
-        final List<TileItem> tiles = MapUtil.getTileItems(display.getBounds(), zoom, tmsLayer.getTMSType());
+        mDrawnFrame = null;
+
+        final RenderMetrics metrics = display.getRenderMetrics();
+        final RenderMetrics.Frame metricsFrame =
+                null == metrics ? null : metrics.beginFrame(tmsLayer.getId());
+        long stageTime = 0;
+        if (null != metricsFrame) {
+            stageTime = System.nanoTime();
+        }
+
+        final List<TileItem> tiles =
+                sortTiles(MapUtil.getTileItems(display.getBounds(), zoom, tmsLayer.getTMSType()),
+                        display);
+
+        if (null != metricsFrame) {
+            metricsFrame.addTime(RenderMetrics.STAGE_INDEX_QUERY, stageTime);
+            metricsFrame.addTiles(tiles.size());
+        }
+
+        if (tmsLayer instanceof RemoteTMSLayer) {
+            ((RemoteTMSLayer) tmsLayer).setVisibleTiles(tiles);
+        }
+
         if (tiles.size() == 0) {
+            if (null != metricsFrame) {
+                metrics.endFrame(metricsFrame);
+            }
             return;
         }
 
         cancelDraw();
 
-        int threadCount = DRAWING_SEPARATE_THREADS;
-        int coreCount = Runtime.getRuntime().availableProcessors();
+        // the filter may be changed while drawing, the tiles got with the filter are drawn as is
+        final TileColorFilter filter = tmsLayer.getCacheSizeMultiply() > 0
+                                       ? tmsLayer.getColorFilter() : null;
+        final Paint paint = null == filter ? mRasterPaint : mBlitPaint;
 
-        // FIXME more than 1 pool size causing strange behaviour on 6.0 -> tiles do not render from some threads, exception appears:
-        // Fatal signal 11 (SIGSEGV), code 1, fault addr 0xX in tid X (pool-X-thread-X)
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
-            coreCount = 1;
-
-        //synchronized (lock) {
-            mDrawThreadPool = new ThreadPoolExecutor(
-                    coreCount, threadCount, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT,
-                    new LinkedBlockingQueue<Runnable>(), new RejectedExecutionHandler()
+        int coreCount = Runtime.getRuntime().availableProcessors();
+        RejectedExecutionHandler blockingHandler = new RejectedExecutionHandler()
+        {
+            @Override
+            public void rejectedExecution(
+                    Runnable r,
+                    ThreadPoolExecutor executor)
             {
-                @Override
-                public void rejectedExecution(
-                        Runnable r,
-                        ThreadPoolExecutor executor)
-                {
-                    try {
-                        executor.getQueue().put(r);
-                    } catch (InterruptedException e) {
-                        //e.printStackTrace();
-                    }
+                // the caller posts the tile as done if the task is not queued
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("The draw is cancelled");
                 }
-            });
-        //}
+                try {
+                    executor.getQueue().put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("The draw is cancelled");
+                }
+            }
+        };
+
+        final ThreadPoolExecutor ioThreadPool = new ThreadPoolExecutor(
+                DRAWING_SEPARATE_THREADS, DRAWING_SEPARATE_THREADS, KEEP_ALIVE_TIME,
+                KEEP_ALIVE_TIME_UNIT, new LinkedBlockingQueue<Runnable>());
+        final ThreadPoolExecutor decodeThreadPool = new ThreadPoolExecutor(
+                coreCount, coreCount, KEEP_ALIVE_TIME, KEEP_ALIVE_TIME_UNIT,
+                new ArrayBlockingQueue<Runnable>(coreCount * DECODE_QUEUE_FACTOR),
+                blockingHandler);
+        final BlockingQueue<DrawItem> drawQueue = new ArrayBlockingQueue<>(DRAW_QUEUE_SIZE);
+        mIOThreadPool = ioThreadPool;
+        mDecodeThreadPool = decodeThreadPool;
 
-        // http://developer.android.com/reference/java/util/concurrent/ExecutorCompletionService.html
         int tilesSize = tiles.size();
-        List<Future> futures = new ArrayList<>(tilesSize);
+        int nStep = tilesSize / Constants.DRAW_NOTIFY_STEP_PERCENT;
+        if(nStep == 0)
+            nStep = 1;
+        int drawn = 0;
+        int pending = 0;
+        DrawnFrame frame = new DrawnFrame(display, zoom, filter);
 
+        // the cached tiles never wait for the tiles which are read or downloaded
         for (int i = 0; i < tilesSize; ++i) {
             if (Thread.currentThread().isInterrupted()) {
                 break;
             }
 
             final TileItem tile = tiles.get(i);
+            long time = System.nanoTime();
+            Bitmap bmp = tmsLayer.getCachedBitmap(tile, filter);
+            if (bmp != null) {
+                display.drawTile(bmp, tile.getPoint(), paint);
+                tmsLayer.releaseBitmap(bmp);
+                frame.mTiles.put(tile.getHash(), tile);
+                if (null != metricsFrame) {
+                    metricsFrame.addTime(RenderMetrics.STAGE_DRAW, time);
+                }
+                notifyProgress(tmsLayer, drawn++, tilesSize, nStep);
+                continue;
+            }
 
-            futures.add(
-                    mDrawThreadPool.submit(
-                            new Runnable()
+            try {
+                ioThreadPool.execute(
+                        new Runnable()
+                        {
+                            @Override
+                            public void run()
                             {
-                                @Override
-                                public void run()
-                                {
-                                    android.os.Process.setThreadPriority(
-                                            Constants.DEFAULT_DRAW_THREAD_PRIORITY);
-
-                                    final Bitmap bmp = tmsLayer.getBitmap(tile);
-                                    if (bmp != null) {
-                                        display.drawTile(bmp, tile.getPoint(), mRasterPaint);
-                                    }
-                                }
-                            }));
-        }
-
-        // wait for draw ending
-        int nStep = futures.size() / Constants.DRAW_NOTIFY_STEP_PERCENT;
-        if(nStep == 0)
-            nStep = 1;
-        for (int i = 0, futuresSize = futures.size(); i < futuresSize; i++) {
-            if (Thread.currentThread().isInterrupted()) {
+                                android.os.Process.setThreadPriority(
+                                        Constants.DEFAULT_DRAW_THREAD_PRIORITY);
+                                loadTile(tmsLayer, tile, filter, decodeThreadPool, drawQueue,
+                                    metricsFrame);
+                            }
+                        });
+            } catch (RejectedExecutionException e) {
+                // the draw is cancelled
                 break;
             }
+            pending++;
+        }
 
+        // draw the tiles passed the stages
+        while (pending > 0 && !Thread.currentThread().isInterrupted()) {
+            DrawItem item;
             try {
-                Future future = futures.get(i);
-                future.get(); // wait for task ending
+                item = drawQueue.poll(TERMINATE_TIME, KEEP_ALIVE_TIME_UNIT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (null == item) {
+                if (ioThreadPool.isShutdown()) {
+                    break;
+                }
+                continue;
+            }
 
-                float percent = (float) i / futuresSize;
-                if(i % nStep == 0) //0..10..20..30..40..50..60..70..80..90..100
-                    tmsLayer.onDrawFinished(tmsLayer.getId(), percent);
+            // every tile passed to the I/O stage comes back once, drawn or not
+            pending--;
+            long time = System.nanoTime();
+            if (null != item.mSrc) {
+                display.drawTilePart(item.mBitmap, item.mSrc, item.mTile.getPoint(), paint);
+            } else if (null != item.mBitmap) {
+                display.drawTile(item.mBitmap, item.mTile.getPoint(), paint);
+            } else {
+                frame.mBlankTiles.add(item.mTile.getHash());
+            }
+            frame.mTiles.put(item.mTile.getHash(), item.mTile);
+            tmsLayer.releaseBitmap(item.mBitmap);
+            if (null != metricsFrame) {
+                metricsFrame.addTime(RenderMetrics.STAGE_DRAW, time);
+            }
+            notifyProgress(tmsLayer, drawn++, tilesSize, nStep);
+        }
 
-                //Log.d(TAG, "TMS percent: " + percent + " complete: " + i +
-                //       " tiles count: " + tilesSize + " layer: " + mLayer.getName());
+        if (pending > 0) {
+            // the draw is interrupted, release the stage threads waiting for the draw queue
+            cancelPool(ioThreadPool);
+            cancelPool(decodeThreadPool);
 
-            } catch (CancellationException | InterruptedException e) {
-                //e.printStackTrace();
-            } catch (ExecutionException e) {
-                //e.printStackTrace();
+            DrawItem item;
+            while (null != (item = drawQueue.poll())) {
+                tmsLayer.releaseBitmap(item.mBitmap);
+            }
+        } else {
+            ioThreadPool.shutdown();
+            decodeThreadPool.shutdown();
+            if (!Thread.currentThread().isInterrupted()) {
+                mDrawnFrame = frame;
             }
         }
 
+        // write the downloaded tiles batch
+        tmsLayer.getTileStore().flush();
+
+        if (null != metricsFrame) {
+            metrics.endFrame(metricsFrame);
+        }
+
         tmsLayer.onDrawFinished(tmsLayer.getId(), 1.0f);
 
         if(Constants.DEBUG_MODE) {
@@ -326,19 +491,322 @@ public class TMSRenderer
     }
 
 
+    protected static void notifyProgress(
+            TMSLayer layer,
+            int drawn,
+            int total,
+            int step)
+    {
+        if (drawn % step == 0) { //0..10..20..30..40..50..60..70..80..90..100
+            layer.onDrawFinished(layer.getId(), (float) drawn / total);
+        }
+    }
+
+
+    /**
+     * The I/O stage: read the tile from the tile store or queue the download, pass the data to the
+     * decode stage. The tile is posted to the draw queue exactly once, with nothing to draw if a
+     * stage fails, so the draw thread counts it as done.
+     */
+    protected void loadTile(
+            final TMSLayer layer,
+            final TileItem tile,
+            final TileColorFilter filter,
+            ThreadPoolExecutor decodeThreadPool,
+            final BlockingQueue<DrawItem> drawQueue,
+            final RenderMetrics.Frame metrics)
+    {
+        DrawItem item = null;
+        boolean passed = false;
+        try {
+            long time = System.nanoTime();
+            final byte[] data = layer.loadTileData(tile);
+            if (null != metrics) {
+                metrics.addTime(RenderMetrics.STAGE_FETCH, time);
+            }
+
+            if (null == data) {
+                item = getAncestorItem(layer, tile, filter);
+                return;
+            }
+
+            // blocks while the decode queue is full
+            decodeThreadPool.execute(
+                    new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            decodeTile(layer, tile, data, filter, drawQueue, metrics);
+                        }
+                    });
+            passed = true;
+        } catch (RejectedExecutionException e) {
+            // the draw is cancelled
+        } finally {
+            if (!passed) {
+                postItem(drawQueue, null == item ? new DrawItem(tile, null, null) : item);
+            }
+        }
+    }
+
+
+    /**
+     * The decode stage, the tile is posted to the draw queue in any case
+     */
+    protected void decodeTile(
+            TMSLayer layer,
+            TileItem tile,
+            byte[] data,
+            TileColorFilter filter,
+            BlockingQueue<DrawItem> drawQueue,
+            RenderMetrics.Frame metrics)
+    {
+        DrawItem item = null;
+        try {
+            android.os.Process.setThreadPriority(Constants.DEFAULT_DRAW_THREAD_PRIORITY);
+
+            long time = System.nanoTime();
+            Bitmap bitmap = layer.decodeTileData(tile, data, filter);
+            if (null != metrics) {
+                metrics.addTime(RenderMetrics.STAGE_DECODE, time);
+            }
+
+            if (null == bitmap) {
+                item = getAncestorItem(layer, tile, filter);
+                return;
+            }
+            item = new DrawItem(tile, bitmap, null);
+        } finally {
+            postItem(drawQueue, null == item ? new DrawItem(tile, null, null) : item);
+        }
+    }
+
+
+    protected static void postItem(
+            BlockingQueue<DrawItem> drawQueue,
+            DrawItem item)
+    {
+        try {
+            drawQueue.put(item);
+        } catch (InterruptedException e) {
+            // the draw is cancelled, nobody waits for the item
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * @return The scaled part of the nearest cached ancestor to draw in place of the absent tile
+     */
+    protected DrawItem getAncestorItem(
+            TMSLayer layer,
+            TileItem tile,
+            TileColorFilter filter)
+    {
+        Rect src = new Rect();
+        Bitmap bitmap = layer.getAncestorBitmap(tile, src, filter);
+        return new DrawItem(tile, bitmap, null == bitmap ? null : src);
+    }
+
+
+    /**
+     * Draw the downloaded tiles over the map image drawn last time. Called from the main thread.
+     *
+     * @param tiles
+     *         The downloaded tiles
+     *
+     * @return false if the layer must be redrawn, e.g. the map is moved or drawn now, other layers
+     * are drawn over this one or the tile is not cached
+     */
+    public boolean drawArrivedTiles(List<TileItem> tiles)
+    {
+        DrawnFrame frame = mDrawnFrame;
+        ILayer layer = mLayerRef.get();
+        if (null == frame || !(layer instanceof TMSLayer) || !isTopLayer(layer)) {
+            return false;
+        }
+
+        GISDisplay display = frame.mDisplay;
+        if (null != display.getLabelEngine() || display.getZoomLevel() != frame.mZoom
+                || !isSameBounds(display.getBounds(), frame.mBounds)) {
+            return false;
+        }
+
+        TMSLayer tmsLayer = (TMSLayer) layer;
+        TileColorFilter filter = tmsLayer.getCacheSizeMultiply() > 0
+                                 ? tmsLayer.getColorFilter() : null;
+        if (filter != frame.mFilter) {
+            return false;
+        }
+        Paint paint = null == filter ? mRasterPaint : mBlitPaint;
+
+        boolean drawn = false;
+        for (TileItem tile : tiles) {
+            String hash = tile.getHash();
+            TileItem drawnTile = frame.mTiles.get(hash);
+            if (null == drawnTile) {
+                // the tile is out of the map image
+                continue;
+            }
+
+            Bitmap bmp = tmsLayer.getCachedBitmap(tile, filter);
+            if (null == bmp) {
+                return false;
+            }
+            if (!frame.mBlankTiles.contains(hash) && bmp.hasAlpha()) {
+                // the ancestor part or the old tile is seen through the transparent tile
+                tmsLayer.releaseBitmap(bmp);
+                return false;
+            }
+
+            display.drawTile(bmp, drawnTile.getPoint(), paint);
+            tmsLayer.releaseBitmap(bmp);
+            frame.mBlankTiles.remove(hash);
+            drawn = true;
+        }
+
+        if (drawn) {
+            tmsLayer.onDrawFinished(tmsLayer.getId(), 1.0f);
+        }
+        return true;
+    }
+
+
+    /**
+     * @return true if no visible layers are drawn over the layer and the map is not drawn now
+     */
+    protected static boolean isTopLayer(ILayer layer)
+    {
+        ILayer child = layer;
+        ILayer parent = layer.getParent();
+        while (parent instanceof LayerGroup) {
+            LayerGroup group = (LayerGroup) parent;
+            boolean above = false;
+            for (int i = 0; i < group.getLayerCount(); i++) {
+                ILayer other = group.getLayer(i);
+                if (other == child) {
+                    above = true;
+                } else if (above && other instanceof ILayerView
+                        && ((ILayerView) other).isVisible()) {
+                    return false;
+                }
+            }
+            if (parent instanceof MapDrawable) {
+                return !((MapDrawable) parent).isDrawing();
+            }
+            child = parent;
+            parent = parent.getParent();
+        }
+        return false;
+    }
+
+
+    protected static boolean isSameBounds(
+            GeoEnvelope first,
+            GeoEnvelope second)
+    {
+        return first.getMinX() == second.getMinX() && first.getMinY() == second.getMinY()
+                && first.getMaxX() == second.getMaxX() && first.getMaxY() == second.getMaxY();
+    }
+
+
+    /**
+     * The map image drawn completely last time, its tiles and the tiles not drawn as they are
+     * absent. Changed by the main thread only after the draw is finished.
+     */
+    protected static class DrawnFrame
+    {
+        protected final GISDisplay            mDisplay;
+        protected final GeoEnvelope           mBounds;
+        protected final double                mZoom;
+        protected final TileColorFilter       mFilter;
+        protected final Map<String, TileItem> mTiles;
+        protected final Set<String>           mBlankTiles;
+
+
+        protected DrawnFrame(
+                GISDisplay display,
+                double zoom,
+                TileColorFilter filter)
+        {
+            mDisplay = display;
+            mBounds = display.getBounds();
+            mZoom = zoom;
+            mFilter = filter;
+            mTiles = new HashMap<>();
+            mBlankTiles = new HashSet<>();
+        }
+    }
+
+
+    /**
+     * The decoded tile or the ancestor part to draw, nothing is drawn if the bitmap is null
+     */
+    protected static class DrawItem
+    {
+        protected final TileItem mTile;
+        protected final Bitmap   mBitmap;
+        protected final Rect     mSrc;
+
+
+        protected DrawItem(
+                TileItem tile,
+                Bitmap bitmap,
+                Rect src)
+        {
+            mTile = tile;
+            mBitmap = bitmap;
+            mSrc = src;
+        }
+    }
+
+
+    /**
+     * Sort tiles from the screen center to edges, visible tiles are ahead of tiles in offscreen
+     * margin
+     */
+    protected List<TileItem> sortTiles(
+            List<TileItem> tiles,
+            GISDisplay display)
+    {
+        final Map<TileItem, Double> priorities = new HashMap<>(tiles.size());
+        for (TileItem tile : tiles) {
+            priorities.put(tile, display.getDrawPriority(tile.getEnvelope()));
+        }
+
+        List<TileItem> result = new ArrayList<>(tiles);
+        Collections.sort(result, new Comparator<TileItem>()
+        {
+            @Override
+            public int compare(
+                    TileItem lhs,
+                    TileItem rhs)
+            {
+                return Double.compare(priorities.get(lhs), priorities.get(rhs));
+            }
+        });
+        return result;
+    }
+
+
     @Override
     public void cancelDraw()
     {
-        if (mDrawThreadPool != null) {
-            //synchronized (lock) {
-                mDrawThreadPool.shutdownNow();
-                try {
-                    mDrawThreadPool.awaitTermination(TERMINATE_TIME, KEEP_ALIVE_TIME_UNIT);
-                    //mDrawThreadPool.purge();
-                } catch (InterruptedException e) {
-                    //e.printStackTrace();
-                }
-            //}
+        cancelPool(mIOThreadPool);
+        cancelPool(mDecodeThreadPool);
+    }
+
+
+    protected static void cancelPool(ThreadPoolExecutor pool)
+    {
+        if (pool != null) {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(TERMINATE_TIME, KEEP_ALIVE_TIME_UNIT);
+            } catch (InterruptedException e) {
+                //e.printStackTrace();
+            }
         }
     }
 
@@ -367,7 +835,7 @@ public class TMSRenderer
     public void setAlpha(int alpha) {
         mAlpha = alpha;
         if (mRasterPaint != null) {
-            mRasterPaint.setAlpha(mAlpha);
+            updatePaints();
         }
     }
 
@@ -378,7 +846,7 @@ public class TMSRenderer
     public void setAntiAlias(boolean antiAlias) {
         mAntiAlias = antiAlias;
         if (mRasterPaint != null) {
-            mRasterPaint.setAntiAlias(mAntiAlias);
+            updatePaints();
         }
     }
 }
@@ -0,0 +1,92 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.display;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import com.nextgis.maplib.util.BitmapPool;
+
+
+/**
+ * The color filter which is applied to the raster tiles once before caching, see
+ * TMSRenderer.setPreApplyFilter. The key tells apart the cached tiles of different filters.
+ */
+public class TileColorFilter
+{
+    protected final String mKey;
+    protected final Paint  mPaint;
+
+
+    public TileColorFilter(
+            String key,
+            ColorFilter filter,
+            boolean dither)
+    {
+        mKey = key;
+        mPaint = new Paint();
+        mPaint.setDither(dither);
+        mPaint.setColorFilter(filter);
+    }
+
+
+    public String getKey()
+    {
+        return mKey;
+    }
+
+
+    /**
+     * Draw the tile with the color filter to a new bitmap, the bitmap from the BitmapPool is used
+     * if there is a suitable one
+     *
+     * @return The filtered tile or null if there is no memory for it
+     */
+    public Bitmap apply(Bitmap bitmap)
+    {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        Bitmap.Config config = bitmap.getConfig();
+        if (null == config) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+
+        Bitmap result = BitmapPool.get(width, height, config);
+        if (null == result) {
+            try {
+                result = Bitmap.createBitmap(width, height, config);
+            } catch (OutOfMemoryError e) {
+                return null;
+            }
+        } else {
+            result.eraseColor(Color.TRANSPARENT);
+        }
+
+        Canvas canvas = new Canvas(result);
+        canvas.drawBitmap(bitmap, 0, 0, mPaint);
+        return result;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The download permits of a remote layer which count adapts to the link. The requests are measured
+ * by windows of at least the current limit of requests. The limit grows by one per window while
+ * all permits are used and the throughput grows, and halves when a request times out, the server
+ * reports overload or the latency grows far above the base latency of the link (AIMD).
+ */
+public class DownloadConcurrency
+{
+    protected static final int   MIN_LIMIT         = 1;
+    protected static final int   MAX_LIMIT_FACTOR  = 4;
+    protected static final long  MIN_WINDOW_TIME   = 1000; // ms
+    protected static final float LATENCY_FACTOR    = 3;
+    protected static final float THROUGHPUT_FACTOR = 0.9f;
+
+    protected final int mMaxLimit;
+    protected       int mLimit;
+    protected       int mActive;
+
+    // the current window
+    protected long    mWindowStart;
+    protected int     mWindowCount;
+    protected int     mWindowSuccess;
+    protected long    mWindowBytes;
+    protected long    mWindowLatency;
+    protected boolean mWindowSaturated;
+    protected boolean mWindowCongested;
+
+    // the last window results
+    protected long mThroughput;
+    protected long mLatency;
+    protected long mBaseLatency;
+
+    protected long mSuccessCount;
+    protected long mCongestionCount;
+
+
+    /**
+     * The download state snapshot
+     */
+    public static class Metrics
+    {
+        protected final int  mLimit, mMaxLimit, mActive;
+        protected final long mThroughput, mLatency, mBaseLatency;
+        protected final long mSuccessCount, mCongestionCount;
+
+
+        protected Metrics(DownloadConcurrency concurrency)
+        {
+            mLimit = concurrency.mLimit;
+            mMaxLimit = concurrency.mMaxLimit;
+            mActive = concurrency.mActive;
+            mThroughput = concurrency.mThroughput;
+            mLatency = concurrency.mLatency;
+            mBaseLatency = concurrency.mBaseLatency;
+            mSuccessCount = concurrency.mSuccessCount;
+            mCongestionCount = concurrency.mCongestionCount;
+        }
+
+
+        /**
+         * @return The current permit count
+         */
+        public int getLimit()
+        {
+            return mLimit;
+        }
+
+
+        public int getMaxLimit()
+        {
+            return mMaxLimit;
+        }
+
+
+        /**
+         * @return The running request count
+         */
+        public int getActive()
+        {
+            return mActive;
+        }
+
+
+        /**
+         * @return The throughput of the last window in bytes per second
+         */
+        public long getThroughput()
+        {
+            return mThroughput;
+        }
+
+
+        /**
+         * @return The average request time of the last window in milliseconds
+         */
+        public long getLatency()
+        {
+            return mLatency;
+        }
+
+
+        /**
+         * @return The request time of the unloaded link in milliseconds
+         */
+        public long getBaseLatency()
+        {
+            return mBaseLatency;
+        }
+
+
+        public long getSuccessCount()
+        {
+            return mSuccessCount;
+        }
+
+
+        /**
+         * @return The count of timeouts and server overload responses
+         */
+        public long getCongestionCount()
+        {
+            return mCongestionCount;
+        }
+
+
+        @Override
+        public String toString()
+        {
+            return "limit " + mLimit + "/" + mMaxLimit + " active " + mActive + " throughput " +
+                   mThroughput + " B/s latency " + mLatency + " ms base " + mBaseLatency +
+                   " ms success " + mSuccessCount + " congestion " + mCongestionCount;
+        }
+    }
+
+
+    /**
+     * @param initialLimit
+     *         The start permit count, the limit may grow up to MAX_LIMIT_FACTOR times of it
+     */
+    public DownloadConcurrency(int initialLimit)
+    {
+        mLimit = Math.max(initialLimit, MIN_LIMIT);
+        mMaxLimit = mLimit * MAX_LIMIT_FACTOR;
+        mWindowStart = System.currentTimeMillis();
+    }
+
+
+    public synchronized int getMaxLimit()
+    {
+        return mMaxLimit;
+    }
+
+
+    public synchronized Metrics getMetrics()
+    {
+        return new Metrics(this);
+    }
+
+
+    /**
+     * Wait for a permit
+     *
+     * @return false if no permit is released during the timeout
+     */
+    public synchronized boolean tryAcquire(
+            long timeout,
+            TimeUnit unit)
+            throws InterruptedException
+    {
+        long end = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (mActive >= mLimit) {
+            long wait = end - System.currentTimeMillis();
+            if (wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+
+        mActive++;
+        if (mActive >= mLimit) {
+            mWindowSaturated = true;
+        }
+        return true;
+    }
+
+
+    public synchronized void release()
+    {
+        mActive--;
+        notifyAll();
+    }
+
+
+    /**
+     * Account the completed request
+     *
+     * @param latency
+     *         The request time in milliseconds
+     * @param bytes
+     *         The received byte count
+     */
+    public synchronized void onSuccess(
+            long latency,
+            long bytes)
+    {
+        mSuccessCount++;
+        mWindowCount++;
+        mWindowSuccess++;
+        mWindowBytes += bytes;
+        mWindowLatency += latency;
+        closeWindow();
+    }
+
+
+    /**
+     * Account the request which is timed out or rejected by the overloaded server
+     */
+    public synchronized void onCongestion()
+    {
+        mCongestionCount++;
+        mWindowCount++;
+        if (!mWindowCongested) {
+            // decrease once per window, the requests in flight may time out together
+            mWindowCongested = true;
+            decrease();
+        }
+        closeWindow();
+    }
+
+
+    protected void closeWindow()
+    {
+        long now = System.currentTimeMillis();
+        long elapsed = now - mWindowStart;
+        if (mWindowCount < mLimit || elapsed < MIN_WINDOW_TIME) {
+            return;
+        }
+
+        long throughput = mWindowBytes * 1000 / elapsed;
+        if (mWindowSuccess > 0) {
+            mLatency = mWindowLatency / mWindowSuccess;
+            if (0 == mBaseLatency || mLatency < mBaseLatency) {
+                mBaseLatency = mLatency;
+            } else {
+                // follow the link changes slowly
+                mBaseLatency += (mLatency - mBaseLatency) / 16;
+            }
+        }
+
+        if (!mWindowCongested) {
+            if (mLatency > mBaseLatency * LATENCY_FACTOR) {
+                // the requests are queued on the link
+                decrease();
+            } else if (mWindowSaturated && throughput >= mThroughput * THROUGHPUT_FACTOR) {
+                mLimit = Math.min(mLimit + 1, mMaxLimit);
+            }
+        }
+
+        mThroughput = throughput;
+        mWindowStart = now;
+        mWindowCount = 0;
+        mWindowSuccess = 0;
+        mWindowBytes = 0;
+        mWindowLatency = 0;
+        mWindowSaturated = mActive >= mLimit;
+        mWindowCongested = false;
+    }
+
+
+    protected void decrease()
+    {
+        mLimit = Math.max(mLimit / 2, MIN_LIMIT);
+    }
+}
@@ -291,6 +291,26 @@ public class LayerGroup
     }
 
 
+    /**
+     * Let the remote raster layers prefetch the tiles for the new map extent
+     */
+    public void prefetchTiles(GISDisplay display)
+    {
+        for (ILayer layer : mLayers) {
+            if (layer instanceof LayerGroup) {
+                ((LayerGroup) layer).prefetchTiles(display);
+            } else if (layer instanceof RemoteTMSLayer) {
+                RemoteTMSLayer remoteLayer = (RemoteTMSLayer) layer;
+                if (remoteLayer.isVisible() &&
+                        display.getZoomLevel() <= remoteLayer.getMaxZoom() &&
+                        display.getZoomLevel() >= remoteLayer.getMinZoom()) {
+                    remoteLayer.prefetch(display);
+                }
+            }
+        }
+    }
+
+
     @Override
     public void cancelDraw()
     {
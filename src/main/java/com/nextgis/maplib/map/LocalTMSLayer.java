@@ -25,11 +25,9 @@ package com.nextgis.maplib.map;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.util.Log;
 
-import com.nextgis.maplib.R;
 import com.nextgis.maplib.api.IProgressor;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.TileItem;
@@ -43,6 +41,7 @@ import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -91,13 +90,11 @@ public class LocalTMSLayer
         TileCacheLevelDescItem item = mLimits.get(tile.getZoomLevel());
         boolean isInside = item != null && item.isInside(tile.getX(), tile.getY());
         if (isInside) {
-            File tilePath = new File(mPath, tile.toString() + TILE_EXT);
-            boolean isExist = tilePath.exists();
-            if (isExist) {
-                ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
+            ret = decodeTile(tile);
+            if (null != ret) {
                 putBitmapToCache(tile.getHash(), ret);
                 if(Constants.DEBUG_MODE) {
-                    Log.d(Constants.TAG, "Raster layer " + getName() + " getBitmap for: " + tile.toString() + ", path " + tilePath.getAbsolutePath() + " is valid - " + (ret != null));
+                    Log.d(Constants.TAG, "Raster layer " + getName() + " getBitmap for: " + tile.toString() + " is valid");
                 }
                 return ret;
             }
@@ -110,6 +107,35 @@ public class LocalTMSLayer
     }
 
 
+    @Override
+    public byte[] loadTileData(TileItem tile)
+    {
+        TileCacheLevelDescItem item = mLimits.get(tile.getZoomLevel());
+        if (null == item || !item.isInside(tile.getX(), tile.getY())) {
+            return null;
+        }
+        return super.loadTileData(tile);
+    }
+
+
+    /**
+     * If the max zoom is not set, the layer is drawn up to MAX_OVERZOOM levels beyond the highest
+     * packaged level from the scaled ancestors. The max zoom set by user is kept as is.
+     */
+    @Override
+    public float getMaxZoom()
+    {
+        float maxZoom = super.getMaxZoom();
+        if (null == mLimits || mLimits.isEmpty()
+                || Float.compare(maxZoom, GeoConstants.DEFAULT_MAX_ZOOM) != 0) {
+            return maxZoom;
+        }
+
+        int maxLevel = Collections.max(mLimits.keySet());
+        return Math.min(maxLevel + MAX_OVERZOOM, maxZoom);
+    }
+
+
     @Override
     public JSONObject toJSON()
             throws JSONException
@@ -182,88 +208,50 @@ public class LocalTMSLayer
     }
 
 
+    /**
+     * The per zoom limits are updated as the tiles are unpacked, so the archive is read in one pass
+     * without the folder scan
+     */
     @Override
     public void fillFromZip(Uri uri, IProgressor progressor) throws IOException, NumberFormatException, SecurityException, NGException {
+        mLimits = new HashMap<>();
         fillFromZipInt(uri, progressor);
+        if (null != progressor && progressor.isCanceled())
+            return;
 
-        int nMaxLevel = 0;
-        int nMinLevel = 512;
-        final File[] zoomLevels = mPath.listFiles();
-
-        if (zoomLevels == null)
+        if (mLimits.isEmpty())
             throw new NGException("Invalid content or zip structure");
 
-        if(null != progressor){
-            progressor.setMax(zoomLevels.length);
-            progressor.setValue(0);
-            progressor.setMessage(mContext.getString(R.string.message_opening));
-        }
-
-        int counter = 0;
-
-        for (File zoomLevel : zoomLevels) {
-            if(null != progressor) {
-                if(progressor.isCanceled())
-                    return;
-                progressor.setValue(counter++);
-                progressor.setMessage(getContext().getString(R.string.processed) + " " + counter + " " + getContext().getString(R.string.of) + " " + zoomLevels.length);
-
-            }
-
-            if(zoomLevel.getName().equals(Constants.CONFIG)){
-                continue;
-            }
-
-            int nMaxX = 0;
-            int nMinX = 10000000;
-            int nMaxY = 0;
-            int nMinY = 10000000;
-
-            int nLevelZ = Integer.parseInt(zoomLevel.getName());
-            if (nLevelZ > nMaxLevel) {
-                nMaxLevel = nLevelZ;
-            }
-            if (nLevelZ < nMinLevel) {
-                nMinLevel = nLevelZ;
+        if(Constants.DEBUG_MODE) {
+            for (Map.Entry<Integer, TileCacheLevelDescItem> entry : mLimits.entrySet()) {
+                TileCacheLevelDescItem item = entry.getValue();
+                Log.d(Constants.TAG, "Raster layer " + getName() + " limits: zoom " + entry.getKey() + " X[" + item.getMinX() + "," + item.getMaxX() + "] Y[" + item.getMinY() + "," + item.getMaxY() + "]");
             }
-            final File[] levelsX = zoomLevel.listFiles();
+        }
 
-            boolean bFirstTurn = true;
-            for (File inLevelX : levelsX) {
+        importTileDirectories(progressor);
+        save();
+    }
 
-                int nX = Integer.parseInt(inLevelX.getName());
-                if (nX > nMaxX) {
-                    nMaxX = nX;
-                }
-                if (nX < nMinX) {
-                    nMinX = nX;
-                }
 
-                final File[] levelsY = inLevelX.listFiles();
-
-                if (bFirstTurn) {
-                    for (File inLevelY : levelsY) {
-                        String sLevelY = inLevelY.getName();
-
-                        //Log.d(TAG, sLevelY);
-                        int nY = Integer.parseInt(
-                                sLevelY.replace(TILE_EXT, ""));
-                        if (nY > nMaxY) {
-                            nMaxY = nY;
-                        }
-                        if (nY < nMinY) {
-                            nMinY = nY;
-                        }
-                    }
-                    bFirstTurn = false;
-                }
-            }
-            addLimits(nLevelZ, nMaxX, nMaxY, nMinX, nMinY);
+    @Override
+    protected void onTileUnpacked(TileItem tile)
+    {
+        int x = tile.getX();
+        int y = tile.getY();
+        TileCacheLevelDescItem item = mLimits.get(tile.getZoomLevel());
+        if (null == item) {
+            addLimits(tile.getZoomLevel(), x, y, x, y);
+            return;
         }
 
-        save();
+        item.minX = Math.min(item.minX, x);
+        item.maxX = Math.max(item.maxX, x);
+        item.minY = Math.min(item.minY, y);
+        item.maxY = Math.max(item.maxY, y);
     }
 
+
     public void addLimits(
             int nLevelZ,
             int nMaxX,
@@ -31,6 +31,8 @@ import com.nextgis.maplib.api.IMapView;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.display.GISDisplay;
+import com.nextgis.maplib.display.LabelEngine;
+import com.nextgis.maplib.display.RenderMetrics;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplib.util.MapUtil;
@@ -73,7 +75,10 @@ public class MapDrawable
             boolean clearBackground)
     {
         if (mDisplay != null) {
+            RenderMetrics.Frame frame = beginComposition();
+            long startTime = System.nanoTime();
             mDisplay.draw(canvas, clearBackground);
+            endComposition(frame, startTime);
         }
     }
 
@@ -86,7 +91,10 @@ public class MapDrawable
             boolean clearBackground)
     {
         if (mDisplay != null) {
+            RenderMetrics.Frame frame = beginComposition();
+            long startTime = System.nanoTime();
             mDisplay.draw(canvas, x, y, clearBackground);
+            endComposition(frame, startTime);
         }
     }
 
@@ -99,7 +107,10 @@ public class MapDrawable
             float scale)
     {
         if (mDisplay != null) {
+            RenderMetrics.Frame frame = beginComposition();
+            long startTime = System.nanoTime();
             mDisplay.draw(canvas, x, y, scale);
+            endComposition(frame, startTime);
         }
     }
 
@@ -116,6 +127,30 @@ public class MapDrawable
     }
 
 
+    /**
+     * @return The frame to record the blit of the map bitmap to the view canvas or null if the
+     * metrics are disabled. The composition is recorded with the map identificator.
+     */
+    protected RenderMetrics.Frame beginComposition()
+    {
+        RenderMetrics metrics = mDisplay.getRenderMetrics();
+        return null == metrics ? null : metrics.beginFrame(getId());
+    }
+
+
+    protected void endComposition(
+            RenderMetrics.Frame frame,
+            long startTime)
+    {
+        RenderMetrics metrics = mDisplay.getRenderMetrics();
+        if (null == frame || null == metrics) {
+            return;
+        }
+        frame.addTime(RenderMetrics.STAGE_COMPOSITION, startTime);
+        metrics.endFrame(frame);
+    }
+
+
     @Override
     public void setViewSize(
             int w,
@@ -163,6 +198,7 @@ public class MapDrawable
 
             mDisplay.setZoomAndCenter(newZoom, center);
             onExtentChanged((int) newZoom, center);
+            prefetchTiles(mDisplay);
         }
     }
 
@@ -312,6 +348,16 @@ public class MapDrawable
     }
 
 
+    /**
+     * @return true if the map draw thread is running
+     */
+    public boolean isDrawing()
+    {
+        RunnableFuture<Void> task = mDrawThreadTask;
+        return null != task && !task.isDone();
+    }
+
+
     @Override
     public void cancelDraw()
     {
@@ -352,6 +398,53 @@ public class MapDrawable
     }
 
 
+    /**
+     * Enable or disable label placement. If enabled the labels of text styles are ranked by
+     * priority and only labels which do not overlap each other are drawn.
+     *
+     * @param enabled
+     *         true to enable label placement
+     */
+    public void setLabelPlacement(boolean enabled)
+    {
+        if (mDisplay != null) {
+            mDisplay.setLabelEngine(enabled ? new LabelEngine() : null);
+        }
+    }
+
+
+    public boolean isLabelPlacement()
+    {
+        return mDisplay != null && mDisplay.getLabelEngine() != null;
+    }
+
+
+    /**
+     * Enable or disable recording of render timings per layer and per draw stage
+     *
+     * @param enabled
+     *         true to record render metrics
+     */
+    public void setRenderMetricsEnabled(boolean enabled)
+    {
+        if (mDisplay != null) {
+            mDisplay.setRenderMetrics(enabled ? new RenderMetrics() : null);
+        }
+    }
+
+
+    /**
+     * @return The render metrics or null if recording is disabled
+     */
+    public RenderMetrics getRenderMetrics()
+    {
+        if (mDisplay != null) {
+            return mDisplay.getRenderMetrics();
+        }
+        return null;
+    }
+
+
     public void setBackground(Bitmap background) {
         mDisplay.setBackground(background);
     }
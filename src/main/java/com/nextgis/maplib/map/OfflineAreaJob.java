@@ -0,0 +1,550 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.util.Log;
+
+import com.nextgis.maplib.R;
+import com.nextgis.maplib.api.IProgressor;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoGeometryFactory;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.MapUtil;
+import com.nextgis.maplib.util.TileDiskQuota;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * Downloads the remote layer tiles of an area for the offline work. The tiles are downloaded by
+ * tile columns with not more than the layer download limit requests at once, the fresh tiles are
+ * skipped. The tiles failed by timeouts or the server congestion are retried with a backoff, the
+ * tiles in the negative cache are counted as missing and not requested.
+ * The last finished column is saved to the checkpoint file in the layer folder, so the job can be
+ * resumed after the application restart.
+ */
+public class OfflineAreaJob
+{
+    public static final String CHECKPOINT_FILE    = "offline_job.json";
+    public static final int    DEFAULT_TILE_BYTES = 15 * 1024;
+
+    protected static final String JSON_BOUNDS_KEY    = "bounds";
+    protected static final String JSON_AREA_KEY      = "area";
+    protected static final String JSON_MIN_ZOOM_KEY  = "min_zoom";
+    protected static final String JSON_MAX_ZOOM_KEY  = "max_zoom";
+    protected static final String JSON_ZOOM_KEY      = "zoom";
+    protected static final String JSON_COLUMN_KEY    = "column";
+    protected static final String JSON_DONE_KEY      = "done";
+    protected static final String JSON_FAILED_KEY    = "failed";
+    protected static final String JSON_MISSING_KEY   = "missing";
+    protected static final String JSON_BYTES_KEY     = "bytes";
+    protected static final String JSON_DOWNLOADS_KEY = "downloads";
+
+    protected static final long CHECKPOINT_INTERVAL = 5000; // ms
+    protected static final int  MAX_RETRIES         = 3;
+    protected static final long RETRY_DELAY         = 1000; // ms, doubled on each retry
+
+    // the tile results besides the downloaded byte count
+    protected static final long TILE_MISSING = -1;
+    protected static final long TILE_RETRY   = -2;
+
+    protected final RemoteTMSLayer mLayer;
+    protected final GeoEnvelope    mBounds;
+    protected final GeoGeometry    mArea;
+    protected final int            mMinZoom, mMaxZoom;
+
+    // the position to resume from
+    protected int  mZoom, mColumn;
+    protected long mDone, mFailed, mMissing, mBytes, mDownloads;
+    protected long mLastCheckpoint;
+
+
+    /**
+     * @param layer
+     *         The layer to download tiles
+     * @param bounds
+     *         The area bounds in Web Mercator
+     * @param minZoom
+     *         The first zoom level
+     * @param maxZoom
+     *         The last zoom level
+     */
+    public OfflineAreaJob(
+            RemoteTMSLayer layer,
+            GeoEnvelope bounds,
+            int minZoom,
+            int maxZoom)
+    {
+        this(layer, bounds, null, minZoom, maxZoom);
+    }
+
+
+    /**
+     * @param area
+     *         The area polygon in Web Mercator, only the tiles intersecting it are downloaded
+     */
+    public OfflineAreaJob(
+            RemoteTMSLayer layer,
+            GeoGeometry area,
+            int minZoom,
+            int maxZoom)
+    {
+        this(layer, area.getEnvelope(), area, minZoom, maxZoom);
+    }
+
+
+    protected OfflineAreaJob(
+            RemoteTMSLayer layer,
+            GeoEnvelope bounds,
+            GeoGeometry area,
+            int minZoom,
+            int maxZoom)
+    {
+        mLayer = layer;
+        mBounds = bounds;
+        mArea = area;
+        mMinZoom = Math.max(minZoom, 0);
+        mMaxZoom = Math.max(maxZoom, mMinZoom);
+        mZoom = mMinZoom;
+        mColumn = Constants.NOT_FOUND;
+    }
+
+
+    /**
+     * Load the interrupted job of the layer
+     *
+     * @return The job to resume or null if there is no checkpoint
+     */
+    public static OfflineAreaJob resume(RemoteTMSLayer layer)
+    {
+        File file = new File(layer.getPath(), CHECKPOINT_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            JSONObject jsonObject = new JSONObject(FileUtil.readFromFile(file));
+            GeoEnvelope bounds = new GeoEnvelope();
+            bounds.fromJSON(jsonObject.getJSONObject(JSON_BOUNDS_KEY));
+            GeoGeometry area = null;
+            if (jsonObject.has(JSON_AREA_KEY)) {
+                area = GeoGeometryFactory.fromWKT(jsonObject.getString(JSON_AREA_KEY));
+            }
+
+            OfflineAreaJob job = new OfflineAreaJob(
+                    layer, bounds, area, jsonObject.getInt(JSON_MIN_ZOOM_KEY),
+                    jsonObject.getInt(JSON_MAX_ZOOM_KEY));
+            job.mZoom = jsonObject.getInt(JSON_ZOOM_KEY);
+            job.mColumn = jsonObject.getInt(JSON_COLUMN_KEY);
+            job.mDone = jsonObject.getLong(JSON_DONE_KEY);
+            job.mFailed = jsonObject.getLong(JSON_FAILED_KEY);
+            job.mMissing = jsonObject.optLong(JSON_MISSING_KEY);
+            job.mBytes = jsonObject.getLong(JSON_BYTES_KEY);
+            job.mDownloads = jsonObject.getLong(JSON_DOWNLOADS_KEY);
+            return job;
+        } catch (IOException | JSONException e) {
+            Log.d(TAG, "Offline job checkpoint is broken: " + e.getLocalizedMessage());
+            file.delete();
+            return null;
+        }
+    }
+
+
+    protected void saveCheckpoint()
+    {
+        try {
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(JSON_BOUNDS_KEY, mBounds.toJSON());
+            if (null != mArea) {
+                jsonObject.put(JSON_AREA_KEY, mArea.toWKT(true));
+            }
+            jsonObject.put(JSON_MIN_ZOOM_KEY, mMinZoom);
+            jsonObject.put(JSON_MAX_ZOOM_KEY, mMaxZoom);
+            jsonObject.put(JSON_ZOOM_KEY, mZoom);
+            jsonObject.put(JSON_COLUMN_KEY, mColumn);
+            jsonObject.put(JSON_DONE_KEY, mDone);
+            jsonObject.put(JSON_FAILED_KEY, mFailed);
+            jsonObject.put(JSON_MISSING_KEY, mMissing);
+            jsonObject.put(JSON_BYTES_KEY, mBytes);
+            jsonObject.put(JSON_DOWNLOADS_KEY, mDownloads);
+            FileUtil.writeToFile(
+                    new File(mLayer.getPath(), CHECKPOINT_FILE), jsonObject.toString());
+        } catch (IOException | JSONException e) {
+            Log.d(TAG, "Offline job checkpoint is not saved: " + e.getLocalizedMessage());
+        }
+        mLastCheckpoint = System.currentTimeMillis();
+    }
+
+
+    public void deleteCheckpoint()
+    {
+        new File(mLayer.getPath(), CHECKPOINT_FILE).delete();
+    }
+
+
+    /**
+     * @return The tile column range [begin, end) of the area at the zoom level
+     */
+    protected int[] getColumnRange(int zoom)
+    {
+        int tilesInMapOneDimension = 1 << zoom;
+        double half = tilesInMapOneDimension * 0.5;
+        double tileSize = GeoConstants.MERCATOR_MAX / half;
+        int begX = (int) Math.floor(mBounds.getMinX() / tileSize + half);
+        int endX = (int) Math.ceil(mBounds.getMaxX() / tileSize + half);
+        if (begX == endX) {
+            endX++;
+        }
+        return new int[] {
+                Math.max(begX, 0), Math.min(endX, tilesInMapOneDimension)};
+    }
+
+
+    protected int getRowCount(int zoom)
+    {
+        int tilesInMapOneDimension = 1 << zoom;
+        double half = tilesInMapOneDimension * 0.5;
+        double tileSize = GeoConstants.MERCATOR_MAX / half;
+        int begY = (int) Math.floor(mBounds.getMinY() / tileSize + half);
+        int endY = (int) Math.ceil(mBounds.getMaxY() / tileSize + half);
+        if (begY == endY) {
+            endY++;
+        }
+        return Math.max(Math.min(endY, tilesInMapOneDimension) - Math.max(begY, 0), 0);
+    }
+
+
+    protected List<TileItem> getColumnTiles(
+            int zoom,
+            int column)
+    {
+        double tileSize = GeoConstants.MERCATOR_MAX * 2 / (1 << zoom);
+        double minX = -GeoConstants.MERCATOR_MAX + column * tileSize;
+        // shrink the column to avoid the neighbours by the rounding errors
+        GeoEnvelope env = new GeoEnvelope(
+                minX + tileSize * 0.01, minX + tileSize * 0.99, mBounds.getMinY(),
+                mBounds.getMaxY());
+        List<TileItem> tiles = MapUtil.getTileItems(env, zoom, mLayer.getTMSType());
+        if (null == mArea) {
+            return tiles;
+        }
+
+        List<TileItem> result = new ArrayList<>(tiles.size());
+        for (TileItem tile : tiles) {
+            if (mArea.intersects(tile.getEnvelope())) {
+                result.add(tile);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * @return The tile count of the area, the upper bound for the polygon area
+     */
+    public long getTileCount()
+    {
+        long count = 0;
+        for (int zoom = mMinZoom; zoom <= mMaxZoom; zoom++) {
+            int[] range = getColumnRange(zoom);
+            count += (long) (range[1] - range[0]) * getRowCount(zoom);
+        }
+        return count;
+    }
+
+
+    /**
+     * @return The average size of downloaded tiles or DEFAULT_TILE_BYTES if nothing is downloaded
+     * yet
+     */
+    public long getAverageTileSize()
+    {
+        if (mDownloads == 0) {
+            return DEFAULT_TILE_BYTES;
+        }
+        return mBytes / mDownloads;
+    }
+
+
+    /**
+     * @return The estimated bytes to download, the stored tiles are counted too
+     */
+    public long getEstimatedSize()
+    {
+        return getTileCount() * getAverageTileSize();
+    }
+
+
+    /**
+     * @return The disk quota the layer tiles are kept in, the least of the layer and the global
+     * quotas, or 0 if the tiles are not limited
+     */
+    public long getDiskQuota()
+    {
+        long layerQuota = mLayer.getDiskQuota();
+        long globalQuota = TileDiskQuota.getGlobalQuota();
+        if (layerQuota <= 0) {
+            return Math.max(globalQuota, 0);
+        }
+        return globalQuota > 0 ? Math.min(layerQuota, globalQuota) : layerQuota;
+    }
+
+
+    /**
+     * @return true if the estimated area size exceeds the disk quota, the area tiles would evict
+     * each other while downloading, so the job is not run
+     */
+    public boolean isOverQuota()
+    {
+        long quota = getDiskQuota();
+        return quota > 0 && getEstimatedSize() > quota;
+    }
+
+
+    public long getDoneCount()
+    {
+        return mDone;
+    }
+
+
+    /**
+     * @return The tiles not downloaded after all retries when the job stopped, they are requested
+     * again when the job is resumed
+     */
+    public long getFailedCount()
+    {
+        return mFailed;
+    }
+
+
+    /**
+     * @return The tiles the server has not returned, see RemoteTMSLayer.isTileMissing()
+     */
+    public long getMissingCount()
+    {
+        return mMissing;
+    }
+
+
+    public long getDownloadedBytes()
+    {
+        return mBytes;
+    }
+
+
+    /**
+     * Download the tiles. The method blocks until the job is finished or canceled.
+     *
+     * @param progressor
+     *         The progress by tiles, may be null
+     *
+     * @return true if all tiles are processed, false if the job is canceled, the network is lost or
+     * the tiles are not downloaded after all retries, the job can be resumed then. False at once if the area exceeds the disk quota, see
+     * isOverQuota().
+     */
+    public boolean run(IProgressor progressor)
+    {
+        if (isOverQuota()) {
+            Log.w(TAG, "Offline area of " + getEstimatedSize() + " bytes exceeds the disk quota " +
+                       getDiskQuota() + " bytes");
+            return false;
+        }
+
+        long total = getTileCount();
+        if (null != progressor) {
+            progressor.setMax((int) Math.min(total, Integer.MAX_VALUE));
+            progressor.setValue((int) Math.min(mDone, Integer.MAX_VALUE));
+        }
+
+        // the requests are limited by the layer download concurrency
+        int threadCount = mLayer.getDownloadMetrics().getMaxLimit();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                threadCount, threadCount, Constants.KEEP_ALIVE_TIME,
+                Constants.KEEP_ALIVE_TIME_UNIT, new LinkedBlockingQueue<Runnable>());
+
+        try {
+            for (; mZoom <= mMaxZoom; mZoom++) {
+                int[] range = getColumnRange(mZoom);
+                if (mColumn == Constants.NOT_FOUND) {
+                    mColumn = range[0];
+                }
+
+                for (; mColumn < range[1]; mColumn++) {
+                    if (null != progressor && progressor.isCanceled() ||
+                            Thread.currentThread().isInterrupted() ||
+                            !mLayer.mNet.isNetworkAvailable()) {
+                        saveCheckpoint();
+                        return false;
+                    }
+
+                    // the checkpoint stays before the column with the failed tiles
+                    if (!downloadColumn(executor, getColumnTiles(mZoom, mColumn))) {
+                        saveCheckpoint();
+                        return false;
+                    }
+
+                    if (null != progressor) {
+                        progressor.setValue((int) Math.min(mDone, Integer.MAX_VALUE));
+                        progressor.setMessage(
+                                mLayer.getContext().getString(R.string.processed) + " " + mDone +
+                                " " + mLayer.getContext().getString(R.string.of) + " " + total);
+                    }
+
+                    if (System.currentTimeMillis() - mLastCheckpoint > CHECKPOINT_INTERVAL) {
+                        mColumn++;
+                        saveCheckpoint();
+                        mColumn--;
+                    }
+                }
+                mColumn = Constants.NOT_FOUND;
+            }
+        } catch (InterruptedException e) {
+            saveCheckpoint();
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            executor.shutdownNow();
+            mLayer.getTileStore().flush();
+        }
+
+        deleteCheckpoint();
+        return true;
+    }
+
+
+    /**
+     * Download the column tiles, the tiles failed by timeouts or congestion are retried with a
+     * backoff. The done and missing counts are changed only if the column is finished, so they
+     * match the checkpoint.
+     *
+     * @return true if the column is finished, false if some tiles are not downloaded after all
+     * retries or the network is lost
+     */
+    protected boolean downloadColumn(
+            ThreadPoolExecutor executor,
+            List<TileItem> tiles)
+            throws InterruptedException
+    {
+        long done = 0, missing = 0;
+        List<TileItem> pending = tiles;
+        for (int retry = 0; ; retry++) {
+            List<TileItem> failed = new ArrayList<>();
+            List<Future<Long>> futures = submitTiles(executor, pending);
+            for (int i = 0; i < futures.size(); i++) {
+                long result;
+                try {
+                    result = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    result = TILE_RETRY;
+                }
+
+                if (result == TILE_RETRY) {
+                    failed.add(pending.get(i));
+                    continue;
+                }
+                if (result == TILE_MISSING) {
+                    missing++;
+                } else if (result > 0) {
+                    mBytes += result;
+                    mDownloads++;
+                }
+                done++;
+            }
+
+            if (failed.isEmpty()) {
+                break;
+            }
+            if (retry == MAX_RETRIES || !mLayer.mNet.isNetworkAvailable()) {
+                Log.d(TAG, "Offline job stopped, " + failed.size() + " tiles are not downloaded");
+                mFailed = failed.size();
+                return false;
+            }
+            Thread.sleep(RETRY_DELAY << retry);
+            pending = failed;
+        }
+
+        mDone += done;
+        mMissing += missing;
+        mFailed = 0;
+        return true;
+    }
+
+
+    /**
+     * @return The futures of the downloaded byte counts, 0 for the fresh tiles, TILE_MISSING or
+     * TILE_RETRY
+     */
+    protected List<Future<Long>> submitTiles(
+            ThreadPoolExecutor executor,
+            List<TileItem> tiles)
+    {
+        List<Future<Long>> futures = new ArrayList<>(tiles.size());
+        for (final TileItem tile : tiles) {
+            futures.add(
+                    executor.submit(
+                            new Callable<Long>()
+                            {
+                                @Override
+                                public Long call()
+                                {
+                                    if (mLayer.isTileFresh(tile)) {
+                                        return 0L;
+                                    }
+                                    if (mLayer.isTileMissing(tile)) {
+                                        return TILE_MISSING;
+                                    }
+                                    long size = mLayer.fetchTile(tile);
+                                    if (size > 0) {
+                                        return size;
+                                    }
+                                    // the server has answered with no tile or an error
+                                    if (mLayer.isTileMissing(tile)) {
+                                        return TILE_MISSING;
+                                    }
+                                    // a permit or socket timeout, the congestion or the lost network
+                                    return TILE_RETRY;
+                                }
+                            }));
+        }
+        return futures;
+    }
+}
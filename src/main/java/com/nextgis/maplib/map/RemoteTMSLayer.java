@@ -25,26 +25,39 @@ package com.nextgis.maplib.map;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.nextgis.maplib.api.IProgressor;
+import com.nextgis.maplib.api.ITileStore;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.datasource.TileNegativeCache;
+import com.nextgis.maplib.display.GISDisplay;
+import com.nextgis.maplib.display.TMSRenderer;
+import com.nextgis.maplib.display.TileColorFilter;
 import com.nextgis.maplib.util.Constants;
-import com.nextgis.maplib.util.FileUtil;
 import com.nextgis.maplib.util.NetworkUtil;
+import com.nextgis.maplib.util.TileDiskQuota;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 
 import static com.nextgis.maplib.util.Constants.DEFAULT_TILE_MAX_AGE;
@@ -57,10 +70,12 @@ import static com.nextgis.maplib.util.GeoConstants.MERCATOR_MAX;
 public class RemoteTMSLayer
         extends TMSLayer
 {
-    protected static final String JSON_URL_KEY      = "url";
-    protected static final String JSON_LOGIN_KEY    = "login";
-    protected static final String JSON_PASSWORD_KEY = "password";
-    protected static final String JSON_TILE_AGE_KEY = "tile_age";
+    protected static final String JSON_URL_KEY        = "url";
+    protected static final String JSON_LOGIN_KEY      = "login";
+    protected static final String JSON_PASSWORD_KEY   = "password";
+    protected static final String JSON_TILE_AGE_KEY   = "tile_age";
+    protected static final String JSON_PREFETCH_KEY   = "prefetch";
+    protected static final String JSON_DISK_QUOTA_KEY = "disk_quota";
 
     protected       String       mURL;
     protected       NetworkUtil  mNet;
@@ -70,11 +85,23 @@ public class RemoteTMSLayer
     protected       String       mLogin;
     protected       String       mPassword;
     protected       String       mStartDate, mEndDate;
-    protected       Semaphore    mAvailable;
+    protected volatile DownloadConcurrency mConcurrency;
+
+    protected final ConcurrentMap<String, FutureTask<Bitmap>>  mBitmapRequests;
+    protected final ConcurrentMap<String, FutureTask<Long>>    mTileRequests;
+    protected       TileDownloader                             mDownloader;
+    protected       boolean                                    mAsyncDownload;
+    protected       TilePrefetcher                             mPrefetcher;
+    protected       boolean                                    mPrefetch;
+    protected       long                                       mDiskQuota;
+    protected       ITileStore                                 mQuotaStore;
+    protected       TileNegativeCache                          mNegativeCache;
     protected long mTileMaxAge;
 
     public final static long DELAY = NetworkUtil.TIMEOUT_SOCKET + NetworkUtil.TIMEOUT_CONNECTION;
 
+    protected static final int HTTP_TOO_MANY_REQUESTS = 429;
+
 
     public RemoteTMSLayer(
             Context context,
@@ -84,6 +111,12 @@ public class RemoteTMSLayer
 
         mNet = new NetworkUtil(context);
         mSubdomains = new ArrayList<>();
+        // replaced by the URL subdomains count in setURL
+        mConcurrency = new DownloadConcurrency(getMaxThreadCount());
+        mBitmapRequests = new ConcurrentHashMap<>();
+        mTileRequests = new ConcurrentHashMap<>();
+        mAsyncDownload = false;
+        mPrefetch = true;
         mCurrentSubdomain = 0;
         mLayerType = LAYERTYPE_REMOTE_TMS;
         mTileMaxAge = DEFAULT_TILE_MAX_AGE;
@@ -93,15 +126,17 @@ public class RemoteTMSLayer
 
     public synchronized void onPrepare()
     {
-        int diff = getMaxThreadCount() - mAvailable.availablePermits();
-        if (diff > 0) {
-            mAvailable.release(diff);
-        }
-
         if(Constants.DEBUG_MODE)
-            Log.d(
-                TAG, "Semaphore left: " + mAvailable.availablePermits() + " max thread: " +
-                        getMaxThreadCount());
+            Log.d(TAG, "Download state: " + mConcurrency.getMetrics());
+    }
+
+
+    /**
+     * @return The current download concurrency limit, throughput and latency of the layer
+     */
+    public DownloadConcurrency.Metrics getDownloadMetrics()
+    {
+        return mConcurrency.getMetrics();
     }
 
     public void downloadTile(TileItem tile){
@@ -110,39 +145,200 @@ public class RemoteTMSLayer
         }
 
         // try to get tile from local cache
-        File tilePath = new File(mPath, tile.toString("{z}/{x}/{y}" + TILE_EXT));
-        boolean exist = tilePath.exists();
-        if (exist && System.currentTimeMillis() - tilePath.lastModified() < mTileMaxAge) {
+        long timestamp = getTileStore().getTimestamp(tile);
+        if (timestamp > 0 && System.currentTimeMillis() - timestamp < mTileMaxAge) {
             return;
         }
 
-        if (!mNet.isNetworkAvailable()) {
+        if (!mNet.isNetworkAvailable() || isTileMissing(tile)) {
             return;
         }
 
+        if (timestamp > 0) {
+            refreshTile(tile);
+        } else {
+            fetchTile(tile);
+        }
+    }
+
+
+    protected boolean isTileFresh(TileItem tile)
+    {
+        long timestamp = getTileStore().getTimestamp(tile);
+        return timestamp > 0 && System.currentTimeMillis() - timestamp < mTileMaxAge;
+    }
+
+
+    /**
+     * Download the tile to the tile store. Concurrent calls for the same tile share one request.
+     *
+     * @return The downloaded byte count, 0 if the tile is not downloaded
+     */
+    protected long fetchTile(final TileItem tile)
+    {
+        if (isTileMissing(tile)) {
+            return 0;
+        }
+
+        Long result = coalesce(
+                mTileRequests, tile.getHash(), new Callable<Long>()
+                {
+                    @Override
+                    public Long call()
+                    {
+                        return fetchTileInt(tile, false);
+                    }
+                });
+        return null == result ? 0 : result;
+    }
+
+
+    /**
+     * Revalidate the stored tile with the stored HTTP validators. If the server reports the tile
+     * is not modified only the tile timestamp is updated.
+     *
+     * @return The downloaded byte count, 0 if the tile is not modified or not downloaded
+     */
+    protected long refreshTile(final TileItem tile)
+    {
+        if (isTileMissing(tile)) {
+            return 0;
+        }
+
+        Long result = coalesce(
+                mTileRequests, tile.getHash(), new Callable<Long>()
+                {
+                    @Override
+                    public Long call()
+                    {
+                        return fetchTileInt(tile, true);
+                    }
+                });
+        return null == result ? 0 : result;
+    }
+
+
+    protected long fetchTileInt(
+            TileItem tile,
+            boolean conditional)
+    {
         // try to get tile from remote
         String url = tile.toString(getURLSubdomain());
-        Log.d(TAG, "url: " + url);
+        if(Constants.DEBUG_MODE)
+            Log.d(TAG, "url: " + url);
+        DownloadConcurrency concurrency = mConcurrency;
         try {
 
-            if (!mAvailable.tryAcquire(DELAY, TimeUnit.MILLISECONDS)) {
-                return;
+            if (!concurrency.tryAcquire(DELAY, TimeUnit.MILLISECONDS)) { //.acquire();
+                return 0;
+            }
+
+            if(Constants.DEBUG_MODE)
+                Log.d(TAG, "Download state: " + concurrency.getMetrics());
+
+            ITileStore store = getTileStore();
+            String[] validators = conditional ? store.getValidators(tile) : null;
+            if (null == validators) {
+                validators = new String[2];
             }
 
-            FileUtil.createDir(tilePath.getParentFile());
-            OutputStream output = new FileOutputStream(tilePath.getAbsolutePath());
-            NetworkUtil.getStream(url, getLogin(), getPassword(), output);
+            // the tile is written after the response, so 304 does not truncate the stored one
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            int responseCode;
+            long startTime = System.currentTimeMillis();
+            try {
+                responseCode = NetworkUtil.getStreamIfModified(
+                        url, getLogin(), getPassword(), validators, buffer);
+            } catch (SocketTimeoutException e) {
+                concurrency.onCongestion();
+                throw e;
+            } finally {
+                concurrency.release();
+            }
+
+            if (responseCode == HTTP_TOO_MANY_REQUESTS ||
+                    responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+                concurrency.onCongestion();
+                return 0;
+            }
+            concurrency.onSuccess(System.currentTimeMillis() - startTime, buffer.size());
+
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                store.touch(tile, System.currentTimeMillis());
+                TileDiskQuota.onAccess(mPath, tile);
+                return 0;
+            }
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND ||
+                    responseCode == HttpURLConnection.HTTP_GONE ||
+                    responseCode == HttpURLConnection.HTTP_NO_CONTENT ||
+                    (responseCode == HttpURLConnection.HTTP_OK && buffer.size() == 0)) {
+                getNegativeCache().onNotFound(tile);
+                return 0;
+            }
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                getNegativeCache().onError(tile);
+                return 0;
+            }
 
-            mAvailable.release();
+            OutputStream output = store.getOutputStream(tile);
+            buffer.writeTo(output);
+            output.close();
+            store.setValidators(tile, validators);
+            TileDiskQuota.onWrite(mPath, tile, buffer.size());
+            return buffer.size();
 
-        } catch (InterruptedException | IOException | IllegalArgumentException e) {
+        } catch (IOException | IllegalArgumentException e) {
             e.printStackTrace();
             Log.d(
                     TAG, "Problem downloading MapTile: " + url + " Error: " +
-                            e.getLocalizedMessage());
+                         e.getLocalizedMessage());
+            // the tiles are not marked while the device is offline or the link is overloaded
+            if (mNet.isNetworkAvailable() && !(e instanceof SocketTimeoutException)) {
+                getNegativeCache().onError(tile);
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Log.d(
+                    TAG, "Problem downloading MapTile: " + url + " Error: " +
+                         e.getLocalizedMessage());
         }
+        return 0;
     }
 
+
+    /**
+     * Run the callable or wait for the same request already running in other thread and share its
+     * result
+     *
+     * @return The result or null if the request failed or the thread is interrupted
+     */
+    protected static <T> T coalesce(
+            ConcurrentMap<String, FutureTask<T>> requests,
+            String key,
+            Callable<T> callable)
+    {
+        FutureTask<T> task = new FutureTask<>(callable);
+        FutureTask<T> inFlight = requests.putIfAbsent(key, task);
+        if (null == inFlight) {
+            inFlight = task;
+            try {
+                task.run();
+            } finally {
+                requests.remove(key, task);
+            }
+        }
+
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.d(TAG, "Tile request " + key + " failed: " + e.getLocalizedMessage());
+        }
+        return null;
+    }
+
+
     @Override
     public Bitmap getBitmap(final TileItem tile)
     {
@@ -152,78 +348,306 @@ public class RemoteTMSLayer
 
         Bitmap ret = getBitmapFromCache(tile.getHash());
         if (null != ret) {
+            TileDiskQuota.onAccess(mPath, tile);
             return ret;
         }
 
+        return coalesce(
+                mBitmapRequests, tile.getHash(), new Callable<Bitmap>()
+                {
+                    @Override
+                    public Bitmap call()
+                    {
+                        return loadBitmap(tile);
+                    }
+                });
+    }
+
+
+    protected Bitmap loadBitmap(final TileItem tile)
+    {
         // try to get tile from local cache
-        File tilePath = new File(mPath, tile.toString("{z}/{x}/{y}" + TILE_EXT));
-        boolean exist = tilePath.exists();
-        //Log.d(TAG, "time diff: " + (System.currentTimeMillis() - tilePath.lastModified()) + " age: " + DEFAULT_TILE_MAX_AGE);
+        long timestamp = getTileStore().getTimestamp(tile);
+        boolean exist = timestamp > 0;
+        Bitmap ret;
+        //Log.d(TAG, "time diff: " + (System.currentTimeMillis() - timestamp) + " age: " + DEFAULT_TILE_MAX_AGE);
         if (exist) {
-            ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
+            ret = decodeTile(tile);
             if (ret != null) {
                 putBitmapToCache(tile.getHash(), ret);
-                if(System.currentTimeMillis() - tilePath.lastModified() > mTileMaxAge) {
+                TileDiskQuota.onAccess(mPath, tile);
+                if(System.currentTimeMillis() - timestamp > mTileMaxAge) {
                     if(Constants.DEBUG_MODE)
-                        Log.d(Constants.TAG, "Update old tile " + tile.toString() + " tile date:" + tilePath.lastModified() + " current date:" + System.currentTimeMillis());
+                        Log.d(Constants.TAG, "Update old tile " + tile.toString() + " tile date:" + timestamp + " current date:" + System.currentTimeMillis());
                     // update tile
-                    new Thread(new Runnable() {
-                        public void run() {
-                            downloadTile(tile);
-                        }
-                    }).start();
+                    if (mNet.isNetworkAvailable() && !isTileMissing(tile)) {
+                        getDownloader().refresh(tile);
+                    }
                 }
                 return ret;
             }
         }
 
-        if (!mNet.isNetworkAvailable()) { //return tile from cache
+        if (!mNet.isNetworkAvailable() || isTileMissing(tile)) { //return tile from cache
             return null;
         }
 
-        // try to get tile from remote
-        String url = tile.toString(getURLSubdomain());
-        if(Constants.DEBUG_MODE)
-            Log.d(TAG, "url: " + url);
-        try {
+        // do not block the drawing, the layer is redrawn when the tile is downloaded
+        if (mAsyncDownload) {
+            getDownloader().schedule(tile);
+            return null;
+        }
 
-            if (!mAvailable.tryAcquire(DELAY, TimeUnit.MILLISECONDS)) { //.acquire();
-                if (exist) //if exist but not reload from internet
-                {
-                    ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
+        if (fetchTile(tile) == 0) {
+            return null;
+        }
+
+        ret = decodeTile(tile);
+        putBitmapToCache(tile.getHash(), ret);
+        return ret;
+    }
+
+
+    @Override
+    public Bitmap getCachedBitmap(
+            TileItem tile,
+            TileColorFilter filter)
+    {
+        Bitmap bitmap = super.getCachedBitmap(tile, filter);
+        if (null != bitmap) {
+            TileDiskQuota.onAccess(mPath, tile);
+        }
+        return bitmap;
+    }
+
+
+    /**
+     * Read the stored tile and queue the stale tile revalidation. The absent tile is downloaded in
+     * background and drawn by the renderer when it arrives, so the draw never waits for network.
+     */
+    @Override
+    public byte[] loadTileData(TileItem tile)
+    {
+        long timestamp = getTileStore().getTimestamp(tile);
+        if (timestamp > 0) {
+            byte[] data = getTileStore().getTileData(tile);
+            if (null != data) {
+                TileDiskQuota.onAccess(mPath, tile);
+                if (System.currentTimeMillis() - timestamp > mTileMaxAge &&
+                        mNet.isNetworkAvailable() && !isTileMissing(tile)) {
+                    getDownloader().refresh(tile);
                 }
+                return data;
+            }
+        }
 
-                putBitmapToCache(tile.getHash(), ret);
-                return ret;
+        if (!mNet.isNetworkAvailable() || isTileMissing(tile)) {
+            return null;
+        }
+
+        getDownloader().schedule(tile);
+        return null;
+    }
+
+
+    /**
+     * Decode the downloaded tile to the memory cache, so the next draw does not wait for it
+     */
+    protected void onTileDownloaded(TileItem tile)
+    {
+        if (mCacheSizeMult == 0) {
+            return;
+        }
+        // nobody holds the tile, it can be reused after eviction
+        releaseBitmap(cacheDecodedBitmap(tile, decodeTile(tile), mColorFilter));
+    }
+
+
+    protected synchronized TileDownloader getDownloader()
+    {
+        if (null == mDownloader) {
+            mDownloader = new TileDownloader(this, mConcurrency.getMaxLimit());
+        }
+        return mDownloader;
+    }
+
+
+    /**
+     * Called in the main thread with the tiles downloaded since the last call. The renderer draws
+     * them over the current map image, the layer is redrawn entirely only if it can not.
+     */
+    protected void onTilesArrived(List<TileItem> tiles)
+    {
+        if (tiles.isEmpty()) {
+            return;
+        }
+        if (mRenderer instanceof TMSRenderer && ((TMSRenderer) mRenderer).drawArrivedTiles(tiles)) {
+            return;
+        }
+        notifyLayerChanged();
+    }
+
+
+    /**
+     * Set the tiles to draw now in the draw order, the downloads of other tiles are cancelled
+     */
+    public void setVisibleTiles(List<TileItem> tiles)
+    {
+        getDownloader().setVisibleTiles(tiles);
+    }
+
+
+    public synchronized TilePrefetcher getPrefetcher()
+    {
+        if (null == mPrefetcher) {
+            mPrefetcher = new TilePrefetcher(this);
+        }
+        return mPrefetcher;
+    }
+
+
+    /**
+     * Queue the tiles which are about to appear after the map extent change
+     */
+    public void prefetch(GISDisplay display)
+    {
+        if (!mPrefetch || !mNet.isNetworkAvailable()) {
+            return;
+        }
+
+        TilePrefetcher prefetcher = getPrefetcher();
+        List<TileItem> tiles = prefetcher.onExtentChanged(
+                display.getBounds(), display.getVisibleBounds(), display.getZoomLevel());
+        Iterator<TileItem> iterator = tiles.iterator();
+        while (iterator.hasNext()) {
+            if (isTileMissing(iterator.next())) {
+                iterator.remove();
             }
+        }
+        getDownloader().prefetch(tiles, prefetcher);
+    }
 
-            if(Constants.DEBUG_MODE)
-                Log.d(TAG, "Semaphore left: " + mAvailable.availablePermits());
 
-            FileUtil.createDir(tilePath.getParentFile());
-            OutputStream output = new FileOutputStream(tilePath.getAbsolutePath());
-            NetworkUtil.getStream(url, getLogin(), getPassword(), output);
+    public synchronized TileNegativeCache getNegativeCache()
+    {
+        if (null == mNegativeCache) {
+            mNegativeCache = new TileNegativeCache(mPath);
+        }
+        return mNegativeCache;
+    }
 
-            mAvailable.release();
 
-            ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
-            putBitmapToCache(tile.getHash(), ret);
-            return ret;
+    /**
+     * @return true if the server has not returned the tile recently, the tile is not requested
+     * until the negative cache entry expires
+     */
+    public boolean isTileMissing(TileItem tile)
+    {
+        return getNegativeCache().contains(tile);
+    }
 
-        } catch (InterruptedException | IOException | IllegalArgumentException e) {
-            e.printStackTrace();
-            Log.d(
-                    TAG, "Problem downloading MapTile: " + url + " Error: " +
-                         e.getLocalizedMessage());
+
+    public boolean isPrefetch()
+    {
+        return mPrefetch;
+    }
+
+
+    public void setPrefetch(boolean prefetch)
+    {
+        mPrefetch = prefetch;
+    }
+
+
+    public boolean isAsyncDownload()
+    {
+        return mAsyncDownload;
+    }
+
+
+    /**
+     * If true getBitmap returns null for absent tiles at once and downloads them in background,
+     * otherwise getBitmap waits for the download. False by default, the renderer does not use
+     * getBitmap and never waits for the download.
+     */
+    public void setAsyncDownload(boolean asyncDownload)
+    {
+        mAsyncDownload = asyncDownload;
+    }
+
+
+    /**
+     * The downloaded tiles can not be written to the read-only tile pack
+     */
+    @Override
+    public void setTileStorage(
+            int tileStorage,
+            IProgressor progressor)
+            throws IOException
+    {
+        if (TILE_STORAGE_PACK == tileStorage) {
+            throw new IllegalArgumentException("The tile pack is read-only");
         }
+        super.setTileStorage(tileStorage, progressor);
+    }
 
-        if (exist) //if exist but not reload from internet
-        {
-            ret = BitmapFactory.decodeFile(tilePath.getAbsolutePath());
-            putBitmapToCache(tile.getHash(), ret);
-            return ret;
+
+    @Override
+    protected boolean isTileTimestampUsed()
+    {
+        return true;
+    }
+
+
+    /**
+     * Register the tile store in the disk quota, the store is changed if the tile storage type is
+     * changed
+     */
+    @Override
+    public ITileStore getTileStore()
+    {
+        ITileStore store = super.getTileStore();
+        synchronized (lock) {
+            if (store != mQuotaStore) {
+                mQuotaStore = store;
+                TileDiskQuota.register(mPath, store, mDiskQuota);
+            }
         }
-        return null;
+        return store;
+    }
+
+
+    public long getDiskQuota()
+    {
+        return mDiskQuota;
+    }
+
+
+    /**
+     * Set the maximum size of the downloaded tiles of the layer in bytes, 0 to limit by the global
+     * quota only. The least recently used tiles are removed in background.
+     */
+    public void setDiskQuota(long diskQuota)
+    {
+        synchronized (lock) {
+            mDiskQuota = diskQuota;
+            mQuotaStore = null;
+        }
+        getTileStore();
+    }
+
+
+    @Override
+    public boolean delete()
+    {
+        synchronized (this) {
+            if (null != mDownloader) {
+                mDownloader.shutdown();
+                mDownloader = null;
+            }
+        }
+        TileDiskQuota.unregister(mPath);
+        return super.delete();
     }
 
 
@@ -245,6 +669,8 @@ public class RemoteTMSLayer
         }
 
         rootConfig.put(JSON_TILE_AGE_KEY, mTileMaxAge);
+        rootConfig.put(JSON_PREFETCH_KEY, mPrefetch);
+        rootConfig.put(JSON_DISK_QUOTA_KEY, mDiskQuota);
 
         return rootConfig;
     }
@@ -270,6 +696,8 @@ public class RemoteTMSLayer
         if(jsonObject.has(JSON_TILE_AGE_KEY)) {
             mTileMaxAge = jsonObject.getLong(JSON_TILE_AGE_KEY);
         }
+        mPrefetch = jsonObject.optBoolean(JSON_PREFETCH_KEY, true);
+        mDiskQuota = jsonObject.optLong(JSON_DISK_QUOTA_KEY, 0);
 
         analizeURL(mURL);
     }
@@ -285,6 +713,7 @@ public class RemoteTMSLayer
     {
         mURL = URL;
         analizeURL(mURL);
+        getNegativeCache().clear();
     }
 
 
@@ -352,7 +781,34 @@ public class RemoteTMSLayer
             mSubDomainsMask = url.substring(beginSubDomains, endSubDomains + 1);
         }
 
-        mAvailable = new Semaphore(getMaxThreadCount(), true);
+        // the new server link is learned again, the limit depends on subdomains
+        mConcurrency = new DownloadConcurrency(getMaxThreadCount());
+
+        synchronized (this) {
+            // the thread count depends on subdomains
+            if (null != mDownloader) {
+                mDownloader.shutdown();
+                mDownloader = null;
+            }
+        }
+    }
+
+
+    /**
+     * @return The tile format from the URL extension, png if the URL has no extension
+     */
+    @Override
+    protected String getTileFormat()
+    {
+        if (null == mURL) {
+            return super.getTileFormat();
+        }
+        String path = mURL.toLowerCase(Locale.US);
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        return path.endsWith(".jpg") || path.endsWith(".jpeg") ? "jpg" : super.getTileFormat();
     }
 
 
@@ -25,17 +25,30 @@ package com.nextgis.maplib.map;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.util.Log;
 
 import com.nextgis.maplib.R;
 import com.nextgis.maplib.api.IJSONStore;
 import com.nextgis.maplib.api.IProgressor;
+import com.nextgis.maplib.api.ITileStore;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.IndexedTileStore;
+import com.nextgis.maplib.datasource.MBTilesStore;
+import com.nextgis.maplib.datasource.TileDirectoryStore;
 import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.datasource.TilePackStore;
 import com.nextgis.maplib.display.TMSRenderer;
+import com.nextgis.maplib.display.TileColorFilter;
+import com.nextgis.maplib.util.BitmapPool;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplib.util.NGException;
+import com.nextgis.maplib.util.TileCache;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -43,8 +56,7 @@ import org.json.JSONObject;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.io.OutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -56,13 +68,31 @@ public abstract class TMSLayer
 {
     protected static final String JSON_TMSTYPE_KEY     = "tms_type";
     protected static final String JSON_CACHE_SIZE_MULT = "cache_size_multiply";
-    public static final String TILE_EXT = ".tile";
+    protected static final String JSON_BITMAP_CONFIG_KEY = "bitmap_config";
+    protected static final String JSON_DOWNSAMPLE_KEY    = "downsample";
+    protected static final String JSON_TILE_STORAGE_KEY  = "tile_storage";
+    public static final String TILE_EXT = TileDirectoryStore.TILE_EXT;
+
+    public static final int TILE_STORAGE_DIRECTORY = 0;
+    public static final int TILE_STORAGE_MBTILES   = 1;
+    public static final int TILE_STORAGE_PACK      = 2;
+
+    /**
+     * The maximum zoom difference of the ancestor tile drawn instead of the absent tile, the tile
+     * part is 8 pixels wide at this level
+     */
+    public static final int MAX_OVERZOOM = 5;
 
     protected int mTMSType;
     protected static final int HTTP_SEPARATE_THREADS = 2;
-    protected Map<String, Bitmap> mBitmapCache;
-    protected int                 mCacheSize, mCacheSizeMult;
+    protected int mCacheSizeMult;
     protected int mViewWidth, mViewHeight;
+    protected Bitmap.Config    mBitmapConfig;
+    protected boolean          mDownsample;
+    protected int              mTileStorage;
+    protected ITileStore       mTileStore;
+    protected IndexedTileStore mIndexedStore;
+    protected volatile TileColorFilter mColorFilter;
     protected final Object lock = new Object();
 
 
@@ -73,7 +103,12 @@ public abstract class TMSLayer
         super(context, path);
 
         mCacheSizeMult = 0;
+        mBitmapConfig = Bitmap.Config.ARGB_8888;
+        mDownsample = false;
+        mTileStorage = TILE_STORAGE_DIRECTORY;
         mRenderer = new TMSRenderer(this);
+
+        TileCache.registerCallbacks(context);
     }
 
 
@@ -86,22 +121,398 @@ public abstract class TMSLayer
     public void setTMSType(int type)
     {
         mTMSType = type;
+        synchronized (lock) {
+            if (mTileStore instanceof MBTilesStore) {
+                ((MBTilesStore) mTileStore).setFlipY(mTMSType == GeoConstants.TMSTYPE_OSM);
+                mIndexedStore.invalidate();
+            }
+        }
+    }
+
+
+    public int getTileStorage()
+    {
+        return mTileStorage;
+    }
+
+
+    /**
+     * Select the tile storage. The tiles in directories are moved to the MBTiles file or the
+     * read-only tile pack when one is selected, the tiles of the MBTiles file or the pack are dropped
+     * when other storage is selected.
+     */
+    public void setTileStorage(
+            int tileStorage,
+            IProgressor progressor)
+            throws IOException
+    {
+        if (mTileStorage == tileStorage) {
+            return;
+        }
+
+        synchronized (lock) {
+            closeTileStore();
+            if (TILE_STORAGE_MBTILES != tileStorage) {
+                FileUtil.deleteRecursive(new File(mPath, MBTilesStore.FILE_NAME));
+            }
+            if (TILE_STORAGE_PACK != tileStorage) {
+                FileUtil.deleteRecursive(new File(mPath, TilePackStore.FILE_NAME));
+            }
+            mTileStorage = tileStorage;
+        }
+
+        TileCache.remove(getCacheKey());
+        importTileDirectories(progressor);
+    }
+
+
+    /**
+     * @return The tile store wrapped by the in-memory index of the stored tiles
+     */
+    public ITileStore getTileStore()
+    {
+        synchronized (lock) {
+            if (null == mTileStore) {
+                if (TILE_STORAGE_MBTILES == mTileStorage) {
+                    MBTilesStore store =
+                            new MBTilesStore(new File(mPath, MBTilesStore.FILE_NAME),
+                                    mTMSType == GeoConstants.TMSTYPE_OSM);
+                    writeMetadata(store);
+                    mTileStore = store;
+                } else if (TILE_STORAGE_PACK == mTileStorage) {
+                    mTileStore = new TilePackStore(new File(mPath, TilePackStore.FILE_NAME));
+                } else {
+                    mTileStore = new TileDirectoryStore(mPath);
+                }
+                mIndexedStore = new IndexedTileStore(mTileStore, isTileTimestampUsed());
+            }
+            return mIndexedStore;
+        }
+    }
+
+
+    /**
+     * Describe the layer in the MBTiles metadata table, the zoom levels and bounds are written if
+     * the layer limits are set
+     */
+    protected void writeMetadata(MBTilesStore store)
+    {
+        store.setMetadata("name", getName());
+        store.setMetadata("format", getTileFormat());
+
+        if (Float.compare(mMaxZoom, mMinZoom) != 0) {
+            store.setMetadata("minzoom", Integer.toString((int) getMinZoom()));
+            store.setMetadata("maxzoom", Integer.toString((int) getMaxZoom()));
+        }
+
+        GeoEnvelope extents = getExtents();
+        if (null != extents && extents.isInit()) {
+            // the bounds are longitudes and latitudes: left, bottom, right, top
+            GeoPoint min = new GeoPoint(extents.getMinX(), extents.getMinY());
+            GeoPoint max = new GeoPoint(extents.getMaxX(), extents.getMaxY());
+            min.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+            max.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+            if (min.project(GeoConstants.CRS_WGS84) && max.project(GeoConstants.CRS_WGS84)) {
+                store.setMetadata(
+                        "bounds", min.getX() + "," + min.getY() + "," + max.getX() + "," +
+                                  max.getY());
+            }
+        }
+    }
+
+
+    /**
+     * @return The tile image format for the MBTiles metadata: png or jpg
+     */
+    protected String getTileFormat()
+    {
+        return "png";
+    }
+
+
+    /**
+     * @return true if the tile timestamps are kept in the tile index
+     */
+    protected boolean isTileTimestampUsed()
+    {
+        return false;
+    }
+
+
+    protected void closeTileStore()
+    {
+        synchronized (lock) {
+            if (null != mIndexedStore) {
+                mIndexedStore.close();
+                mIndexedStore = null;
+                mTileStore = null;
+            }
+        }
+    }
+
+
+    /**
+     * Move the unpacked or previously downloaded tile directories to the MBTiles file or the tile
+     * pack if it is selected
+     */
+    protected void importTileDirectories(IProgressor progressor)
+            throws IOException
+    {
+        if (TILE_STORAGE_PACK == mTileStorage) {
+            packTileDirectories(progressor);
+            return;
+        }
+
+        getTileStore();
+        ITileStore store;
+        IndexedTileStore indexedStore;
+        synchronized (lock) {
+            store = mTileStore;
+            indexedStore = mIndexedStore;
+        }
+        if (store instanceof MBTilesStore) {
+            int count = ((MBTilesStore) store).importDirectory(mPath, true, progressor);
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "Raster layer " + getName() + " imported " + count +
+                        " tiles to MBTiles");
+            }
+        }
+        // the tiles are unpacked or imported bypassing the index
+        indexedStore.invalidate();
+    }
+
+
+    protected void packTileDirectories(IProgressor progressor)
+            throws IOException
+    {
+        closeTileStore();
+        int count = TilePackStore.create(
+                mPath, new File(mPath, TilePackStore.FILE_NAME), progressor);
+        File[] zoomLevels = mPath.listFiles();
+        if (count > 0 && null != zoomLevels) {
+            for (File zoomLevel : zoomLevels) {
+                if (zoomLevel.isDirectory() && FileUtil.isIntegerParseInt(zoomLevel.getName())) {
+                    FileUtil.deleteRecursive(zoomLevel);
+                }
+            }
+        }
+        // the store opened while packing has not seen the new file
+        closeTileStore();
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "Raster layer " + getName() + " packed " + count + " tiles");
+        }
     }
 
     public abstract Bitmap getBitmap(TileItem tile);
 
 
+    public Bitmap.Config getBitmapConfig()
+    {
+        return mBitmapConfig;
+    }
+
+
+    /**
+     * Set the pixel format of decoded tiles. RGB_565 halves the memory for opaque layers (e.g.
+     * satellite imagery), so the cache holds twice as many tiles.
+     */
+    public void setBitmapConfig(Bitmap.Config config)
+    {
+        if (null == config || mBitmapConfig == config) {
+            return;
+        }
+        mBitmapConfig = config;
+
+        TileCache.remove(getCacheKey());
+        setCacheSizeMultiply(mCacheSizeMult);
+    }
+
+
+    public boolean isDownsample()
+    {
+        return mDownsample;
+    }
+
+
+    /**
+     * Decode tiles larger than the display tile size (e.g. 512 px tiles) with inSampleSize, as
+     * they are drawn scaled down anyway
+     */
+    public void setDownsample(boolean downsample)
+    {
+        mDownsample = downsample;
+    }
+
+
+    protected Bitmap decodeTile(TileItem tile)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = mBitmapConfig;
+        return getTileStore().getBitmap(
+                tile, options, mDownsample ? Constants.DEFAULT_TILE_SIZE : 0);
+    }
+
+
+    /**
+     * @return The key of the layer tiles in the shared TileCache
+     */
+    protected String getCacheKey()
+    {
+        return mPath.getAbsolutePath();
+    }
+
+
+    /**
+     * The first draw stage
+     *
+     * @param filter
+     *         If not null the tile is returned with the color filter applied. The raw tile is not
+     *         kept in the memory cache then, only the filtered one.
+     *
+     * @return The tile from the memory cache or null, pass it to releaseBitmap when it is drawn
+     */
+    public Bitmap getCachedBitmap(
+            TileItem tile,
+            TileColorFilter filter)
+    {
+        return acquireCachedBitmap(tile, filter);
+    }
+
+
+    protected Bitmap acquireCachedBitmap(
+            TileItem tile,
+            TileColorFilter filter)
+    {
+        if (null == filter) {
+            return acquireBitmapFromCache(tile.getHash());
+        }
+
+        Bitmap filtered = acquireBitmapFromCache(getFilteredHash(filter.getKey(), tile.getHash()));
+        if (null != filtered) {
+            return filtered;
+        }
+
+        // the raw tile may be cached before the filter is set
+        Bitmap bitmap = acquireBitmapFromCache(tile.getHash());
+        if (null == bitmap) {
+            return null;
+        }
+        TileCache.remove(getCacheKey(), tile.getHash());
+        return applyColorFilter(tile, bitmap, filter);
+    }
+
+
+    /**
+     * Give back the bitmap got by the draw stage methods. The cached bitmap is unreferenced, the
+     * other one is returned to the BitmapPool, so it must not be used by the caller anymore.
+     */
+    public void releaseBitmap(Bitmap bitmap)
+    {
+        if (null != bitmap && !TileCache.release(bitmap)) {
+            BitmapPool.put(bitmap);
+        }
+    }
+
+
+    /**
+     * The I/O draw stage, called in the I/O threads
+     *
+     * @return The encoded tile from the tile store or null if the tile is absent
+     */
+    public byte[] loadTileData(TileItem tile)
+    {
+        return getTileStore().getTileData(tile);
+    }
+
+
+    /**
+     * The decode draw stage, called in the threads per CPU core. The tile is put to the memory
+     * cache, pass it to releaseBitmap when it is drawn.
+     *
+     * @param filter
+     *         If not null the color filter is applied and only the filtered tile is cached
+     */
+    public Bitmap decodeTileData(
+            TileItem tile,
+            byte[] data,
+            TileColorFilter filter)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = mBitmapConfig;
+        Bitmap bitmap = BitmapPool.decodeByteArray(
+                data, 0, data.length, options, mDownsample ? Constants.DEFAULT_TILE_SIZE : 0);
+        return cacheDecodedBitmap(tile, bitmap, filter);
+    }
+
+
+    /**
+     * Put the just decoded tile to the memory cache, the result is held by the caller until
+     * releaseBitmap
+     */
+    protected Bitmap cacheDecodedBitmap(
+            TileItem tile,
+            Bitmap bitmap,
+            TileColorFilter filter)
+    {
+        if (null == bitmap) {
+            return null;
+        }
+        if (null != filter) {
+            return applyColorFilter(tile, bitmap, filter);
+        }
+        putBitmapToCache(tile.getHash(), bitmap, true);
+        return bitmap;
+    }
+
+
+    /**
+     * Apply the color filter to the tile and cache the result. The raw bitmap is released.
+     *
+     * @return The filtered tile or null if there is no memory for it
+     */
+    protected Bitmap applyColorFilter(
+            TileItem tile,
+            Bitmap bitmap,
+            TileColorFilter filter)
+    {
+        Bitmap filtered = filter.apply(bitmap);
+        releaseBitmap(bitmap);
+        if (null != filtered && mCacheSizeMult != 0 && filter == mColorFilter) {
+            TileCache.put(
+                    getCacheKey(), getFilteredHash(filter.getKey(), tile.getHash()), filtered,
+                    true);
+        }
+        return filtered;
+    }
+
+
     protected void putBitmapToCache(
             String tileHash,
             Bitmap bitmap)
+    {
+        putBitmapToCache(tileHash, bitmap, false);
+    }
+
+
+    /**
+     * @param acquire
+     *         If true the bitmap is held by the caller until releaseBitmap, otherwise it may be
+     *         used for any time
+     */
+    protected void putBitmapToCache(
+            String tileHash,
+            Bitmap bitmap,
+            boolean acquire)
     {
         if (mCacheSizeMult == 0) {
             return;
         }
-        synchronized (lock) {
-            if (mBitmapCache != null) {
-                mBitmapCache.put(tileHash, bitmap);
-            }
+        TileCache.put(getCacheKey(), tileHash, bitmap, acquire);
+        // the new tile outdates the tile with the color filter applied
+        TileColorFilter filter = mColorFilter;
+        if (null != filter) {
+            TileCache.remove(getCacheKey(), getFilteredHash(filter.getKey(), tileHash));
         }
     }
 
@@ -111,12 +522,131 @@ public abstract class TMSLayer
         if (mCacheSizeMult == 0) {
             return null;
         }
-        synchronized (lock) {
-            if (mBitmapCache != null) {
-                return mBitmapCache.get(tileHash);
+        return TileCache.get(getCacheKey(), tileHash);
+    }
+
+
+    protected Bitmap acquireBitmapFromCache(String tileHash)
+    {
+        if (mCacheSizeMult == 0) {
+            return null;
+        }
+        return TileCache.acquire(getCacheKey(), tileHash);
+    }
+
+
+    protected static String getFilteredHash(
+            String filterKey,
+            String tileHash)
+    {
+        return filterKey + "/" + tileHash;
+    }
+
+
+    /**
+     * Set the color filter which is applied to the tiles before caching. The cached tiles of the
+     * previous filter are removed.
+     *
+     * @param filter
+     *         The filter or null if the renderer applies the filter while drawing
+     */
+    public void setColorFilter(TileColorFilter filter)
+    {
+        TileColorFilter oldFilter = mColorFilter;
+        mColorFilter = filter;
+        if (null != oldFilter && (null == filter || !oldFilter.getKey().equals(filter.getKey()))) {
+            TileCache.remove(getCacheKey() + "/" + oldFilter.getKey());
+        }
+    }
+
+
+    public TileColorFilter getColorFilter()
+    {
+        return mColorFilter;
+    }
+
+
+    /**
+     * Find the nearest ancestor of the tile in the memory cache or the tile store. It is drawn
+     * scaled while the tile itself is absent or loading.
+     *
+     * @param tile
+     *         The absent tile
+     * @param src
+     *         Receives the part of the ancestor bitmap covered by the tile
+     * @param filter
+     *         If not null the ancestor is returned with the color filter applied
+     *
+     * @return The ancestor bitmap or null if no ancestor is found, pass it to releaseBitmap when
+     * it is drawn
+     */
+    public Bitmap getAncestorBitmap(
+            TileItem tile,
+            Rect src,
+            TileColorFilter filter)
+    {
+        int maxLevels = Math.min(MAX_OVERZOOM, tile.getZoomLevel());
+
+        // the memory cache is checked first at all levels as it is cheap
+        TileItem found = null;
+        Bitmap bitmap = null;
+        for (int level = 1; level <= maxLevels && null == bitmap; level++) {
+            found = getAncestor(tile, level);
+            bitmap = acquireCachedBitmap(found, filter);
+        }
+
+        ITileStore store = getTileStore();
+        for (int level = 1; level <= maxLevels && null == bitmap; level++) {
+            found = getAncestor(tile, level);
+            if (store.getTimestamp(found) > 0) {
+                bitmap = cacheDecodedBitmap(found, decodeTile(found), filter);
             }
         }
-        return null;
+
+        if (null == bitmap) {
+            return null;
+        }
+
+        int level = tile.getZoomLevel() - found.getZoomLevel();
+        int count = 1 << level;
+        int size = bitmap.getWidth() / count;
+        if (size == 0) {
+            releaseBitmap(bitmap);
+            return null;
+        }
+        int col = tile.getX() - (found.getX() << level);
+        int row = tile.getY() - (found.getY() << level);
+        if (mTMSType != GeoConstants.TMSTYPE_OSM) {
+            // the TMS rows go from the south, the bitmap rows from the north
+            row = count - 1 - row;
+        }
+        src.set(col * size, row * size, (col + 1) * size, (row + 1) * size);
+        return bitmap;
+    }
+
+
+    protected static TileItem getAncestor(
+            TileItem tile,
+            int level)
+    {
+        return new TileItem(
+                tile.getX() >> level, tile.getY() >> level, tile.getZoomLevel() - level, null);
+    }
+
+
+    public void clearCache()
+    {
+        TileCache.remove(getCacheKey());
+    }
+
+
+    @Override
+    public boolean delete()
+    {
+        clearCache();
+        TileCache.reserve(getCacheKey(), 0);
+        closeTileStore();
+        return super.delete();
     }
 
 
@@ -133,6 +663,9 @@ public abstract class TMSLayer
 
 
         rootConfig.put(JSON_CACHE_SIZE_MULT, mCacheSizeMult);
+        rootConfig.put(JSON_BITMAP_CONFIG_KEY, mBitmapConfig.name());
+        rootConfig.put(JSON_DOWNSAMPLE_KEY, mDownsample);
+        rootConfig.put(JSON_TILE_STORAGE_KEY, mTileStorage);
         return rootConfig;
     }
 
@@ -153,6 +686,15 @@ public abstract class TMSLayer
         if (jsonObject.has(JSON_CACHE_SIZE_MULT)) {
             mCacheSizeMult = jsonObject.getInt(JSON_CACHE_SIZE_MULT);
         }
+        if (jsonObject.has(JSON_BITMAP_CONFIG_KEY)) {
+            try {
+                mBitmapConfig = Bitmap.Config.valueOf(jsonObject.getString(JSON_BITMAP_CONFIG_KEY));
+            } catch (IllegalArgumentException e) {
+                mBitmapConfig = Bitmap.Config.ARGB_8888;
+            }
+        }
+        mDownsample = jsonObject.optBoolean(JSON_DOWNSAMPLE_KEY, false);
+        mTileStorage = jsonObject.optInt(JSON_TILE_STORAGE_KEY, TILE_STORAGE_DIRECTORY);
 
         if(Constants.DEBUG_MODE) {
             Log.d(Constants.TAG, "Raster layer " + getName() + " mTMSType " + mTMSType);
@@ -187,49 +729,40 @@ public abstract class TMSLayer
     }
 
 
+    /**
+     * Set the memory for this layer tiles in screens (with offscreen margins). The tiles are kept
+     * in the shared TileCache, so the value is the layer share of the common budget rather than the
+     * memory for this layer only. 0 means the layer tiles are not cached and the share is given
+     * back.
+     */
     public void setCacheSizeMultiply(int cacheSizeMult)
     {
         mCacheSizeMult = cacheSizeMult;
         if (mCacheSizeMult == 0) {
-            synchronized (lock) {
-                mBitmapCache = null;
-            }
+            clearCache();
+            TileCache.reserve(getCacheKey(), 0);
             return;
         }
 
-        // calc new hash size
         int nTileCount = (int) (mViewWidth * Constants.OFFSCREEN_EXTRASIZE_RATIO /
                                 Constants.DEFAULT_TILE_SIZE) *
                          (int) (mViewHeight * Constants.OFFSCREEN_EXTRASIZE_RATIO /
                                 Constants.DEFAULT_TILE_SIZE) * mCacheSizeMult;
-
-        if (null != mBitmapCache && mCacheSize >= nTileCount) {
-            return;
-        }
         if (nTileCount < 30) {
             nTileCount = 30;
         }
 
-        synchronized (lock) {
-            mBitmapCache = lruCache(nTileCount);
-        }
-
-        mCacheSize = nTileCount;
+        // the share is counted in ARGB_8888 tiles, so the smaller tiles fit more in the same share
+        TileCache.reserve(
+                getCacheKey(), nTileCount * Constants.DEFAULT_TILE_SIZE *
+                               Constants.DEFAULT_TILE_SIZE * 4);
     }
 
 
-    protected static <K, V> Map<K, V> lruCache(final int maxSize)
-    {
-        return new LinkedHashMap<K, V>(maxSize * 4 / 3, 0.75f, true)
-        {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
-            {
-                return size() > maxSize;
-            }
-        };
-    }
-
+    /**
+     * Unpack the archive in one pass. The tiles are written to the tile store as the entries are
+     * read, other files are unpacked to the layer folder.
+     */
     protected void fillFromZipInt(Uri uri, IProgressor progressor) throws IOException, NumberFormatException, SecurityException, NGException {
         InputStream inputStream = mContext.getContentResolver().openInputStream(uri);
         if (inputStream == null) {
@@ -243,32 +776,88 @@ public abstract class TMSLayer
 
         int increment = 0;
         byte[] buffer = new byte[Constants.IO_BUFFER_SIZE];
+        // the tile pack is read-only, it is created from the unpacked directories later
+        ITileStore store =
+                TILE_STORAGE_PACK == mTileStorage ? new TileDirectoryStore(mPath) : getTileStore();
 
         ZipInputStream zis = new ZipInputStream(inputStream);
-        ZipEntry ze;
-        while ((ze = zis.getNextEntry()) != null) {
-            FileUtil.unzipEntry(zis, ze, buffer, mPath);
-            increment += ze.getCompressedSize();
-            zis.closeEntry();
-            if(null != progressor){
-                if(progressor.isCanceled())
-                    return;
-                progressor.setValue(increment);
-                progressor.setMessage(getContext().getString(R.string.processed) + " " + increment + " " + getContext().getString(R.string.of) + " " + streamSize);
-
+        try {
+            ZipEntry ze;
+            while ((ze = zis.getNextEntry()) != null) {
+                TileItem tile = ze.isDirectory() ? null : getZipEntryTile(ze.getName());
+                if (null != tile) {
+                    OutputStream output = store.getOutputStream(tile);
+                    FileUtil.copyStream(zis, output, buffer, Constants.IO_BUFFER_SIZE);
+                    output.close();
+                    onTileUnpacked(tile);
+                } else if (!ze.isDirectory()) {
+                    FileUtil.unzipEntry(zis, ze, buffer, mPath);
+                }
+                increment += ze.getCompressedSize();
+                zis.closeEntry();
+                if(null != progressor){
+                    if(progressor.isCanceled())
+                        return;
+                    progressor.setValue(increment);
+                    progressor.setMessage(getContext().getString(R.string.processed) + " " + increment + " " + getContext().getString(R.string.of) + " " + streamSize);
+
+                }
             }
+        } finally {
+            zis.close();
+            store.flush();
         }
     }
 
 
+    /**
+     * @return The tile of the {z}/{x}/{y}.png archive entry, the root folder is skipped, or null if
+     * the entry is not a tile
+     */
+    protected static TileItem getZipEntryTile(String entryName)
+    {
+        String[] parts = entryName.split("/");
+        int count = parts.length;
+        if (count < 3) {
+            return null;
+        }
+
+        String name = parts[count - 1];
+        int pos = name.lastIndexOf('.');
+        if (pos != Constants.NOT_FOUND) {
+            name = name.substring(0, pos);
+        }
+        if (!FileUtil.isIntegerParseInt(parts[count - 3]) ||
+                !FileUtil.isIntegerParseInt(parts[count - 2]) || !FileUtil.isIntegerParseInt(name)) {
+            return null;
+        }
+
+        return new TileItem(
+                Integer.parseInt(parts[count - 2]), Integer.parseInt(name),
+                Integer.parseInt(parts[count - 3]), null);
+    }
+
+
+    /**
+     * Called for each tile written while the archive is unpacked
+     */
+    protected void onTileUnpacked(TileItem tile)
+    {
+    }
+
+
     public void fillFromZip(Uri uri, IProgressor progressor) throws IOException, NumberFormatException, SecurityException, NGException {
         fillFromZipInt(uri, progressor);
+        importTileDirectories(progressor);
         save();
     }
 
     public void fillFromNgrc(Uri uri, IProgressor progressor) throws IOException, NumberFormatException, SecurityException, NGException {
         fillFromZipInt(uri, progressor);
         load();
+        // the tiles are unpacked before the config is read, open the configured store
+        closeTileStore();
+        importTileDirectories(progressor);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,303 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.Constants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Downloads the remote layer tiles apart from the drawing. The queue is ordered by the tile
+ * distance from the screen centre, the queued tiles which leave the screen are cancelled. The
+ * downloaded tiles are passed to the layer in batches, not more often than REDRAW_DELAY, to draw
+ * them over the current map image. The stale tiles are revalidated after the absent ones, the
+ * prefetched tiles are queued last and stored to the disk only.
+ */
+public class TileDownloader
+{
+    protected static final long KEEP_ALIVE_TIME = 5000; // ms
+    protected static final long REDRAW_DELAY    = 300; // ms
+    protected static final int  REFRESH_PRIORITY  = Integer.MAX_VALUE / 4;
+    protected static final int  PREFETCH_PRIORITY = Integer.MAX_VALUE / 2;
+    protected static final int  MAX_REFRESH_COUNT = 64;
+
+    protected final RemoteTMSLayer            mLayer;
+    protected final ThreadPoolExecutor        mExecutor;
+    protected final Map<String, DownloadTask> mQueued;
+    protected       Map<String, Integer>      mVisible;
+    protected       long                      mSequence;
+    protected       int                       mRefreshCount;
+
+    protected final Handler        mHandler;
+    protected       boolean        mRedrawPending;
+    protected final Runnable       mRedrawRunnable;
+    protected       List<TileItem> mArrived;
+
+
+    public TileDownloader(
+            RemoteTMSLayer layer,
+            int threadCount)
+    {
+        mLayer = layer;
+        mQueued = new HashMap<>();
+        mVisible = Collections.emptyMap();
+        mArrived = new ArrayList<>();
+        mExecutor = new ThreadPoolExecutor(
+                threadCount, threadCount, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+            mExecutor.allowCoreThreadTimeOut(true);
+        }
+
+        mHandler = new Handler(Looper.getMainLooper());
+        mRedrawRunnable = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                List<TileItem> tiles;
+                synchronized (TileDownloader.this) {
+                    mRedrawPending = false;
+                    tiles = mArrived;
+                    mArrived = new ArrayList<>();
+                }
+                mLayer.onTilesArrived(tiles);
+            }
+        };
+    }
+
+
+    protected class DownloadTask
+            implements Runnable, Comparable<DownloadTask>
+    {
+        protected final TileItem       mTile;
+        protected       int            mPriority;
+        protected       long           mOrder;
+        protected final boolean        mRefresh;
+        protected final TilePrefetcher mPrefetcher;
+
+
+        protected DownloadTask(
+                TileItem tile,
+                int priority,
+                boolean refresh,
+                TilePrefetcher prefetcher)
+        {
+            mTile = tile;
+            mPriority = priority;
+            mOrder = mSequence++;
+            mRefresh = refresh;
+            mPrefetcher = prefetcher;
+        }
+
+
+        @Override
+        public int compareTo(DownloadTask other)
+        {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mOrder < other.mOrder ? -1 : (mOrder == other.mOrder ? 0 : 1);
+        }
+
+
+        @Override
+        public void run()
+        {
+            synchronized (TileDownloader.this) {
+                if (mQueued.get(mTile.getHash()) != this) {
+                    return;
+                }
+                mQueued.remove(mTile.getHash());
+                if (mRefresh) {
+                    mRefreshCount--;
+                }
+            }
+
+            android.os.Process.setThreadPriority(Constants.DEFAULT_DRAW_THREAD_PRIORITY);
+
+            if (null != mPrefetcher) {
+                if (mLayer.isTileFresh(mTile) || !mPrefetcher.acquire()) {
+                    return;
+                }
+                mPrefetcher.release(mLayer.fetchTile(mTile));
+                return;
+            }
+
+            long size = mRefresh ? mLayer.refreshTile(mTile) : mLayer.fetchTile(mTile);
+            if (size > 0) {
+                mLayer.onTileDownloaded(mTile);
+                requestRedraw(mTile);
+            }
+        }
+    }
+
+
+    /**
+     * Set the tiles to draw now in the draw order. The queued tiles are reordered, the tiles
+     * which are not in the list are removed from the queue.
+     */
+    public synchronized void setVisibleTiles(List<TileItem> tiles)
+    {
+        Map<String, Integer> visible = new HashMap<>(tiles.size() * 4 / 3 + 1);
+        for (int i = 0; i < tiles.size(); i++) {
+            visible.put(tiles.get(i).getHash(), i);
+        }
+        mVisible = visible;
+
+        List<DownloadTask> reordered = new ArrayList<>();
+        Iterator<DownloadTask> iterator = mQueued.values().iterator();
+        while (iterator.hasNext()) {
+            DownloadTask task = iterator.next();
+            if (null != task.mPrefetcher) {
+                continue;
+            }
+            Integer priority = visible.get(task.mTile.getHash());
+            if (null == priority) {
+                mExecutor.remove(task);
+                iterator.remove();
+                if (task.mRefresh) {
+                    mRefreshCount--;
+                }
+            } else if (!task.mRefresh && priority != task.mPriority && mExecutor.remove(task)) {
+                task.mPriority = priority;
+                reordered.add(task);
+            }
+        }
+
+        for (DownloadTask task : reordered) {
+            mExecutor.execute(task);
+        }
+    }
+
+
+    /**
+     * Queue the tile to download if it is not queued yet
+     */
+    public synchronized void schedule(TileItem tile)
+    {
+        String hash = tile.getHash();
+        if (mQueued.containsKey(hash) || mExecutor.isShutdown()) {
+            return;
+        }
+
+        Integer priority = mVisible.get(hash);
+        DownloadTask task = new DownloadTask(
+                tile, null == priority ? Integer.MAX_VALUE : priority, false, null);
+        mQueued.put(hash, task);
+        mExecutor.execute(task);
+    }
+
+
+    /**
+     * Queue the stale tile to revalidate. The queue of such tiles is limited by MAX_REFRESH_COUNT,
+     * the tiles over the limit are revalidated when they are drawn next time.
+     */
+    public synchronized void refresh(TileItem tile)
+    {
+        String hash = tile.getHash();
+        if (mQueued.containsKey(hash) || mExecutor.isShutdown() ||
+                mRefreshCount >= MAX_REFRESH_COUNT) {
+            return;
+        }
+
+        DownloadTask task = new DownloadTask(tile, REFRESH_PRIORITY, true, null);
+        mQueued.put(hash, task);
+        mRefreshCount++;
+        mExecutor.execute(task);
+    }
+
+
+    /**
+     * Replace the queued prefetch tiles by the new ones in the given order
+     */
+    public synchronized void prefetch(
+            List<TileItem> tiles,
+            TilePrefetcher prefetcher)
+    {
+        Iterator<DownloadTask> iterator = mQueued.values().iterator();
+        while (iterator.hasNext()) {
+            DownloadTask task = iterator.next();
+            if (null != task.mPrefetcher) {
+                mExecutor.remove(task);
+                iterator.remove();
+            }
+        }
+
+        if (mExecutor.isShutdown()) {
+            return;
+        }
+
+        for (int i = 0; i < tiles.size(); i++) {
+            TileItem tile = tiles.get(i);
+            if (mQueued.containsKey(tile.getHash())) {
+                continue;
+            }
+            DownloadTask task = new DownloadTask(tile, PREFETCH_PRIORITY + i, false, prefetcher);
+            mQueued.put(tile.getHash(), task);
+            mExecutor.execute(task);
+        }
+    }
+
+
+    public synchronized int getQueuedCount()
+    {
+        return mQueued.size();
+    }
+
+
+    protected synchronized void requestRedraw(TileItem tile)
+    {
+        mArrived.add(tile);
+        if (mRedrawPending) {
+            return;
+        }
+        mRedrawPending = true;
+        mHandler.postDelayed(mRedrawRunnable, REDRAW_DELAY);
+    }
+
+
+    public synchronized void shutdown()
+    {
+        mQueued.clear();
+        mRefreshCount = 0;
+        mArrived.clear();
+        mExecutor.shutdownNow();
+        mHandler.removeCallbacks(mRedrawRunnable);
+    }
+}
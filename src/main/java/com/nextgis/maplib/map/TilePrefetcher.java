@@ -0,0 +1,200 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.map;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.MapUtil;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * Predicts the tiles of the remote layer which are about to appear. The pan direction is
+ * estimated from successive map extent changes, the tiles one move ahead are prefetched first,
+ * then the central tiles of the next and previous zoom levels. The prefetch is limited by the
+ * request count per extent change and by the downloaded bytes per minute.
+ */
+public class TilePrefetcher
+{
+    public static final int  DEFAULT_MAX_REQUESTS = 32;
+    public static final long DEFAULT_MAX_BYTES    = 2 * 1024 * 1024;
+
+    protected static final long   BUDGET_PERIOD     = 60000; // ms
+    protected static final long   MAX_MOVE_INTERVAL = 10000; // ms
+    protected static final double MOVE_SMOOTH       = 0.5;
+
+    protected final RemoteTMSLayer mLayer;
+    protected       int            mMaxRequests;
+    protected       long           mMaxBytes;
+
+    protected GeoPoint mLastCenter;
+    protected int      mLastZoom;
+    protected long     mLastTime;
+    protected double   mMoveX, mMoveY;
+
+    protected long mPeriodStart;
+    protected long mPeriodBytes;
+
+
+    public TilePrefetcher(RemoteTMSLayer layer)
+    {
+        mLayer = layer;
+        mMaxRequests = DEFAULT_MAX_REQUESTS;
+        mMaxBytes = DEFAULT_MAX_BYTES;
+    }
+
+
+    /**
+     * @param maxRequests
+     *         The maximum tile count to prefetch per extent change
+     * @param maxBytes
+     *         The maximum bytes to download per minute
+     */
+    public synchronized void setBudget(
+            int maxRequests,
+            long maxBytes)
+    {
+        mMaxRequests = maxRequests;
+        mMaxBytes = maxBytes;
+    }
+
+
+    /**
+     * Update the pan estimation by the new map extent
+     *
+     * @param bounds
+     *         The bounds of tiles drawn now
+     * @param visibleBounds
+     *         The bounds of the screen
+     * @param zoom
+     *         The zoom level
+     *
+     * @return The tiles to prefetch in the download order
+     */
+    public synchronized List<TileItem> onExtentChanged(
+            GeoEnvelope bounds,
+            GeoEnvelope visibleBounds,
+            float zoom)
+    {
+        long now = System.currentTimeMillis();
+        int level = (int) zoom;
+        GeoPoint center = visibleBounds.getCenter();
+
+        if (null != mLastCenter && level == mLastZoom && now - mLastTime < MAX_MOVE_INTERVAL) {
+            double moveX = center.getX() - mLastCenter.getX();
+            double moveY = center.getY() - mLastCenter.getY();
+            mMoveX = MOVE_SMOOTH * moveX + (1 - MOVE_SMOOTH) * mMoveX;
+            mMoveY = MOVE_SMOOTH * moveY + (1 - MOVE_SMOOTH) * mMoveY;
+        } else {
+            mMoveX = 0;
+            mMoveY = 0;
+        }
+        mLastCenter = center;
+        mLastZoom = level;
+        mLastTime = now;
+
+        List<TileItem> result = new ArrayList<>();
+        if (mMaxRequests <= 0) {
+            return result;
+        }
+
+        Set<String> skip = new HashSet<>();
+        for (TileItem tile : MapUtil.getTileItems(bounds, zoom, mLayer.getTMSType())) {
+            skip.add(tile.getHash());
+        }
+
+        // one move ahead, but not farther than the drawn bounds size
+        double moveX = Math.max(-bounds.width(), Math.min(bounds.width(), mMoveX));
+        double moveY = Math.max(-bounds.height(), Math.min(bounds.height(), mMoveY));
+        if (moveX != 0 || moveY != 0) {
+            GeoEnvelope ahead = new GeoEnvelope(bounds);
+            ahead.offset(moveX, moveY);
+            addTiles(result, skip, ahead, level);
+        }
+
+        if (level + 1 <= mLayer.getMaxZoom()) {
+            addTiles(result, skip, getCentral(visibleBounds, 0.5), level + 1);
+        }
+        if (level - 1 >= mLayer.getMinZoom() && level > 0) {
+            addTiles(result, skip, getCentral(visibleBounds, 2), level - 1);
+        }
+
+        return result;
+    }
+
+
+    protected GeoEnvelope getCentral(
+            GeoEnvelope bounds,
+            double scale)
+    {
+        GeoPoint center = bounds.getCenter();
+        double halfWidth = bounds.width() * scale * .5;
+        double halfHeight = bounds.height() * scale * .5;
+        return new GeoEnvelope(
+                center.getX() - halfWidth, center.getX() + halfWidth,
+                center.getY() - halfHeight, center.getY() + halfHeight);
+    }
+
+
+    protected void addTiles(
+            List<TileItem> result,
+            Set<String> skip,
+            GeoEnvelope bounds,
+            int level)
+    {
+        for (TileItem tile : MapUtil.getTileItems(bounds, level, mLayer.getTMSType())) {
+            if (result.size() >= mMaxRequests) {
+                return;
+            }
+            if (skip.add(tile.getHash())) {
+                result.add(tile);
+            }
+        }
+    }
+
+
+    /**
+     * @return true if the tile can be downloaded within the byte budget
+     */
+    public synchronized boolean acquire()
+    {
+        long now = System.currentTimeMillis();
+        if (now - mPeriodStart > BUDGET_PERIOD) {
+            mPeriodStart = now;
+            mPeriodBytes = 0;
+        }
+        return mPeriodBytes < mMaxBytes;
+    }
+
+
+    public synchronized void release(long bytes)
+    {
+        mPeriodBytes += bytes;
+    }
+}
@@ -2175,6 +2175,8 @@ public class VectorLayer
     @Override
     public void notifyDelete(long rowId)
     {
+        onFeatureStyleChanged(rowId);
+
         //remove cached item
         if (mCache.removeItem(rowId) != null) {
             save();
@@ -2252,6 +2254,7 @@ public class VectorLayer
     {
         //clear cache
         mCache.clear();
+        clearStyleCache();
         save();
         notifyLayerChanged();
     }
@@ -2284,8 +2287,11 @@ public class VectorLayer
             Log.d(Constants.TAG, "notifyUpdate id: " + rowId + ", old_id: " + oldRowId);
         }
 
+        onFeatureStyleChanged(rowId);
+
         boolean needSave = false;
         if (oldRowId != Constants.NOT_FOUND) {
+            onFeatureStyleChanged(oldRowId);
             mCache.changeId(oldRowId, rowId);
             needSave = true;
         }
@@ -2309,10 +2315,27 @@ public class VectorLayer
     public void notifyUpdateAll()
     {
         reloadCache();
+        clearStyleCache();
         notifyLayerChanged();
     }
 
 
+    protected void onFeatureStyleChanged(long featureId)
+    {
+        if (mRenderer instanceof RuleFeatureRenderer) {
+            ((RuleFeatureRenderer) mRenderer).onFeatureChanged(featureId);
+        }
+    }
+
+
+    protected void clearStyleCache()
+    {
+        if (mRenderer instanceof RuleFeatureRenderer) {
+            ((RuleFeatureRenderer) mRenderer).clearStyleCache();
+        }
+    }
+
+
     public GeoGeometry getGeometryForId(long rowId)
     {
         MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
@@ -2337,6 +2360,41 @@ public class VectorLayer
     }
 
 
+    /**
+     * Return the geometry blob without decoding. Use GeoGeometryFactory.fromBlob() to decode it.
+     *
+     * @param rowId
+     *         The feature identificator
+     * @param zoom
+     *         The zoom level of simplified geometry
+     * @param db
+     *         The database
+     *
+     * @return The geometry blob or null
+     */
+    public byte[] getGeometryBlobForId(
+            long rowId,
+            int zoom,
+            SQLiteDatabase db)
+    {
+        String column = zoom > GeoConstants.DEFAULT_CACHE_MAX_ZOOM
+                        ? Constants.FIELD_GEOM
+                        : Constants.FIELD_GEOM_ + zoom;
+        String[] columns = new String[] {column};
+        String selection = Constants.FIELD_ID + " = " + rowId;
+
+        byte[] result = null;
+        Cursor cursor = db.query(mPath.getName(), columns, selection, null, null, null, null);
+        if (null != cursor) {
+            if (cursor.moveToFirst()) {
+                result = cursor.getBlob(0);
+            }
+            cursor.close();
+        }
+        return result;
+    }
+
+
     protected GeoGeometry getGeometryFromQuery(
             String[] columns,
             String selection,
@@ -2421,13 +2479,7 @@ public class VectorLayer
 
     public List<Long> query(GeoEnvelope env)
     {
-
-        List<IGeometryCacheItem> items;
-        if (null == env || !env.isInit() || !mExtents.isInit() || env.contains(mExtents)) {
-            items = mCache.getAll();
-        } else {
-            items = mCache.search(env);
-        }
+        List<IGeometryCacheItem> items = queryItems(env);
         List<Long> result = new ArrayList<>(items.size());
         for (IGeometryCacheItem item : items) {
             if (!result.contains(item.getFeatureId())) {
@@ -2438,6 +2490,24 @@ public class VectorLayer
     }
 
 
+    /**
+     * Return geometry cache items intersected the envelope. The items contain cached feature
+     * envelopes, so the features can be filtered without reading of geometry.
+     *
+     * @param env
+     *         The envelope to search or null for all items
+     *
+     * @return The list of cache items
+     */
+    public List<IGeometryCacheItem> queryItems(GeoEnvelope env)
+    {
+        if (null == env || !env.isInit() || !mExtents.isInit() || env.contains(mExtents)) {
+            return mCache.getAll();
+        }
+        return mCache.search(env);
+    }
+
+
     public void hideFeature(long featureId)
     {
         if (featureId != NOT_FOUND) {
@@ -0,0 +1,290 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.util;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+
+/**
+ * The pool of bitmaps for reuse by decoders via BitmapFactory.Options.inBitmap. The tiles evicted
+ * from TileCache and not held by the draw stages, and the drawn tiles which are not cached, are
+ * returned to the pool, so tile decoding does not allocate new bitmaps in steady state. The pool works since Android 3.0, on older versions the bitmaps are decoded as
+ * usual.
+ */
+public class BitmapPool
+{
+    public static final int MAX_POOL_SIZE = 8 * 1024 * 1024; // bytes
+
+    protected static final Map<String, LinkedList<Bitmap>> mPool = new HashMap<>();
+    protected static int mPoolSize;
+
+
+    protected static String getKey(
+            int width,
+            int height,
+            Bitmap.Config config)
+    {
+        return width + "x" + height + ":" + config;
+    }
+
+
+    protected static boolean isSupported()
+    {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+
+    /**
+     * Return the bitmap to the pool. The bitmap must not be used by the caller anymore.
+     *
+     * @param bitmap
+     *         The bitmap to reuse
+     */
+    public static void put(Bitmap bitmap)
+    {
+        if (!isSupported() || null == bitmap || bitmap.isRecycled() || !bitmap.isMutable() ||
+                null == bitmap.getConfig()) {
+            return;
+        }
+
+        int size = bitmap.getRowBytes() * bitmap.getHeight();
+        String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+
+        synchronized (mPool) {
+            if (mPoolSize + size > MAX_POOL_SIZE) {
+                return;
+            }
+
+            LinkedList<Bitmap> bitmaps = mPool.get(key);
+            if (null == bitmaps) {
+                bitmaps = new LinkedList<>();
+                mPool.put(key, bitmaps);
+            }
+            // the oldest bitmap is reused first, the latest may be drawn yet
+            bitmaps.addLast(bitmap);
+            mPoolSize += size;
+        }
+    }
+
+
+    public static Bitmap get(
+            int width,
+            int height,
+            Bitmap.Config config)
+    {
+        synchronized (mPool) {
+            LinkedList<Bitmap> bitmaps = mPool.get(getKey(width, height, config));
+            if (null == bitmaps || bitmaps.isEmpty()) {
+                return null;
+            }
+            Bitmap bitmap = bitmaps.removeFirst();
+            mPoolSize -= bitmap.getRowBytes() * bitmap.getHeight();
+            return bitmap;
+        }
+    }
+
+
+    public static void clear()
+    {
+        synchronized (mPool) {
+            mPool.clear();
+            mPoolSize = 0;
+        }
+    }
+
+
+    /**
+     * Drop the oldest bitmaps while the pool is larger than the size in bytes
+     */
+    public static void trim(int maxSize)
+    {
+        synchronized (mPool) {
+            Iterator<LinkedList<Bitmap>> iterator = mPool.values().iterator();
+            while (mPoolSize > maxSize && iterator.hasNext()) {
+                LinkedList<Bitmap> bitmaps = iterator.next();
+                while (mPoolSize > maxSize && !bitmaps.isEmpty()) {
+                    Bitmap bitmap = bitmaps.removeFirst();
+                    mPoolSize -= bitmap.getRowBytes() * bitmap.getHeight();
+                }
+                if (bitmaps.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+
+    public static Bitmap decodeFile(String path)
+    {
+        return decodeFile(path, new BitmapFactory.Options(), 0);
+    }
+
+
+    /**
+     * Decode the file to a bitmap from the pool if there is a suitable one. The file is read once,
+     * the bounds and the pixels are decoded from the same bytes.
+     *
+     * @param path
+     *         The file path
+     * @param options
+     *         The decode options, inPreferredConfig is used to select a bitmap
+     * @param minSize
+     *         If more than 0 the image is downsampled by the power of two while its width and
+     *         height are not less than this size
+     *
+     * @return The decoded bitmap or null
+     */
+    public static Bitmap decodeFile(
+            String path,
+            BitmapFactory.Options options,
+            int minSize)
+    {
+        if (!isSupported() && minSize <= 0) {
+            return BitmapFactory.decodeFile(path, options);
+        }
+
+        byte[] data;
+        try {
+            data = readFile(path);
+        } catch (IOException e) {
+            return null;
+        }
+        return decodeByteArray(data, 0, data.length, options, minSize);
+    }
+
+
+    protected static byte[] readFile(String path)
+            throws IOException
+    {
+        File file = new File(path);
+        byte[] data = new byte[(int) file.length()];
+        InputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = input.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new EOFException();
+                }
+                offset += read;
+            }
+        } finally {
+            input.close();
+        }
+        return data;
+    }
+
+
+    public static Bitmap decodeByteArray(
+            byte[] data,
+            int offset,
+            int length,
+            BitmapFactory.Options options,
+            int minSize)
+    {
+        if (isSupported() || minSize > 0) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, offset, length, options);
+            options.inJustDecodeBounds = false;
+            setSampleSize(options, minSize);
+
+            if (setReusable(options)) {
+                try {
+                    return BitmapFactory.decodeByteArray(data, offset, length, options);
+                } catch (IllegalArgumentException e) {
+                    options.inBitmap = null;
+                }
+            }
+        }
+        return BitmapFactory.decodeByteArray(data, offset, length, options);
+    }
+
+
+    protected static void setSampleSize(
+            BitmapFactory.Options options,
+            int minSize)
+    {
+        int sampleSize = 1;
+        if (minSize > 0) {
+            while (options.outWidth / (sampleSize * 2) >= minSize &&
+                    options.outHeight / (sampleSize * 2) >= minSize) {
+                sampleSize *= 2;
+            }
+        }
+        options.inSampleSize = sampleSize;
+    }
+
+
+    /**
+     * Set inMutable and inBitmap options by the decoded bounds
+     *
+     * @return true if a bitmap from the pool is set to inBitmap
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    protected static boolean setReusable(BitmapFactory.Options options)
+    {
+        if (!isSupported()) {
+            return false;
+        }
+
+        // mutable bitmaps can be returned to the pool later
+        options.inMutable = true;
+        options.inBitmap = null;
+
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return false;
+        }
+
+        int sampleSize = Math.max(options.inSampleSize, 1);
+        // before Android 4.4 the reused bitmap must be the same size as decoded one
+        if (sampleSize > 1 && Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        int width = (int) Math.ceil((double) options.outWidth / sampleSize);
+        int height = (int) Math.ceil((double) options.outHeight / sampleSize);
+        Bitmap.Config config = null == options.inPreferredConfig
+                               ? Bitmap.Config.ARGB_8888
+                               : options.inPreferredConfig;
+
+        Bitmap bitmap = get(width, height, config);
+        if (null == bitmap) {
+            return false;
+        }
+        options.inBitmap = bitmap;
+        return true;
+    }
+}
@@ -172,6 +172,60 @@ public class NetworkUtil
     }
 
 
+    /**
+     * Conditional GET. The validators are sent as If-Modified-Since and If-None-Match headers and
+     * replaced by the response ones.
+     *
+     * @param validators
+     *         The Last-Modified and ETag values, the items may be null
+     * @param outputStream
+     *         The stream for the response body, written and closed on HTTP_OK only
+     *
+     * @return The HTTP response code or -1 if the connection is not created
+     */
+    public static int getStreamIfModified(
+            String targetURL,
+            String username,
+            String password,
+            String[] validators,
+            OutputStream outputStream)
+            throws IOException
+    {
+        final HttpURLConnection conn = getHttpConnection("GET", targetURL, username, password);
+        if(null == conn){
+            Log.d(TAG, "Error get connection object");
+            return -1;
+        }
+
+        if (!TextUtils.isEmpty(validators[0])) {
+            conn.setRequestProperty("If-Modified-Since", validators[0]);
+        }
+        if (!TextUtils.isEmpty(validators[1])) {
+            conn.setRequestProperty("If-None-Match", validators[1]);
+        }
+
+        int responseCode = conn.getResponseCode();
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            if (responseCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(TAG, "Problem execute get: " + targetURL + " HTTP response: " +
+                        responseCode);
+            }
+            conn.disconnect();
+            return responseCode;
+        }
+
+        validators[0] = conn.getHeaderField("Last-Modified");
+        validators[1] = conn.getHeaderField("ETag");
+
+        byte data[] = new byte[Constants.IO_BUFFER_SIZE];
+        InputStream is = conn.getInputStream();
+        FileUtil.copyStream(is, outputStream, data, Constants.IO_BUFFER_SIZE);
+        outputStream.close();
+        is.close();
+        return responseCode;
+    }
+
+
     public static String get(
             String targetURL,
             String username,
@@ -0,0 +1,480 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.util;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * The process-wide cache of tile bitmaps shared by all raster layers. The cache is limited by the
+ * bitmap bytes, not by the tile count, and evicts the least recently used tiles. The entries are
+ * spread over several stripes with own locks, so the drawing threads of different layers do not
+ * wait each other.
+ * The draw stages take the tiles by acquire and give them back by release. An evicted bitmap is
+ * returned to the BitmapPool only when no draw stage holds it and it was never given out by get,
+ * so the decoder never overwrites a tile which is queued or being drawn.
+ */
+public class TileCache
+{
+    protected static final int STRIPE_COUNT = 8;
+    protected static final int MIN_SIZE     = 4 * 1024 * 1024; // bytes
+
+    protected static final Stripe[] mStripes = new Stripe[STRIPE_COUNT];
+    protected static volatile int mMaxSize;
+    protected static          int mBaseSize;
+    // the budget requested by layers, the layer key to bytes
+    protected static final Map<String, Integer> mReserved = new HashMap<>();
+    protected static          boolean mCallbacksRegistered;
+
+    // the acquired bitmaps, also guards the reference state of all entries
+    protected static final Map<Bitmap, Entry> mReferenced = new IdentityHashMap<>();
+
+    static {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Stripe();
+        }
+        setMaxSize((int) (Runtime.getRuntime().maxMemory() / 8));
+    }
+
+
+    protected static class Entry
+    {
+        protected final Bitmap mBitmap;
+        protected int     mRefs;
+        protected boolean mCached;
+        protected boolean mShared;
+
+
+        protected Entry(Bitmap bitmap)
+        {
+            mBitmap = bitmap;
+            mCached = true;
+        }
+    }
+
+
+    protected static class Stripe
+    {
+        protected final Map<String, Entry> mItems = new LinkedHashMap<>(64, 0.75f, true);
+        protected int mSize;
+
+
+        protected synchronized Bitmap get(
+                String key,
+                boolean acquire)
+        {
+            Entry entry = mItems.get(key);
+            if (null == entry) {
+                return null;
+            }
+            synchronized (mReferenced) {
+                if (acquire) {
+                    acquireInt(entry);
+                } else {
+                    entry.mShared = true;
+                }
+            }
+            return entry.mBitmap;
+        }
+
+
+        protected synchronized void put(
+                String key,
+                Bitmap bitmap,
+                boolean acquire,
+                int maxSize)
+        {
+            Entry entry = new Entry(bitmap);
+            Entry old = mItems.put(key, entry);
+            mSize += getSize(bitmap);
+            synchronized (mReferenced) {
+                if (null != old && old.mBitmap == bitmap) {
+                    // the same bitmap is put again, keep its references
+                    entry.mRefs = old.mRefs;
+                    entry.mShared = old.mShared;
+                    if (entry.mRefs > 0) {
+                        mReferenced.put(bitmap, entry);
+                    }
+                }
+                if (acquire) {
+                    acquireInt(entry);
+                } else {
+                    entry.mShared = true;
+                }
+            }
+            if (null != old) {
+                mSize -= getSize(old.mBitmap);
+                if (old.mBitmap != bitmap) {
+                    evict(old);
+                }
+            }
+            trim(maxSize, entry);
+        }
+
+
+        protected synchronized void trim(
+                int maxSize,
+                Entry keep)
+        {
+            Iterator<Entry> iterator = mItems.values().iterator();
+            while (mSize > maxSize && iterator.hasNext()) {
+                Entry entry = iterator.next();
+                // the just added tile is returned to the caller, do not evict it
+                if (entry == keep) {
+                    continue;
+                }
+                iterator.remove();
+                mSize -= getSize(entry.mBitmap);
+                evict(entry);
+            }
+        }
+
+
+        protected synchronized void removeKey(String key)
+        {
+            Entry entry = mItems.remove(key);
+            if (null != entry) {
+                mSize -= getSize(entry.mBitmap);
+                evict(entry);
+            }
+        }
+
+
+        protected synchronized void remove(String prefix)
+        {
+            Iterator<Map.Entry<String, Entry>> iterator = mItems.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Entry> item = iterator.next();
+                if (item.getKey().startsWith(prefix)) {
+                    iterator.remove();
+                    mSize -= getSize(item.getValue().mBitmap);
+                    evict(item.getValue());
+                }
+            }
+        }
+    }
+
+
+    protected static void acquireInt(Entry entry)
+    {
+        if (entry.mRefs++ == 0) {
+            mReferenced.put(entry.mBitmap, entry);
+        }
+    }
+
+
+    /**
+     * The entry is removed from the cache, its bitmap is reused if nobody holds it
+     */
+    protected static void evict(Entry entry)
+    {
+        synchronized (mReferenced) {
+            entry.mCached = false;
+            if (entry.mRefs > 0 || entry.mShared) {
+                return;
+            }
+        }
+        BitmapPool.put(entry.mBitmap);
+    }
+
+
+    protected static int getSize(Bitmap bitmap)
+    {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+
+    protected static String getKey(
+            String layerKey,
+            String tileHash)
+    {
+        return layerKey + "/" + tileHash;
+    }
+
+
+    protected static Stripe getStripe(String key)
+    {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return mStripes[(hash & 0x7fffffff) % STRIPE_COUNT];
+    }
+
+
+    /**
+     * The bitmap may be used by the caller for any time, so it is never reused after eviction
+     */
+    public static Bitmap get(
+            String layerKey,
+            String tileHash)
+    {
+        String key = getKey(layerKey, tileHash);
+        return getStripe(key).get(key, false);
+    }
+
+
+    /**
+     * Get the tile for drawing. The bitmap must be passed to release when it is drawn.
+     */
+    public static Bitmap acquire(
+            String layerKey,
+            String tileHash)
+    {
+        String key = getKey(layerKey, tileHash);
+        return getStripe(key).get(key, true);
+    }
+
+
+    /**
+     * Give back the bitmap taken by acquire or put with acquire.
+     *
+     * @return false if the bitmap is not held from the cache
+     */
+    public static boolean release(Bitmap bitmap)
+    {
+        if (null == bitmap) {
+            return false;
+        }
+
+        synchronized (mReferenced) {
+            Entry entry = mReferenced.get(bitmap);
+            if (null == entry) {
+                return false;
+            }
+            if (--entry.mRefs > 0) {
+                return true;
+            }
+            mReferenced.remove(bitmap);
+            if (entry.mCached || entry.mShared) {
+                return true;
+            }
+        }
+        BitmapPool.put(bitmap);
+        return true;
+    }
+
+
+    public static void put(
+            String layerKey,
+            String tileHash,
+            Bitmap bitmap)
+    {
+        put(layerKey, tileHash, bitmap, false);
+    }
+
+
+    /**
+     * @param acquire
+     *         If true the bitmap is held by the caller until release, otherwise the caller may
+     *         use it for any time and it is never reused
+     */
+    public static void put(
+            String layerKey,
+            String tileHash,
+            Bitmap bitmap,
+            boolean acquire)
+    {
+        if (null == bitmap) {
+            return;
+        }
+        String key = getKey(layerKey, tileHash);
+        getStripe(key).put(key, bitmap, acquire, mMaxSize / STRIPE_COUNT);
+    }
+
+
+    public static void remove(
+            String layerKey,
+            String tileHash)
+    {
+        String key = getKey(layerKey, tileHash);
+        getStripe(key).removeKey(key);
+    }
+
+
+    /**
+     * Remove all tiles of the layer
+     */
+    public static void remove(String layerKey)
+    {
+        String prefix = layerKey + "/";
+        for (Stripe stripe : mStripes) {
+            stripe.remove(prefix);
+        }
+    }
+
+
+    public static int getMaxSize()
+    {
+        return mMaxSize;
+    }
+
+
+    /**
+     * Set the base cache budget in bytes. The budget grows over it while the layers reserve more,
+     * see reserve. The tiles over the new budget are evicted.
+     */
+    public static void setMaxSize(int maxSize)
+    {
+        synchronized (mReserved) {
+            mBaseSize = Math.max(maxSize, MIN_SIZE);
+        }
+        updateMaxSize();
+    }
+
+
+    /**
+     * Reserve the budget for the layer tiles. The budget is the sum of the layer reservations, but
+     * not less than the base size and not more than a quarter of the heap.
+     *
+     * @param size
+     *         The layer tiles bytes, 0 gives the layer reservation back, e.g. when the layer is
+     *         deleted or its cache is off
+     */
+    public static void reserve(
+            String layerKey,
+            int size)
+    {
+        synchronized (mReserved) {
+            if (size > 0) {
+                mReserved.put(layerKey, size);
+            } else {
+                mReserved.remove(layerKey);
+            }
+        }
+        updateMaxSize();
+    }
+
+
+    protected static void updateMaxSize()
+    {
+        synchronized (mReserved) {
+            long reserved = 0;
+            for (int size : mReserved.values()) {
+                reserved += size;
+            }
+            long limit = Runtime.getRuntime().maxMemory() / 4;
+            mMaxSize = (int) Math.max(mBaseSize, Math.min(reserved, limit));
+        }
+        trim(mMaxSize);
+    }
+
+
+    public static int getSize()
+    {
+        int size = 0;
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                size += stripe.mSize;
+            }
+        }
+        return size;
+    }
+
+
+    protected static void trim(int maxSize)
+    {
+        for (Stripe stripe : mStripes) {
+            stripe.trim(maxSize / STRIPE_COUNT, null);
+        }
+    }
+
+
+    public static void clear()
+    {
+        trim(0);
+    }
+
+
+    /**
+     * Shrink the cache and the BitmapPool by the system trim level, see ComponentCallbacks2. The
+     * budget is kept, so the cache grows back while the map is drawn.
+     */
+    public static void onTrimMemory(int level)
+    {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            clear();
+            // the evicted tiles are in the pool now
+            BitmapPool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW ||
+                level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trim(mMaxSize / 2);
+            BitmapPool.trim(BitmapPool.MAX_POOL_SIZE / 2);
+        }
+    }
+
+
+    /**
+     * Subscribe the cache to the trim memory signals of the application. Works since Android 4.0,
+     * on older versions call onTrimMemory or clear from the application code.
+     */
+    public static synchronized void registerCallbacks(Context context)
+    {
+        if (mCallbacksRegistered ||
+                Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+        registerCallbacksInt(context.getApplicationContext());
+        mCallbacksRegistered = true;
+    }
+
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    protected static void registerCallbacksInt(Context context)
+    {
+        context.registerComponentCallbacks(new ComponentCallbacks2()
+        {
+            @Override
+            public void onTrimMemory(int level)
+            {
+                TileCache.onTrimMemory(level);
+            }
+
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig)
+            {
+
+            }
+
+
+            @Override
+            public void onLowMemory()
+            {
+                clear();
+                BitmapPool.clear();
+            }
+        });
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2012-2016 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplib.util;
+
+import android.os.Process;
+
+import com.nextgis.maplib.api.ITileStore;
+import com.nextgis.maplib.datasource.TileAccessIndex;
+import com.nextgis.maplib.datasource.TileItem;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The disk quota of the downloaded tiles. Each remote layer may have own quota, all layers share
+ * the global quota. The least recently used tiles are evicted by the single background thread in
+ * batches some time after the tiles are written, never during the drawing. The quotas are off
+ * until they are set, so the stored tiles are not removed without the application consent.
+ */
+public class TileDiskQuota
+{
+    public static final long DEFAULT_GLOBAL_QUOTA = 0; // bytes, unlimited
+
+    protected static final long EVICT_DELAY = 10; // s
+    protected static final int  EVICT_BATCH = 256;
+
+    protected static final Map<String, LayerQuota> mLayers = new HashMap<>();
+    protected static long mGlobalQuota = DEFAULT_GLOBAL_QUOTA;
+
+    protected static ScheduledExecutorService mExecutor;
+    protected static ScheduledFuture<?>       mScheduled;
+
+
+    protected static class LayerQuota
+    {
+        protected final TileAccessIndex mIndex;
+        protected       long            mQuota;
+
+
+        protected LayerQuota(TileAccessIndex index)
+        {
+            mIndex = index;
+        }
+    }
+
+
+    protected static final Runnable mEvictRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            synchronized (TileDiskQuota.class) {
+                mScheduled = null;
+            }
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            if (evict()) {
+                schedule(0);
+            }
+        }
+    };
+
+
+    /**
+     * Register the layer tiles to account
+     *
+     * @param path
+     *         The layer path, the index file is stored there
+     * @param store
+     *         The layer tile store
+     * @param quota
+     *         The layer quota in bytes or 0 to use the global quota only
+     */
+    public static synchronized void register(
+            File path,
+            ITileStore store,
+            long quota)
+    {
+        String key = path.getAbsolutePath();
+        LayerQuota layer = mLayers.get(key);
+        if (null == layer || layer.mIndex.getStore() != store) {
+            // the storage type is changed, the index is rebuilt from the new store
+            if (null != layer) {
+                layer.mIndex.delete();
+            }
+            layer = new LayerQuota(new TileAccessIndex(path, store));
+            mLayers.put(key, layer);
+        }
+        layer.mQuota = quota;
+        schedule(EVICT_DELAY);
+    }
+
+
+    public static synchronized void unregister(File path)
+    {
+        LayerQuota layer = mLayers.remove(path.getAbsolutePath());
+        if (null != layer) {
+            layer.mIndex.delete();
+        }
+    }
+
+
+    public static void onAccess(
+            File path,
+            TileItem tile)
+    {
+        TileAccessIndex index = getIndex(path);
+        if (null != index) {
+            index.onAccess(tile);
+        }
+    }
+
+
+    public static void onWrite(
+            File path,
+            TileItem tile,
+            long size)
+    {
+        TileAccessIndex index = getIndex(path);
+        if (null != index) {
+            index.onWrite(tile, size);
+            schedule(EVICT_DELAY);
+        }
+    }
+
+
+    public static synchronized long getGlobalQuota()
+    {
+        return mGlobalQuota;
+    }
+
+
+    /**
+     * Set the maximum size of the downloaded tiles of all layers in bytes, 0 for no limit
+     */
+    public static synchronized void setGlobalQuota(long quota)
+    {
+        mGlobalQuota = quota;
+        schedule(0);
+    }
+
+
+    /**
+     * @return The size of the tiles of all registered layers in bytes
+     */
+    public static long getTotalSize()
+    {
+        long size = 0;
+        for (LayerQuota layer : getLayers()) {
+            size += layer.mIndex.getTotalSize();
+        }
+        return size;
+    }
+
+
+    protected static synchronized TileAccessIndex getIndex(File path)
+    {
+        LayerQuota layer = mLayers.get(path.getAbsolutePath());
+        return null == layer ? null : layer.mIndex;
+    }
+
+
+    protected static synchronized List<LayerQuota> getLayers()
+    {
+        return new ArrayList<>(mLayers.values());
+    }
+
+
+    protected static synchronized void schedule(long delay)
+    {
+        if (null != mScheduled) {
+            return;
+        }
+        if (null == mExecutor) {
+            mExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory()
+                    {
+                        @Override
+                        public Thread newThread(Runnable runnable)
+                        {
+                            Thread thread = new Thread(runnable, "TileDiskQuota");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        mScheduled = mExecutor.schedule(mEvictRunnable, delay, TimeUnit.SECONDS);
+    }
+
+
+    /**
+     * Evict one batch of tiles
+     *
+     * @return true if the quota is still exceeded
+     */
+    protected static boolean evict()
+    {
+        List<LayerQuota> layers = getLayers();
+        long globalQuota = getGlobalQuota();
+        int budget = EVICT_BATCH;
+
+        for (LayerQuota layer : layers) {
+            layer.mIndex.load();
+        }
+
+        // the layer quotas
+        for (LayerQuota layer : layers) {
+            TileAccessIndex index = layer.mIndex;
+            if (layer.mQuota <= 0 || index.getTotalSize() <= layer.mQuota) {
+                continue;
+            }
+            for (TileAccessIndex.Entry entry : index.getOldest(budget)) {
+                if (index.getTotalSize() <= layer.mQuota) {
+                    break;
+                }
+                index.evict(entry);
+                budget--;
+            }
+        }
+
+        // the global quota, merge the oldest tiles of all layers
+        long totalSize = 0;
+        for (LayerQuota layer : layers) {
+            totalSize += layer.mIndex.getTotalSize();
+        }
+        if (globalQuota > 0 && totalSize > globalQuota && budget > 0) {
+            PriorityQueue<Candidate> queue = new PriorityQueue<>();
+            for (LayerQuota layer : layers) {
+                for (TileAccessIndex.Entry entry : layer.mIndex.getOldest(budget)) {
+                    queue.add(new Candidate(layer.mIndex, entry));
+                }
+            }
+            while (totalSize > globalQuota && budget > 0 && !queue.isEmpty()) {
+                Candidate candidate = queue.poll();
+                candidate.mIndex.evict(candidate.mEntry);
+                totalSize -= candidate.mEntry.getSize();
+                budget--;
+            }
+        }
+
+        boolean exceeded = globalQuota > 0 && totalSize > globalQuota;
+        for (LayerQuota layer : layers) {
+            layer.mIndex.getStore().flush();
+            layer.mIndex.save();
+            if (layer.mQuota > 0 && layer.mIndex.getTotalSize() > layer.mQuota) {
+                exceeded = true;
+            }
+        }
+        return exceeded && budget < EVICT_BATCH;
+    }
+
+
+    protected static class Candidate
+            implements Comparable<Candidate>
+    {
+        protected final TileAccessIndex       mIndex;
+        protected final TileAccessIndex.Entry mEntry;
+
+
+        protected Candidate(
+                TileAccessIndex index,
+                TileAccessIndex.Entry entry)
+        {
+            mIndex = index;
+            mEntry = entry;
+        }
+
+
+        @Override
+        public int compareTo(Candidate another)
+        {
+            return TileAccessIndex.ACCESS_COMPARATOR.compare(mEntry, another.mEntry);
+        }
+    }
+}